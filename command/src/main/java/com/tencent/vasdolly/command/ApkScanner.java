@@ -0,0 +1,351 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.command;
+
+import com.tencent.vasdolly.common.ApkSignatureProbe;
+import com.tencent.vasdolly.reader.ApkInspector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scan all apks under a directory and report their channels , signature schemes , ids of APK Signing Block and
+ * section sizes , one line of csv or json per apk.
+ * <p>
+ * The directory is walked by the calling thread , every apk is read by {@link ApkInspector} in a fixed pool and
+ * the lines are written by one writer thread. The task queue and the line queue are bounded , so the memory does not
+ * grow with the count of apks , and the lines are in the order of completion.
+ */
+public class ApkScanner {
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON = 1;
+
+    private static final String[] COLUMNS = {"path", "fileSize", "channel", "channelScheme", "signatureSchemes",
+            "ids", "contentSize", "signingBlockSize", "centralDirSize", "eocdSize", "error"};
+    // 写线程结束的标记
+    private static final String END = new String("END");
+
+    private final int format;
+    private final int threadNum;
+
+    /**
+     * @param format    {@link #FORMAT_CSV} or {@link #FORMAT_JSON}
+     * @param threadNum
+     */
+    public ApkScanner(int format, int threadNum) {
+        if ((format != FORMAT_CSV && format != FORMAT_JSON) || threadNum <= 0) {
+            throw new RuntimeException("ApkScanner , param invalid, format = " + format + " , threadNum = " + threadNum);
+        }
+        this.format = format;
+        this.threadNum = threadNum;
+    }
+
+    /**
+     * scan the apks under dir and write the report to out , out is flushed but not closed
+     *
+     * @param dir
+     * @param out
+     * @return the count of apks , [0] is all , [1] is the failed ones
+     * @throws IOException
+     */
+    public int[] scan(File dir, OutputStream out) throws IOException {
+        if (dir == null || !dir.isDirectory() || out == null) {
+            throw new RuntimeException("ApkScanner scan , param invalid, dir = " + dir + " , out = " + out);
+        }
+        final AtomicInteger apkNum = new AtomicInteger();
+        final AtomicInteger errorNum = new AtomicInteger();
+        final BlockingQueue<String> lines = new ArrayBlockingQueue<>(threadNum * 16);
+        final LineWriter lineWriter = new LineWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), lines);
+        // 队列满时由遍历线程自己读取，限制排队的任务数
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threadNum, threadNum, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threadNum * 4), new ThreadManager.ChannelThreadFactory("scan"), new ThreadPoolExecutor.CallerRunsPolicy());
+        Thread writerThread = new Thread(lineWriter, "scan-writer");
+        writerThread.start();
+        try {
+            if (format == FORMAT_CSV) {
+                putLine(lines, lineWriter, csvHeader());
+            }
+            //1. walk the directory
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith(".apk")) {
+                        final File apk = file.toFile();
+                        apkNum.incrementAndGet();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                ScanResult result = scanApk(apk);
+                                if (result.error != null) {
+                                    errorNum.incrementAndGet();
+                                }
+                                putLine(lines, lineWriter, format == FORMAT_JSON ? toJson(result) : toCsv(result));
+                            }
+                        });
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    System.err.println("scan , visit " + file + " failure : " + e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } finally {
+            //2. wait for the reads , then the writer
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // wait
+                }
+                while (writerThread.isAlive() && !lines.offer(END, 1, TimeUnit.SECONDS)) {
+                    // wait for the writer
+                }
+                writerThread.join();
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                writerThread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (lineWriter.error != null) {
+            throw lineWriter.error;
+        }
+        return new int[]{apkNum.get(), errorNum.get()};
+    }
+
+    /**
+     * scan the apks under dir and write the report to outputFile
+     *
+     * @param dir
+     * @param outputFile
+     * @return the count of apks , [0] is all , [1] is the failed ones
+     * @throws IOException
+     */
+    public int[] scan(File dir, File outputFile) throws IOException {
+        try (OutputStream out = new FileOutputStream(outputFile)) {
+            return scan(dir, out);
+        }
+    }
+
+    /**
+     * read one apk with one open , the error is reported in the line
+     */
+    static ScanResult scanApk(File apk) {
+        ScanResult result = new ScanResult(apk.getPath());
+        result.fileSize = apk.length();
+        try (ApkInspector inspector = ApkInspector.open(apk)) {
+            result.fileSize = inspector.getFileSize();
+            //1. channel , v2 first and then v1
+            result.channel = inspector.getChannelByV2();
+            if (result.channel != null) {
+                result.channelScheme = "V2";
+            } else {
+                result.channel = inspector.getChannelByV1();
+                if (result.channel != null) {
+                    result.channelScheme = "V1";
+                }
+            }
+            //2. signature schemes without verifying
+            ApkSignatureProbe probe = inspector.getSignatureProbe();
+            StringBuilder schemes = new StringBuilder();
+            if (probe.hasV1Signature()) {
+                schemes.append("V1");
+            }
+            if (probe.hasV2Signature()) {
+                schemes.append(schemes.length() > 0 ? "+" : "").append("V2");
+            }
+            if (probe.hasV3Signature()) {
+                schemes.append(schemes.length() > 0 ? "+" : "").append("V3");
+            }
+            result.signatureSchemes = schemes.toString();
+            //3. ids and section sizes
+            StringBuilder ids = new StringBuilder();
+            for (int id : inspector.getIds()) {
+                ids.append(ids.length() > 0 ? " " : "").append(String.format("0x%08x", id));
+            }
+            result.ids = ids.toString();
+            result.contentSize = inspector.getContentEntrySize();
+            result.signingBlockSize = inspector.getApkSigningBlockSize();
+            result.centralDirSize = inspector.getCentralDirSize();
+            result.eocdSize = inspector.getEocdSize();
+        } catch (Exception e) {
+            result.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+        return result;
+    }
+
+    private static void putLine(BlockingQueue<String> lines, LineWriter lineWriter, String line) {
+        try {
+            // 写线程出错后不再排队，避免阻塞读取线程
+            while (lineWriter.error == null && !lines.offer(line, 1, TimeUnit.SECONDS)) {
+                // wait for the writer
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static String csvHeader() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            builder.append(i > 0 ? "," : "").append(COLUMNS[i]);
+        }
+        return builder.toString();
+    }
+
+    static String toCsv(ScanResult result) {
+        Object[] values = result.values();
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            if (values[i] instanceof String) {
+                String value = (String) values[i];
+                if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                    builder.append('"').append(value.replace("\"", "\"\"")).append('"');
+                } else {
+                    builder.append(value);
+                }
+            } else if (values[i] != null) {
+                builder.append(values[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    static String toJson(ScanResult result) {
+        Object[] values = result.values();
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('"').append(COLUMNS[i]).append("\":");
+            if (values[i] instanceof String) {
+                appendJsonString(builder, (String) values[i]);
+            } else if (values[i] != null) {
+                builder.append(values[i]);
+            } else {
+                builder.append("null");
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c == '\r') {
+                builder.append("\\r");
+            } else if (c == '\t') {
+                builder.append("\\t");
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    /**
+     * the report of one apk , the sizes are null if the apk fails to be read
+     */
+    static class ScanResult {
+        final String path;
+        long fileSize;
+        String channel;
+        String channelScheme;
+        String signatureSchemes;
+        String ids;
+        Long contentSize;
+        Long signingBlockSize;
+        Long centralDirSize;
+        Long eocdSize;
+        String error;
+
+        ScanResult(String path) {
+            this.path = path;
+        }
+
+        /**
+         * values in the order of {@link #COLUMNS}
+         */
+        Object[] values() {
+            return new Object[]{path, fileSize, channel, channelScheme, signatureSchemes, ids, contentSize,
+                    signingBlockSize, centralDirSize, eocdSize, error};
+        }
+    }
+
+    /**
+     * the only thread which writes the report
+     */
+    private static class LineWriter implements Runnable {
+        private final Writer writer;
+        private final BlockingQueue<String> lines;
+        volatile IOException error;
+
+        LineWriter(Writer writer, BlockingQueue<String> lines) {
+            this.writer = writer;
+            this.lines = lines;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = lines.take()) != END) {
+                    writer.write(line);
+                    writer.write('\n');
+                    // 队列空时刷新，让结果及时输出
+                    if (lines.isEmpty()) {
+                        writer.flush();
+                    }
+                }
+                writer.flush();
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -16,6 +16,11 @@
 
 package com.tencent.vasdolly.command;
 
+import com.tencent.vasdolly.verify.SamplingPolicy;
+import com.tencent.vasdolly.verify.VerificationCache;
+import com.tencent.vasdolly.verify.VerifyOptions;
+import com.tencent.vasdolly.verify.VerifyProfile;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -32,10 +37,21 @@ public class Main {
         String cmdGet = "get";//获取
         String cmdPut = "put";//插入
         String cmdRemove = "remove";//删除
+        String cmdScan = "scan";//批量读取目录下所有APK的信息
         String cmdSignMode = "-s";//签名方式
+        String cmdVerify = "-v";//完整校验签名
+        String cmdParallelVerify = "-pv";//多线程校验V2/V3签名：按1MB分块并行计算摘要，适合大文件
         String cmdChannel = "-c";//渠道信息
         String cmdFast = "-f";//极速模式：生成渠道包不进行校验（速度可以提升10倍以上）
-        String cmdMultiThreadChannel = "-mtc";//基于V1签名生成多渠道包时，使用多线程模式
+        String cmdMultiThreadChannel = "-mtc";//生成多渠道包时，使用多线程模式
+        String cmdStructuralVerify = "-sv";//结构校验模式：只完整校验一次基础包，渠道包与基础包逐段比较
+        String cmdVerifyCache = "-vc";//校验结果缓存：相同基础包和渠道生成的渠道包已经校验通过时不再校验
+        String cmdSampling = "-sp";//抽样校验：只完整校验首尾、每种渠道长度和一定比例的渠道包
+        String cmdVerifyProfile = "-vp";//校验范围：只校验指定平台版本范围使用的签名方案
+        String cmdReservedLength = "-rl";//预留渠道信息的长度：渠道包生成后可以原地改写不超过该长度的渠道
+        String cmdCsv = "-csv";//扫描结果输出为csv
+        String cmdJson = "-json";//扫描结果输出为json lines
+        String cmdThread = "-t";//扫描线程数
         String cmdHelp = "help";
 
         String help = "The commands are:\n" +
@@ -44,14 +60,26 @@ public class Main {
                 "    " + cmdGet + "                get apk information\n" +
                 "    " + cmdPut + "                put channel information\n" +
                 "    " + cmdRemove + "             remove channel information\n" +
+                "    " + cmdScan + "               scan all apks in directory : channel , signature schemes , ids and section sizes\n" +
                 "    " + cmdHelp + "               get help\n\n" +
                 "general args:\n\n" +
                 "    " + cmdSignMode + "                        signature mode , only fit 'get'\n" +
+                "    " + cmdVerify + "                        verify the signature of apk completely , only fit 'get'\n" +
+                "    " + cmdParallelVerify + "                       parallel verify : verify the v3 and v2 blocks of apk by digesting its 1MB chunks on all cpu cores , only the strongest signature and digest of every signer , the v1 signature is not verified , only fit 'get'\n" +
                 "    " + cmdChannel + " [arg]                  channel information\n" +
-                "    " + cmdMultiThreadChannel + " [arg]                multithread to v1 , only fit 'put'\n" +
-                "    " + cmdFast + "                        fast mode : generate channel apk without checking(speed can be increased by up to 10 times), only fit 'put'\n\n" +
+                "    " + cmdMultiThreadChannel + " [arg]                multithread to v1/v2/v3 , only fit 'put'\n" +
+                "    " + cmdFast + "                        fast mode : generate channel apk without checking(speed can be increased by up to 10 times), only fit 'put'\n" +
+                "    " + cmdStructuralVerify + "                       structural verify : verify base apk once , then compare every channel apk with base apk instead of checking its signature , only fit 'put'\n" +
+                "    " + cmdVerifyCache + "                       verify cache : skip verifying the channel apk which was verified before with an identical base apk , the cache is in ~/.vasdolly/verify-cache , only fit 'put'\n" +
+                "    " + cmdSampling + " [percent]               sampling verify : verify the first , the last , one of every channel length and a random percent of the rest channel apks , verify all if any fails , only fit 'put'\n" +
+                "    " + cmdVerifyProfile + " [profile]               verify profile : full (default) , v2 (Android 7.0+ , skip v1 if v2/v3 signed) , minSdk or minSdk-maxSdk , only verify the schemes used by the platform versions , only fit 'put'\n" +
+                "    " + cmdReservedLength + " [length]                reserved length : reserve a channel slot of the byte length in v2/v3 channel apk , a channel not longer than it can be rewritten in place later , only fit 'put'\n" +
+                "    " + cmdCsv + " / " + cmdJson + "              output format of scan , a csv table (default) or one json object per line , only fit 'scan'\n" +
+                "    " + cmdThread + " [num]                  thread num of scan , the default is the cpu core num , only fit 'scan'\n\n" +
                 "for example:\n\n" +
                 "    java -jar VasDolly.jar get -s /home/user/test.apk\n" +
+                "    java -jar VasDolly.jar get -v /home/user/test.apk\n" +
+                "    java -jar VasDolly.jar get -pv /home/user/test.apk\n" +
                 "    java -jar VasDolly.jar get -c /home/user/test.apk\n" +
                 "    java -jar VasDolly.jar remove -c /home/user/channel.apk\n" +
                 "    java -jar VasDolly.jar put -c \"channel1,channel2\" /home/user/base.apk /home/user/\n" +
@@ -60,11 +88,62 @@ public class Main {
                 "    java -jar VasDolly.jar put -c channel.txt /home/user/base.apk /home/user/\n" +
                 "    java -jar VasDolly.jar put -mtc channel.txt /home/user/base.apk /home/user/\n" +
                 "    java -jar VasDolly.jar put -c channel.txt -f /home/user/base.apk /home/user/\n" +
-                "    java -jar VasDolly.jar put -mtc channel.txt -f /home/user/base.apk /home/user/\n\n" +
+                "    java -jar VasDolly.jar put -mtc channel.txt -f /home/user/base.apk /home/user/\n" +
+                "    java -jar VasDolly.jar put -mtc channel.txt -sv /home/user/base.apk /home/user/\n" +
+                "    java -jar VasDolly.jar put -mtc channel.txt -vc /home/user/base.apk /home/user/\n" +
+                "    java -jar VasDolly.jar put -mtc channel.txt -sp 1 /home/user/base.apk /home/user/\n" +
+                "    java -jar VasDolly.jar put -mtc channel.txt -vp 24 /home/user/base.apk /home/user/\n" +
+                "    java -jar VasDolly.jar put -mtc channel.txt -rl 64 /home/user/base.apk /home/user/\n" +
+                "    java -jar VasDolly.jar scan /home/user/apks/\n" +
+                "    java -jar VasDolly.jar scan -json -t 8 /home/user/apks/ /home/user/report.jsonl\n\n" +
                 "Use commas to write multiple channels , you can also use channel file.\n";
 
         if (args.length == 0 || args[0] == null || args[0].trim().length() == 0) {
             System.out.print(help);
+        } else if (args[0].trim().equals(cmdScan)) { //扫描目录
+            int format = ApkScanner.FORMAT_CSV;
+            int threadNum = Runtime.getRuntime().availableProcessors();
+            List<String> paths = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                String option = args[i].trim();
+                if (option.equals(cmdCsv)) {
+                    format = ApkScanner.FORMAT_CSV;
+                } else if (option.equals(cmdJson)) {
+                    format = ApkScanner.FORMAT_JSON;
+                } else if (option.equals(cmdThread) && i + 1 < args.length) {
+                    try {
+                        threadNum = Integer.parseInt(args[++i].trim());
+                    } catch (NumberFormatException e) {
+                        threadNum = 0;
+                    }
+                    if (threadNum <= 0) {
+                        System.out.print("\n\nThe thread num must be a positive number!");
+                        return;
+                    }
+                } else if (option.startsWith("-")) {
+                    System.out.print("\n\nPlease enter the correct command!");
+                    return;
+                } else {
+                    paths.add(option);
+                }
+            }
+            //scan directory , and the optional output file
+            if (paths.isEmpty() || paths.size() > 2) {
+                System.out.print("\n\nPlease enter the correct command!");
+                return;
+            }
+            File dir = new File(paths.get(0));
+            if (!dir.isDirectory()) {
+                System.out.print("\n\nThe scan path must be a directory!");
+                return;
+            }
+            File outputFile = paths.size() == 2 ? new File(paths.get(1)) : null;
+            if (outputFile != null && outputFile.isDirectory()) {
+                System.out.print("\n\nThe output path cannot be a directory!");
+                return;
+            }
+            Util.scanApks(dir, outputFile, format, threadNum);
+            return;
         } else if (args.length > 0) {
             if (args.length == 1) {
                 if (args[0].trim().equals(cmdHelp)) {
@@ -90,6 +169,10 @@ public class Main {
                         }
                         if (command1.equals(cmdSignMode)) { //获取签名方式
                             System.out.print("\n\nsignature mode:" + Util.getSignMode(file));
+                        } else if (command1.equals(cmdVerify)) { //完整校验签名
+                            System.out.print("\n\nsignature verified:" + Util.verifySignature(file));
+                        } else if (command1.equals(cmdParallelVerify)) { //多线程校验V2/V3签名
+                            System.out.print("\n\nv2/v3 signature verified:" + Util.verifySignatureInParallel(file));
                         } else if (command1.equals(cmdChannel)) {//获取渠道信息
                             String channel = Util.readChannel(file);
                             System.out.print("\n\nChannel: " + channel + ",len=" + channel.length());
@@ -100,10 +183,62 @@ public class Main {
                         System.out.print("\n\nPlease enter the correct command!");
                     }
                 } else if (command0.equals(cmdPut)) { //插入
-                    if (command1.equals(cmdChannel) || command1.equals(cmdMultiThreadChannel) || command1.equals(cmdFast)) { //插入渠道信息
+                    if (command1.equals(cmdChannel) || command1.equals(cmdMultiThreadChannel) || command1.equals(cmdFast) || command1.equals(cmdStructuralVerify) || command1.equals(cmdVerifyCache) || command1.equals(cmdSampling) || command1.equals(cmdVerifyProfile) || command1.equals(cmdReservedLength)) { //插入渠道信息
                         boolean isMultiThread = false;
                         boolean isFastMode = false;
-                        if (args.length == 5 || args.length == 6) {
+                        boolean isStructuralVerify = false;
+                        boolean isVerifyCache = false;
+                        SamplingPolicy samplingPolicy = null;
+                        VerifyProfile verifyProfile = null;
+                        int reservedLength = -1;
+                        if (args.length >= 5) {
+                            //general args , the last two args are base apk and output path
+                            String channels = null;
+                            for (int i = 1; i < args.length - 2; i++) {
+                                String option = args[i].trim();
+                                if ((option.equals(cmdChannel) || option.equals(cmdMultiThreadChannel)) && channels == null && i + 1 < args.length - 2) {
+                                    isMultiThread = option.equals(cmdMultiThreadChannel);
+                                    channels = args[++i].trim();
+                                } else if (option.equals(cmdFast) && !isFastMode) {
+                                    isFastMode = true;
+                                } else if (option.equals(cmdStructuralVerify) && !isStructuralVerify) {
+                                    isStructuralVerify = true;
+                                } else if (option.equals(cmdVerifyCache) && !isVerifyCache) {
+                                    isVerifyCache = true;
+                                } else if (option.equals(cmdSampling) && samplingPolicy == null && i + 1 < args.length - 2) {
+                                    try {
+                                        samplingPolicy = new SamplingPolicy(Double.parseDouble(args[++i].trim()));
+                                    } catch (RuntimeException e) {
+                                        System.out.print("\n\nThe sampling percent must be a number in [0 , 100]!");
+                                        return;
+                                    }
+                                } else if (option.equals(cmdVerifyProfile) && verifyProfile == null && i + 1 < args.length - 2) {
+                                    try {
+                                        verifyProfile = VerifyProfile.parse(args[++i]);
+                                    } catch (RuntimeException e) {
+                                        System.out.print("\n\nThe verify profile must be full , v2 , minSdk or minSdk-maxSdk!");
+                                        return;
+                                    }
+                                } else if (option.equals(cmdReservedLength) && reservedLength < 0 && i + 1 < args.length - 2) {
+                                    try {
+                                        reservedLength = Integer.parseInt(args[++i].trim());
+                                    } catch (NumberFormatException e) {
+                                        reservedLength = -1;
+                                    }
+                                    if (reservedLength < 0) {
+                                        System.out.print("\n\nThe reserved length must be a non-negative integer!");
+                                        return;
+                                    }
+                                } else {
+                                    System.out.print("\n\nPlease enter the correct command!");
+                                    return;
+                                }
+                            }
+                            if (channels == null) {
+                                System.out.print("\n\nPlease enter the correct command!");
+                                return;
+                            }
+
                             //baseApk
                             String baseApkPath = args[args.length - 2].trim();
                             File baseApk = new File(baseApkPath);
@@ -129,41 +264,6 @@ public class Main {
                                 }
                             }
 
-                            String channels = "";
-                            if (args.length == 5) {
-                                isFastMode = false;
-                                if (command1.equals(cmdChannel) || command1.equals(cmdMultiThreadChannel)) {
-                                    isMultiThread = command1.equals(cmdMultiThreadChannel);
-                                    channels = args[2].trim();
-                                } else {
-                                    System.out.print("\n\nPlease enter the correct command!");
-                                    return;
-                                }
-                            } else if (args.length == 6) {
-                                if (command1.equals(cmdChannel) || command1.equals(cmdMultiThreadChannel)) {
-                                    if (cmdFast.equals(args[3].trim())) {
-                                        isMultiThread = command1.equals(cmdMultiThreadChannel);
-                                        channels = args[2].trim();
-                                        isFastMode = true;
-                                    } else {
-                                        System.out.print("\n\nPlease enter the correct command!");
-                                        return;
-                                    }
-                                } else if (command1.equals(cmdFast)) {
-                                    isFastMode = true;
-                                    if (args[2].equals(cmdChannel) || args[2].equals(cmdMultiThreadChannel)) {
-                                        isMultiThread = args[2].equals(cmdMultiThreadChannel);
-                                        channels = args[3].trim();
-                                    } else {
-                                        System.out.print("\n\nPlease enter the correct command!");
-                                        return;
-                                    }
-                                } else {
-                                    System.out.print("\n\nPlease enter the correct command!");
-                                    return;
-                                }
-                            }
-
                             //渠道信息
                             File channelFile = new File(channels);
                             List<String> channelList = new ArrayList<>();
@@ -174,7 +274,15 @@ public class Main {
                                 String[] channelArray = channels.split(",");
                                 channelList = Arrays.asList(channelArray);
                             }
-                            Util.writeChannel(baseApk, channelList, outputDir, isMultiThread, isFastMode);
+                            //渠道包的校验方式
+                            VerifyOptions verifyOptions = new VerifyOptions.Builder()
+                                    .setFastMode(isFastMode)
+                                    .setStructuralVerify(isStructuralVerify)
+                                    .setVerificationCache(isVerifyCache ? VerificationCache.getDefault() : null)
+                                    .setSamplingPolicy(samplingPolicy)
+                                    .setVerifyProfile(verifyProfile)
+                                    .build();
+                            Util.writeChannel(baseApk, channelList, outputDir, isMultiThread, Math.max(reservedLength, 0), verifyOptions);
                         } else {
                             System.out.print("\n\nPlease enter the correct command!");
                         }
@@ -16,8 +16,14 @@
 
 package com.tencent.vasdolly.command;
 
-import com.tencent.vasdolly.verify.VerifyApk;
+import com.tencent.vasdolly.common.ApkSectionInfo;
+import com.tencent.vasdolly.common.V1ChannelTemplate;
+import com.tencent.vasdolly.verify.ChannelApkVerifier;
+import com.tencent.vasdolly.verify.SamplingPolicy;
+import com.tencent.vasdolly.verify.VerificationCache;
+import com.tencent.vasdolly.verify.VerifyProfile;
 import com.tencent.vasdolly.reader.ChannelReader;
+import com.tencent.vasdolly.writer.ChannelApkPlan;
 import com.tencent.vasdolly.writer.ChannelWriter;
 
 import java.io.File;
@@ -67,6 +73,13 @@ public class ThreadManager {
     }
 
 
+    /**
+     * the count of threads which generate channel apks at the same time
+     */
+    public static int getThreadCount() {
+        return CPU_CORE;
+    }
+
     public void destory() {
         if (mExecutorService != null) {
             mExecutorService.shutdown();
@@ -77,19 +90,48 @@ public class ThreadManager {
     /**
      * 多线程生成渠道包
      *
-     * @param baseApk
+     * @param template    基础包解析后的模板，所有线程共享
      * @param channelList
      * @param outputDir
+     * @param verifier    渠道包的结构校验器，null表示完整校验签名
+     * @param cache       校验结果缓存，null表示不使用缓存
+     * @param sampling    抽样校验，null表示校验所有渠道包
+     * @param profile     签名校验的平台版本范围
      */
-    public void generateV1Channel(File baseApk, List<String> channelList, File outputDir, boolean isFastMode) {
-        String apkName = baseApk.getName();
+    public void generateV1Channel(V1ChannelTemplate template, List<String> channelList, File outputDir, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) {
+        String apkName = template.getBaseApk().getName();
         setChannelNum(channelList.size());
         for (String channel : channelList) {
             String apkChannelName = Util.getChannelApkName(apkName, channel);
             System.out.println("generateV1Channel , channel = " + channel + " , apkChannelName = " + apkChannelName);
             File destFile = new File(outputDir, apkChannelName);
-            mExecutorService.execute(new ChanndelRunnable(baseApk, destFile, channel, isFastMode));
+            mExecutorService.execute(new ChanndelRunnable(template, destFile, channel, isFastMode, verifier, cache, sampling, profile));
+        }
+        waitChannelFinish();
+    }
+
+    /**
+     * 多线程生成V2/V3渠道包，所有线程共享同一份只读的ApkSectionInfo
+     *
+     * @param apkSectionInfo
+     * @param plan 所有渠道包的布局
+     * @param isFastMode
+     * @param verifier 渠道包的结构校验器，null表示完整校验签名
+     * @param cache 校验结果缓存，null表示不使用缓存
+     * @param sampling 抽样校验，null表示校验所有渠道包
+     * @param profile 签名校验的平台版本范围
+     */
+    public void generateV2Channel(ApkSectionInfo apkSectionInfo, ChannelApkPlan plan, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) {
+        ApkSectionInfo snapshot = apkSectionInfo.snapshot();
+        setChannelNum(plan.getEntries().size());
+        for (ChannelApkPlan.Entry entry : plan.getEntries()) {
+            System.out.println("generateV2Channel , channel = " + entry.channel + " , apkChannelName = " + entry.destApk.getName());
+            mExecutorService.execute(new ChannelV2Runnable(snapshot, entry.destApk, entry.channel, plan.getReservedLength(), isFastMode, verifier, cache, sampling, profile));
         }
+        waitChannelFinish();
+    }
+
+    private void waitChannelFinish() {
         try {
             mChannelountDownLatch.await();
         } catch (InterruptedException e) {
@@ -112,24 +154,31 @@ public class ThreadManager {
 
 
     class ChanndelRunnable implements Runnable {
-        File mBaseApk;
+        V1ChannelTemplate mTemplate;
         File mDestFile;
         String mChannel;
         boolean mIsFastMode;
+        ChannelApkVerifier mVerifier;
+        VerificationCache.Session mCache;
+        SamplingPolicy.Batch mSampling;
+        VerifyProfile mProfile;
 
-        public ChanndelRunnable(File baseFile, File destfile, String channel, boolean isFastMode) {
-            this.mBaseApk = baseFile;
+        public ChanndelRunnable(V1ChannelTemplate template, File destfile, String channel, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) {
+            this.mTemplate = template;
             this.mDestFile = destfile;
             this.mChannel = channel;
             this.mIsFastMode = isFastMode;
+            this.mVerifier = verifier;
+            this.mCache = cache;
+            this.mSampling = sampling;
+            this.mProfile = profile;
         }
 
         @Override
         public void run() {
             String threadName = Thread.currentThread().getName();
             try {
-                Util.copyFileUsingNio(mBaseApk, mDestFile);
-                ChannelWriter.addChannelByV1(mDestFile, mChannel);
+                ChannelWriter.addChannelByV1(mTemplate, mDestFile, mChannel);
                 if (mIsFastMode) {
                     mChannelSuccessNum.incrementAndGet();//表示生成渠道包成功
                     mChannelSuccessList.add(mDestFile.getName());
@@ -142,7 +191,7 @@ public class ThreadManager {
                         throw new RuntimeException("Thread : " + threadName + " , generateV1Channel , " + mDestFile + " add channel failure");
                     }
                     //2. verify signature
-                    if (VerifyApk.verifySignature(mDestFile)) {
+                    if (Util.verifyV1ChannelApk(mDestFile, mChannel, mVerifier, mCache, mSampling, mProfile)) {
                         mChannelSuccessNum.incrementAndGet();//表示生成渠道包成功
                         mChannelSuccessList.add(mDestFile.getName());
                         System.out.println("Thread : " + threadName + " , generateV1Channel , after add channel , " + mDestFile + " verify success");
@@ -159,6 +208,46 @@ public class ThreadManager {
         }
     }
 
+    class ChannelV2Runnable implements Runnable {
+        ApkSectionInfo mApkSectionInfo;
+        File mDestFile;
+        String mChannel;
+        int mReservedLength;
+        boolean mIsFastMode;
+        ChannelApkVerifier mVerifier;
+        VerificationCache.Session mCache;
+        SamplingPolicy.Batch mSampling;
+        VerifyProfile mProfile;
+
+        public ChannelV2Runnable(ApkSectionInfo apkSectionInfo, File destFile, String channel, int reservedLength, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) {
+            this.mApkSectionInfo = apkSectionInfo;
+            this.mDestFile = destFile;
+            this.mChannel = channel;
+            this.mReservedLength = reservedLength;
+            this.mIsFastMode = isFastMode;
+            this.mVerifier = verifier;
+            this.mCache = cache;
+            this.mSampling = sampling;
+            this.mProfile = profile;
+        }
+
+        @Override
+        public void run() {
+            String threadName = Thread.currentThread().getName();
+            try {
+                Util.generateChannelApkByV2(mApkSectionInfo, mDestFile, mChannel, mReservedLength, mIsFastMode, mVerifier, mCache, mSampling, mProfile);
+                mChannelSuccessNum.incrementAndGet();//表示生成渠道包成功
+                mChannelSuccessList.add(mDestFile.getName());
+                System.out.println("Thread : " + threadName + " , generateV2Channel , " + mDestFile + " success");
+            } catch (Exception e) {
+                System.out.println("Thread : " + threadName + " , generateV2Channel , error , please check it");
+                e.printStackTrace();
+            } finally {
+                mChannelountDownLatch.countDown();
+            }
+        }
+    }
+
     static class ChannelThreadFactory implements ThreadFactory {
         static int count = 0;
         public String name;
@@ -16,12 +16,23 @@
 
 package com.tencent.vasdolly.command;
 
-import com.android.apksig.ApkVerifier;
+import com.tencent.vasdolly.verify.ApkDigestVerifier;
+import com.tencent.vasdolly.verify.ChannelApkVerifier;
+import com.tencent.vasdolly.verify.SamplingPolicy;
+import com.tencent.vasdolly.verify.VerificationCache;
 import com.tencent.vasdolly.verify.VerifyApk;
+import com.tencent.vasdolly.verify.VerifyOptions;
+import com.tencent.vasdolly.verify.VerifyProfile;
 import com.tencent.vasdolly.common.ApkSectionInfo;
+import com.tencent.vasdolly.common.ApkSignatureProbe;
+import com.tencent.vasdolly.common.FileCopyUtil;
+import com.tencent.vasdolly.common.MemoryBudget;
+import com.tencent.vasdolly.common.V1ChannelTemplate;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.reader.ApkInspector;
 import com.tencent.vasdolly.reader.ChannelReader;
+import com.tencent.vasdolly.writer.ChannelApkPlan;
 import com.tencent.vasdolly.writer.ChannelWriter;
-import com.tencent.vasdolly.writer.IdValueWriter;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -29,10 +40,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by zys on 17-6-8.
@@ -67,16 +80,44 @@ public class Util {
 
     /**
      * 获取已知APK的渠道信息
+     * 只打开一次APK，先读取V2渠道，没有时读取V1渠道
      *
      * @param apkFile
      * @return
      */
     public static String readChannel(File apkFile) {
-        String channel = ChannelReader.getChannelByV2(apkFile);
-        if (channel == null) {
-            channel = ChannelReader.getChannelByV1(apkFile);
+        try (ApkInspector inspector = ApkInspector.open(apkFile)) {
+            String channel = inspector.getChannel();
+            return channel != null ? channel : "";
+        } catch (Exception e) {
+            System.out.println("read channel exception:" + e.getMessage());
+            return "";
+        }
+    }
+
+    /**
+     * 并发读取目录下所有APK的渠道、签名方式、id和各部分大小，每个APK输出一行
+     * 没有输出文件时结果写到标准输出，统计信息写到标准错误
+     *
+     * @param dir
+     * @param outputFile null表示标准输出
+     * @param format     {@link ApkScanner#FORMAT_CSV} or {@link ApkScanner#FORMAT_JSON}
+     * @param threadNum
+     * @return
+     */
+    public static boolean scanApks(File dir, File outputFile, int format, int threadNum) {
+        PrintStream log = outputFile != null ? System.out : System.err;
+        long startTime = System.currentTimeMillis();
+        try {
+            ApkScanner scanner = new ApkScanner(format, threadNum);
+            int[] count = outputFile != null ? scanner.scan(dir, outputFile) : scanner.scan(dir, System.out);
+            log.println("scan finish , apk num : " + count[0] + " , error num : " + count[1]
+                    + " , time : " + (System.currentTimeMillis() - startTime) + " ms");
+            return true;
+        } catch (Exception e) {
+            log.println("scan exception:" + e.getMessage());
+            return false;
         }
-        return channel;
     }
 
     public static void main(String[] args) {
@@ -92,6 +133,19 @@ public class Util {
      * @param outputDir
      */
     public static void writeChannel(File baseApk, List<String> channelList, File outputDir, boolean isMultiThread, boolean isFastMode) {
+        writeChannel(baseApk, channelList, outputDir, isMultiThread, 0, isFastMode ? VerifyOptions.fast() : VerifyOptions.full());
+    }
+
+    /**
+     * 根据不同的方式写入渠道，并生成apk
+     *
+     * @param baseApk
+     * @param channelList
+     * @param outputDir
+     * @param reservedLength 预留渠道信息的长度，渠道包生成后可以用{@link ChannelWriter#rewriteChannelByV2(File, String)}原地改写不超过该长度的渠道 , 0表示不预留 , 仅对V2/V3签名生效
+     * @param verifyOptions  渠道包的校验方式（极速模式、结构校验、校验结果缓存、抽样校验和签名校验范围）
+     */
+    public static void writeChannel(File baseApk, List<String> channelList, File outputDir, boolean isMultiThread, int reservedLength, VerifyOptions verifyOptions) {
         if (channelList.isEmpty()) {
             System.out.println("channel list is empty , please set channel list");
             return;
@@ -108,15 +162,21 @@ public class Util {
         System.out.println("baseApk:" + baseApk.getAbsolutePath());
         System.out.println("outputDir:" + outputDir.getAbsolutePath());
         System.out.println("isMultiThread:" + isMultiThread);
-        System.out.println("isFastMode:" + isFastMode);
+        System.out.println("reservedLength:" + reservedLength);
+        System.out.println("isFastMode:" + verifyOptions.isFastMode());
+        System.out.println("verifyOptions:" + verifyOptions);
         if (mode == V1_MODE) {
             if (isMultiThread) {
-                generateV1ChannelApkMultiThread(baseApk, channelList, outputDir, isFastMode);
+                generateV1ChannelApkMultiThread(baseApk, channelList, outputDir, verifyOptions);
             } else {
-                generateV1ChannelApk(baseApk, channelList, outputDir, isFastMode);
+                generateV1ChannelApk(baseApk, channelList, outputDir, verifyOptions);
             }
         } else if (mode == V2_MODE || mode == V3_MODE) {
-            generateChannelApk(baseApk, channelList, outputDir, isFastMode);
+            if (isMultiThread) {
+                generateChannelApkMultiThread(baseApk, channelList, outputDir, reservedLength, verifyOptions);
+            } else {
+                generateChannelApk(baseApk, channelList, outputDir, reservedLength, verifyOptions);
+            }
         } else {
             throw new IllegalStateException("not support channel package mode:" + mode);
         }
@@ -125,6 +185,7 @@ public class Util {
     /**
      * 首先判断是否有V2签名，如果有就往V2签名段中写入渠道信息，否则就判断V1，如果有V1就在apk注释添加渠道
      * 第三种情况就是没有准确的签名
+     * 只根据签名块的id和中央目录中的签名文件判断，不校验签名，完整校验见{@link #verifySignature(File)}
      *
      * @param baseApk
      * @return
@@ -135,23 +196,54 @@ public class Util {
             throw new IOException("not find base apk");
         }
         System.out.println("start check apk signature mode...");
-        ApkVerifier.Builder apkVerifierBuilder = new ApkVerifier.Builder(baseApk);
-        ApkVerifier apkVerifier = apkVerifierBuilder.build();
-        ApkVerifier.Result result = apkVerifier.verify();
-        System.out.println("Verified using v1 scheme (JAR signing): " + result.isVerifiedUsingV1Scheme());
-        System.out.println("Verified using v2 scheme (APK Signature Scheme v2): " + result.isVerifiedUsingV2Scheme());
-        System.out.println("Verified using v3 scheme (APK Signature Scheme v3): " + result.isVerifiedUsingV3Scheme());
-        if (result.isVerifiedUsingV3Scheme()) {
+        ApkSignatureProbe probe = ApkSignatureProbe.probe(baseApk);
+        System.out.println("Signed using v1 scheme (JAR signing): " + probe.hasV1Signature());
+        System.out.println("Signed using v2 scheme (APK Signature Scheme v2): " + probe.hasV2Signature());
+        System.out.println("Signed using v3 scheme (APK Signature Scheme v3): " + probe.hasV3Signature());
+        if (probe.hasV3Signature()) {
             return V3_MODE;
-        } else if (result.isVerifiedUsingV2Scheme()) {
+        } else if (probe.hasV2Signature()) {
             return V2_MODE;
-        } else if (result.isVerifiedUsingV1Scheme()) {
+        } else if (probe.hasV1Signature()) {
             return V1_MODE;
         } else {
             return DEFAULT_MODE;
         }
     }
 
+    /**
+     * 完整校验APK的签名
+     *
+     * @param apkFile
+     * @return
+     */
+    public static boolean verifySignature(File apkFile) {
+        try {
+            return VerifyApk.verifySignature(apkFile);
+        } catch (Exception e) {
+            System.out.println("verify signature exception:" + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 多线程校验APK的V3和V2签名块，按1MB分块并行计算摘要，每个签名者只校验最强的算法，不校验V1签名
+     *
+     * @param apkFile
+     * @return
+     */
+    public static boolean verifySignatureInParallel(File apkFile) {
+        try {
+            return ApkDigestVerifier.verify(apkFile);
+        } catch (SignatureNotFoundException e) {
+            System.out.println("apk not have v2/v3 signature : " + e.getMessage());
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     /**
      * 如果目标是以.apk结尾则使用该路径，否则使用默认命名的路径
      *
@@ -175,7 +267,7 @@ public class Util {
      * @param channelList
      * @param outputDir
      */
-    private static void generateV1ChannelApk(File baseApk, List<String> channelList, File outputDir, boolean isFastMode) {
+    private static void generateV1ChannelApk(File baseApk, List<String> channelList, File outputDir, VerifyOptions verifyOptions) {
         if (!ChannelReader.containV1Signature(baseApk)) {
             System.out.println("File " + baseApk.getName() + " not signed by v1 , please check your signingConfig , if not have v1 signature , you can't install Apk below 7.0");
             return;
@@ -192,38 +284,67 @@ public class Util {
 
         long startTime = System.currentTimeMillis();
         System.out.println("------ File " + apkName + " generate v1 channel apk  , begin ------");
+        SamplingPolicy.Batch sampling = null;
 
         try {
+            // 只解析一次基础包的EOCD，每个渠道包一次写完
+            V1ChannelTemplate template = V1ChannelTemplate.create(baseApk);
+            ChannelApkVerifier verifier = verifyOptions.createVerifier(baseApk);
+            VerificationCache.Session cache = verifyOptions.openCache(baseApk, verifier);
+            sampling = verifyOptions.startSampling(channelList);
+            List<String> failures = new ArrayList<>();
             for (String channel : channelList) {
                 File destFile = getDestinationFile(outputDir, apkName, channel);
                 System.out.println("generatedV1ChannelApk , channel = " + channel + " , apkChannelName = " + destFile.getName());
-                copyFileUsingNio(baseApk, destFile);
-                ChannelWriter.addChannelByV1(destFile, channel);
-                if (!isFastMode) {
-                    //1. verify channel info
-                    if (ChannelReader.verifyChannelByV1(destFile, channel)) {
-                        System.out.println("generateV1ChannelApk , " + destFile + " add channel success");
-                    } else {
-                        throw new RuntimeException("generateV1ChannelApk , " + destFile + " add channel failure");
-                    }
-                    //2. verify signature
-                    if (VerifyApk.verifySignature(destFile)) {
-                        System.out.println("generateV1ChannelApk , after add channel , " + destFile + " verify success");
-                    } else {
-                        throw new RuntimeException("generateV1ChannelApk , after add channel , " + destFile + " verify failure");
+                try {
+                    generateV1ChannelApk(template, destFile, channel, verifyOptions.isFastMode(), verifier, cache, sampling, verifyOptions.getVerifyProfile());
+                } catch (Exception e) {
+                    //抽样校验时，失败后已升级为完整校验，与多线程一致，继续生成其他渠道包
+                    if (sampling == null) {
+                        throw e;
                     }
+                    failures.add(destFile.getName());
+                    System.out.println("generateV1ChannelApk , " + destFile + " failure , continue with full verification");
+                    e.printStackTrace();
                 }
             }
+            if (!failures.isEmpty()) {
+                System.out.println("Fail , channel apk generate failure : " + failures);
+            }
         } catch (Exception e) {
             System.out.println("generateV1ChannelApk error , please check it and fix it ，and that you should generate all V1 Channel Apk again!");
             e.printStackTrace();
         }
+        finishSampling(sampling, true, baseApk, verifyOptions);
+        printVerifyProfile(verifyOptions);
 
         System.out.println("------ File " + apkName + " generate v1 channel apk , end ------");
         long cost = System.currentTimeMillis() - startTime;
         System.out.println("------ total " + channelList.size() + " channel apk , cost : " + cost + " ------");
     }
 
+    /**
+     * 生成一个V1渠道包，非极速模式下校验渠道信息和签名
+     */
+    private static void generateV1ChannelApk(V1ChannelTemplate template, File destFile, String channel, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) throws Exception {
+        ChannelWriter.addChannelByV1(template, destFile, channel);
+        if (isFastMode) {
+            return;
+        }
+        //1. verify channel info
+        if (ChannelReader.verifyChannelByV1(destFile, channel)) {
+            System.out.println("generateV1ChannelApk , " + destFile + " add channel success");
+        } else {
+            throw new RuntimeException("generateV1ChannelApk , " + destFile + " add channel failure");
+        }
+        //2. verify signature
+        if (verifyV1ChannelApk(destFile, channel, verifier, cache, sampling, profile)) {
+            System.out.println("generateV1ChannelApk , after add channel , " + destFile + " verify success");
+        } else {
+            throw new RuntimeException("generateV1ChannelApk , after add channel , " + destFile + " verify failure");
+        }
+    }
+
     /**
      * V1方式写入渠道 (多线程)
      *
@@ -231,7 +352,7 @@ public class Util {
      * @param channelList
      * @param outputDir
      */
-    private static void generateV1ChannelApkMultiThread(File baseApk, List<String> channelList, File outputDir, boolean isFastMode) {
+    private static void generateV1ChannelApkMultiThread(File baseApk, List<String> channelList, File outputDir, VerifyOptions verifyOptions) {
         if (!ChannelReader.containV1Signature(baseApk)) {
             System.out.println("File " + baseApk.getName() + " not signed by v1 , please check your signingConfig , if not have v1 signature , you can't install Apk below 7.0");
             return;
@@ -247,9 +368,22 @@ public class Util {
 
         long startTime = System.currentTimeMillis();
         System.out.println("------ File " + apkName + " generate v1 channel apk  , begin ------");
-        //多线程生成渠道包
-        ThreadManager.getInstance().generateV1Channel(baseApk, channelList, outputDir, isFastMode);
-        ThreadManager.getInstance().destory();
+        SamplingPolicy.Batch sampling = null;
+        try {
+            // 只解析一次基础包的EOCD，所有线程共享
+            V1ChannelTemplate template = V1ChannelTemplate.create(baseApk);
+            ChannelApkVerifier verifier = verifyOptions.createVerifier(baseApk);
+            VerificationCache.Session cache = verifyOptions.openCache(baseApk, verifier);
+            sampling = verifyOptions.startSampling(channelList);
+            //多线程生成渠道包
+            ThreadManager.getInstance().generateV1Channel(template, channelList, outputDir, verifyOptions.isFastMode(), verifier, cache, sampling, verifyOptions.getVerifyProfile());
+            ThreadManager.getInstance().destory();
+        } catch (Exception e) {
+            System.out.println("generateV1ChannelApk error , please check it and fix it ，and that you should generate all V1 Channel Apk again!");
+            e.printStackTrace();
+        }
+        finishSampling(sampling, true, baseApk, verifyOptions);
+        printVerifyProfile(verifyOptions);
         System.out.println("------ File " + apkName + " generate v1 channel apk , end ------");
         long cost = System.currentTimeMillis() - startTime;
         System.out.println("------ total " + channelList.size() + " channel apk , cost : " + cost + " ------");
@@ -262,51 +396,371 @@ public class Util {
      * @param channelList
      * @param outputDir
      */
-    private static void generateChannelApk(File baseApk, List<String> channelList, File outputDir, boolean isFastMode) {
+    private static void generateChannelApk(File baseApk, List<String> channelList, File outputDir, int reservedLength, VerifyOptions verifyOptions) {
         String apkName = baseApk.getName();
         long startTime = System.currentTimeMillis();
         System.out.println("------ File " + apkName + " generate channel apk  , begin ------");
+        SamplingPolicy.Batch sampling = null;
 
-        try {
+        // 根据基础包的大小和内存预算，选择复制到内存、内存映射或者lowMemory模式
+        try (MemoryBudget.Lease lease = MemoryBudget.getInstance().acquire(baseApk, false)) {
             // 获取Apk的各部分片段信息
-            ApkSectionInfo apkSectionInfo = IdValueWriter.getApkSectionInfo(baseApk, false);
-            for (String channel : channelList) {
-                File destFile = getDestinationFile(outputDir, apkName, channel);
-                System.out.println("generatedChannelApk , channel = " + channel + " , apkChannelName = " + destFile.getName());
-                if (apkSectionInfo.lowMemory) {
-                    copyFileUsingNio(baseApk, destFile);
-                }
-                ChannelWriter.addChannelByV2(apkSectionInfo, destFile, channel);
-                if (!isFastMode) {
-                    //1. verify channel info
-                    if (ChannelReader.verifyChannelByV2(destFile, channel)) {
-                        System.out.println("generatedChannelApk destFile（" + destFile + "）add channel success");
-                    } else {
-                        throw new RuntimeException("generatedChannelApk destFile（ " + destFile + "） add channel failure");
-                    }
-
-                    //2. 检查生成的渠道包是否是合法的APK文件
-                    if (VerifyApk.verifySignature(destFile)) {
-                        System.out.println("generatedChannelApk , after add channel ,  " + destFile + " verify success");
-                    } else {
-                        throw new RuntimeException("generatedChannelApk , after add channel , " + destFile + " verify failure");
+            ApkSectionInfo apkSectionInfo = lease.getApkSectionInfo();
+            // 预先计算所有渠道包的布局，渠道包文件在校验通过后才创建
+            ChannelApkPlan plan = planChannelApk(apkSectionInfo, apkName, channelList, outputDir, reservedLength);
+            ChannelApkVerifier verifier = verifyOptions.createVerifier(baseApk);
+            VerificationCache.Session cache = verifyOptions.openCache(baseApk, verifier);
+            sampling = verifyOptions.startSampling(channelList);
+            List<String> failures = new ArrayList<>();
+            for (ChannelApkPlan.Entry entry : plan.getEntries()) {
+                System.out.println("generatedChannelApk , channel = " + entry.channel + " , apkChannelName = " + entry.destApk.getName());
+                try {
+                    generateChannelApkByV2(apkSectionInfo, entry.destApk, entry.channel, plan.getReservedLength(), verifyOptions.isFastMode(), verifier, cache, sampling, verifyOptions.getVerifyProfile());
+                } catch (Exception e) {
+                    //抽样校验时，失败后已升级为完整校验，与多线程一致，继续生成其他渠道包
+                    if (sampling == null) {
+                        throw e;
                     }
+                    failures.add(entry.destApk.getName());
+                    System.out.println("generatedChannelApk , " + entry.destApk + " failure , continue with full verification");
+                    e.printStackTrace();
                 }
                 apkSectionInfo.rewind();
-                if (!isFastMode) {
+                if (!verifyOptions.isFastMode()) {
                     apkSectionInfo.checkEocdCentralDirOffset();
                 }
             }
+            if (!failures.isEmpty()) {
+                System.out.println("Fail , channel apk generate failure : " + failures);
+            }
+        } catch (Exception e) {
+            System.out.println("generatedChannelApk error , please check it and fix it ，and that you should generate all  Channel Apk again!");
+            e.printStackTrace();
+        }
+        finishSampling(sampling, false, baseApk, verifyOptions);
+        printVerifyProfile(verifyOptions);
+
+        System.out.println("------ File " + apkName + " generate channel apk , end ------");
+        long cost = System.currentTimeMillis() - startTime;
+        System.out.println("------ total " + channelList.size() + " channel apk , cost : " + cost + " ------");
+    }
+
+
+    /**
+     * V2/V3签名方式写入渠道 (多线程)
+     *
+     * @param baseApk
+     * @param channelList
+     * @param outputDir
+     */
+    private static void generateChannelApkMultiThread(File baseApk, List<String> channelList, File outputDir, int reservedLength, VerifyOptions verifyOptions) {
+        String apkName = baseApk.getName();
+        long startTime = System.currentTimeMillis();
+        System.out.println("------ File " + apkName + " generate channel apk  , begin ------");
+        SamplingPolicy.Batch sampling = null;
+
+        // 根据基础包的大小和内存预算，选择复制到内存、内存映射或者lowMemory模式
+        try (MemoryBudget.Lease lease = MemoryBudget.getInstance().acquire(baseApk, false, true, ThreadManager.getThreadCount())) {
+            // 获取Apk的各部分片段信息，所有线程共享
+            ApkSectionInfo apkSectionInfo = lease.getApkSectionInfo();
+            // 预先计算所有渠道包的布局，渠道包文件在校验通过后才创建
+            ChannelApkPlan plan = planChannelApk(apkSectionInfo, apkName, channelList, outputDir, reservedLength);
+            ChannelApkVerifier verifier = verifyOptions.createVerifier(baseApk);
+            VerificationCache.Session cache = verifyOptions.openCache(baseApk, verifier);
+            sampling = verifyOptions.startSampling(channelList);
+            //多线程生成渠道包
+            ThreadManager.getInstance().generateV2Channel(apkSectionInfo, plan, verifyOptions.isFastMode(), verifier, cache, sampling, verifyOptions.getVerifyProfile());
+            ThreadManager.getInstance().destory();
+            if (!verifyOptions.isFastMode()) {
+                apkSectionInfo.checkEocdCentralDirOffset();
+            }
         } catch (Exception e) {
             System.out.println("generatedChannelApk error , please check it and fix it ，and that you should generate all  Channel Apk again!");
             e.printStackTrace();
         }
+        finishSampling(sampling, false, baseApk, verifyOptions);
+        printVerifyProfile(verifyOptions);
 
         System.out.println("------ File " + apkName + " generate channel apk , end ------");
         long cost = System.currentTimeMillis() - startTime;
         System.out.println("------ total " + channelList.size() + " channel apk , cost : " + cost + " ------");
     }
 
+    /**
+     * 生成一个V2/V3渠道包，生成或校验失败时删除该渠道包，不留下不完整或未通过校验的渠道包
+     *
+     * @param apkSectionInfo 基础包的各部分片段信息
+     * @param destFile
+     * @param channel
+     * @param reservedLength 预留渠道信息的长度，0表示不预留
+     * @param isFastMode
+     * @param verifier       渠道包的结构校验器，null表示完整校验签名
+     * @param cache          校验结果缓存，null表示不使用缓存
+     * @param sampling       抽样校验，未抽中的渠道包只校验渠道信息，null表示校验所有渠道包
+     * @param profile        签名校验的平台版本范围
+     * @throws Exception
+     */
+    static void generateChannelApkByV2(ApkSectionInfo apkSectionInfo, File destFile, String channel, int reservedLength, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) throws Exception {
+        boolean committed = false;
+        try {
+            writeChannelApkByV2(apkSectionInfo, destFile, channel, reservedLength, isFastMode, verifier, cache, sampling, profile);
+            committed = true;
+        } finally {
+            if (!committed && apkSectionInfo.baseApk != null) {
+                deleteChannelApk(apkSectionInfo.baseApk, destFile);
+            }
+        }
+    }
+
+    /**
+     * 生成一个V2/V3渠道包
+     * 极速模式下直接写入；结构校验模式下写入临时文件并与基础包比较，校验通过后才重命名为渠道包；
+     * 否则先在内存中拼接渠道包并校验渠道信息和签名，校验通过后才写入磁盘。非极速模式下校验失败时不会留下渠道包
+     *
+     * @param apkSectionInfo 基础包的各部分片段信息
+     * @param destFile
+     * @param channel
+     * @param reservedLength 预留渠道信息的长度，0表示不预留
+     * @param isFastMode
+     * @param verifier       渠道包的结构校验器，null表示完整校验签名
+     * @param cache          校验结果缓存，null表示不使用缓存
+     * @param sampling       抽样校验，未抽中的渠道包只校验渠道信息，null表示校验所有渠道包
+     * @param profile        签名校验的平台版本范围
+     * @throws Exception
+     */
+    private static void writeChannelApkByV2(ApkSectionInfo apkSectionInfo, File destFile, String channel, int reservedLength, boolean isFastMode, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) throws Exception {
+        if (isFastMode) {
+            ChannelWriter.addChannelByV2(apkSectionInfo, destFile, channel, reservedLength);
+            return;
+        }
+        if (sampling == null) {
+            generateVerifiedChannelApkByV2(apkSectionInfo, destFile, channel, reservedLength, verifier, cache, profile);
+            return;
+        }
+        if (!sampling.shouldVerify(channel)) {
+            //未抽中的渠道包只在内存中校验渠道信息，校验通过后才写入磁盘
+            ApkSectionInfo channelApkSectionInfo = ChannelWriter.prepareChannelByV2(apkSectionInfo, channel, reservedLength);
+            if (!ChannelReader.verifyChannelByV2(channelApkSectionInfo, channel)) {
+                throw new RuntimeException("generatedChannelApk destFile（ " + destFile + "） add channel failure");
+            }
+            ChannelWriter.commitChannelByV2(channelApkSectionInfo, destFile);
+            sampling.onSkipped(channel, destFile);
+            System.out.println("generatedChannelApk , " + destFile + " not sampled , skip verify");
+            return;
+        }
+        boolean verified = false;
+        try {
+            generateVerifiedChannelApkByV2(apkSectionInfo, destFile, channel, reservedLength, verifier, cache, profile);
+            verified = true;
+        } finally {
+            sampling.onVerified(channel, verified);
+        }
+    }
+
+    /**
+     * 生成一个V2/V3渠道包，并校验渠道信息和签名
+     */
+    private static void generateVerifiedChannelApkByV2(ApkSectionInfo apkSectionInfo, File destFile, String channel, int reservedLength, ChannelApkVerifier verifier, VerificationCache.Session cache, VerifyProfile profile) throws Exception {
+        if (verifier != null) {
+            //结构校验需要比较写入的字节，先写入临时文件，校验通过后才重命名为渠道包
+            File tempFile = new File(destFile.getAbsoluteFile().getParentFile(), destFile.getName() + ".tmp");
+            try {
+                ChannelWriter.addChannelByV2(apkSectionInfo, tempFile, channel, reservedLength);
+                //1. verify channel info
+                if (!ChannelReader.verifyChannelByV2(tempFile, channel)) {
+                    throw new RuntimeException("generatedChannelApk destFile（ " + destFile + "） add channel failure");
+                }
+                //2. 与基础包比较
+                if (cache != null && cache.isVerified(channel, tempFile.length())) {
+                    System.out.println("generatedChannelApk , " + destFile + " verified before , skip verify");
+                } else {
+                    if (!verifier.verifyV2(tempFile)) {
+                        throw new RuntimeException("generatedChannelApk , after add channel , " + destFile + " verify failure");
+                    }
+                    if (cache != null) {
+                        cache.putVerified(channel, tempFile.length());
+                    }
+                    System.out.println("generatedChannelApk , after add channel ,  " + destFile + " verify success");
+                }
+                //3. rename
+                renameChannelApk(tempFile, destFile);
+            } finally {
+                if (tempFile.exists()) {
+                    tempFile.delete();
+                }
+            }
+            return;
+        }
+        ApkSectionInfo channelApkSectionInfo = ChannelWriter.prepareChannelByV2(apkSectionInfo, channel, reservedLength);
+        //1. verify channel info
+        if (!ChannelReader.verifyChannelByV2(channelApkSectionInfo, channel)) {
+            throw new RuntimeException("generatedChannelApk destFile（ " + destFile + "） add channel failure");
+        }
+        //2. 检查内存中的渠道包是否是合法的APK文件，相同的渠道包已经校验通过时跳过
+        if (cache != null && cache.isVerified(channel, channelApkSectionInfo.apkSize)) {
+            ChannelWriter.commitChannelByV2(channelApkSectionInfo, destFile);
+            System.out.println("generatedChannelApk , " + destFile + " verified before , skip verify");
+            return;
+        }
+        if (!VerifyApk.verifySignature(channelApkSectionInfo, profile)) {
+            throw new RuntimeException("generatedChannelApk , before write , " + destFile + " verify failure");
+        }
+        //3. 校验通过后写入磁盘
+        ChannelWriter.commitChannelByV2(channelApkSectionInfo, destFile);
+        if (cache != null) {
+            cache.putVerified(channel, channelApkSectionInfo.apkSize);
+        }
+        System.out.println("generatedChannelApk , " + destFile + " verify success before write");
+    }
+
+    /**
+     * 校验V1渠道包的签名，相同的渠道包已经校验通过时跳过
+     *
+     * @param destFile
+     * @param channel
+     * @param verifier 渠道包的结构校验器，null表示完整校验签名
+     * @param cache    校验结果缓存，null表示不使用缓存
+     * @param sampling 抽样校验，未抽中的渠道包不校验签名，null表示校验所有渠道包
+     * @param profile  签名校验的平台版本范围
+     * @return
+     * @throws Exception
+     */
+    static boolean verifyV1ChannelApk(File destFile, String channel, ChannelApkVerifier verifier, VerificationCache.Session cache, SamplingPolicy.Batch sampling, VerifyProfile profile) throws Exception {
+        if (sampling != null && !sampling.shouldVerify(channel)) {
+            sampling.onSkipped(channel, destFile);
+            System.out.println("verifyV1ChannelApk , " + destFile + " not sampled , skip verify");
+            return true;
+        }
+        boolean verified = false;
+        try {
+            if (cache != null && cache.isVerified(channel, destFile.length())) {
+                System.out.println("verifyV1ChannelApk , " + destFile + " verified before , skip verify");
+                verified = true;
+                return true;
+            }
+            verified = verifier != null ? verifier.verifyV1(destFile) : VerifyApk.verifySignature(destFile, profile);
+            if (verified && cache != null) {
+                cache.putVerified(channel, destFile.length());
+            }
+            return verified;
+        } finally {
+            if (sampling != null) {
+                sampling.onVerified(channel, verified);
+            }
+        }
+    }
+
+    /**
+     * 抽中的渠道包校验失败时，完整校验所有未校验的渠道包，删除校验失败的V2/V3渠道包，并输出抽样校验的结果
+     *
+     * @param sampling
+     * @param isV1               是否为V1渠道包
+     * @param baseApk
+     * @param verifyOptions
+     */
+    private static void finishSampling(SamplingPolicy.Batch sampling, boolean isV1, File baseApk, VerifyOptions verifyOptions) {
+        if (sampling == null) {
+            return;
+        }
+        Map<String, File> skipped = sampling.takeSkipped();
+        if (!skipped.isEmpty()) {
+            System.out.println("------ verify " + skipped.size() + " skipped channel apk , begin ------");
+            ChannelApkVerifier verifier = null;
+            try {
+                verifier = verifyOptions.createVerifier(baseApk);
+            } catch (Exception e) {
+                System.out.println("create structural verifier failure , verify signature of channel apk : " + e.getMessage());
+            }
+            List<String> failures = new ArrayList<>();
+            for (Map.Entry<String, File> entry : skipped.entrySet()) {
+                File channelApk = entry.getValue();
+                boolean verified = false;
+                try {
+                    if (verifier != null) {
+                        verified = isV1 ? verifier.verifyV1(channelApk) : verifier.verifyV2(channelApk);
+                    } else {
+                        verified = VerifyApk.verifySignature(channelApk, verifyOptions.getVerifyProfile());
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                sampling.onVerified(entry.getKey(), verified);
+                if (!verified) {
+                    failures.add(channelApk.getName());
+                    //校验失败的V2/V3渠道包不保留
+                    if (!isV1) {
+                        deleteChannelApk(baseApk, channelApk);
+                    }
+                }
+            }
+            if (!failures.isEmpty()) {
+                System.out.println("Fail , skipped channel apk verify failure : " + failures);
+            }
+            System.out.println("------ verify " + skipped.size() + " skipped channel apk , end ------");
+        }
+        System.out.println(sampling.getReport());
+    }
+
+    /**
+     * 校验通过的临时文件重命名为渠道包，已有的同名渠道包会被替换
+     */
+    private static void renameChannelApk(File tempFile, File destFile) throws IOException {
+        //renameTo在目标文件存在时可能失败，先删除旧的渠道包
+        if (!tempFile.renameTo(destFile)) {
+            if (destFile.isFile()) {
+                destFile.delete();
+            }
+            if (!tempFile.renameTo(destFile)) {
+                throw new IOException("rename " + tempFile + " to " + destFile + " fail");
+            }
+        }
+    }
+
+    /**
+     * 删除校验失败的渠道包，基础包本身不会被删除
+     */
+    private static void deleteChannelApk(File baseApk, File channelApk) {
+        try {
+            if (baseApk.getCanonicalPath().equals(channelApk.getCanonicalPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (channelApk.isFile() && !channelApk.delete()) {
+            System.out.println("delete channel apk " + channelApk + " failure");
+        }
+    }
+
+    /**
+     * 非极速模式下，输出签名校验的次数和耗时
+     */
+    private static void printVerifyProfile(VerifyOptions verifyOptions) {
+        if (!verifyOptions.isFastMode()) {
+            System.out.println(verifyOptions.getVerifyProfile().getReport());
+        }
+    }
+
+    /**
+     * 计算所有V2/V3渠道包的布局，渠道包文件在校验通过后才创建
+     *
+     * @param apkSectionInfo
+     * @param apkName
+     * @param channelList
+     * @param outputDir
+     * @param reservedLength 预留渠道信息的长度，0表示不预留
+     * @return
+     */
+    private static ChannelApkPlan planChannelApk(ApkSectionInfo apkSectionInfo, String apkName, List<String> channelList, File outputDir, int reservedLength) throws SignatureNotFoundException, IOException {
+        Map<String, File> channelDestMap = new LinkedHashMap<>();
+        for (String channel : channelList) {
+            channelDestMap.put(channel, getDestinationFile(outputDir, apkName, channel));
+        }
+        ChannelApkPlan plan = ChannelWriter.planChannelByV2(apkSectionInfo, channelDestMap, reservedLength);
+        System.out.println("planChannelApk , " + plan);
+        return plan;
+    }
 
     public static boolean removeChannel(File channelApk) {
         try {
@@ -393,46 +847,8 @@ public class Util {
     }
 
     public static void copyFileUsingNio(File source, File dest) throws IOException {
-        FileChannel in = null;
-        FileChannel out = null;
-        FileInputStream inStream = null;
-        FileOutputStream outStream = null;
-        File parent = dest.getParentFile();
-        if (parent != null && (!parent.exists())) {
-            parent.mkdirs();
-        }
-        if (source.getAbsolutePath().equals(dest.getAbsolutePath())) {
-            System.out.println("No copying induces same absolute path, dest: " + dest.getAbsolutePath());
-            return;
-        }
-        try {
-            inStream = new FileInputStream(source);
-            outStream = new FileOutputStream(dest, false);
-            in = inStream.getChannel();
-            out = outStream.getChannel();
-            long pos = 0;
-            long count = in.size();
-            long copied = 0;
-            while (copied != count) {
-                // 特别注意，使用transferTo最多只能复制int.MAX_VALUE个字节(约2GB)，因此需要多次操作
-                copied += in.transferTo(pos + copied, count - copied, out);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (inStream != null) {
-                inStream.close();
-            }
-            if (outStream != null) {
-                outStream.close();
-            }
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.close();
-            }
-        }
+        // 大文件分段后多线程复制
+        FileCopyUtil.copy(source, dest);
     }
 
     /**
@@ -19,7 +19,9 @@ package com.tencent.vasdolly.common;
 import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
 import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
 
+import java.io.File;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * Created by leontli on 17/1/18.
@@ -27,16 +29,23 @@ import java.nio.ByteBuffer;
  */
 
 public class ApkSectionInfo {
-    // 当设备需要复制Apk内容到内存Buffer时支持的最大大小，由于ByteBuffer仅支持int，因此最大不可以大于int的长度
-    static int COPY_CONTENT_MAX_SIZE = 512 * 1024 * 1024; // 最大申请 512MB Buffer
+    // 复制Apk内容到内存Buffer时支持的最大大小，由于ByteBuffer仅支持int，因此最大不可以大于int的长度
+    // 更大的apk默认使用lowMemory模式，内容块由FileChannel直接从基础包复制到渠道包，不经过Java堆内存
+    static int COPY_CONTENT_MAX_SIZE = 64 * 1024 * 1024; // 最大申请 64MB Buffer
     // 是否复制Apk内容到内存中（主要是为了提升写入渠道包的速度）lowMemory=false表示复制apk
     public boolean lowMemory = false;
+    // 各部分是否为基础包内存映射的只读分片（不占用Java堆内存）
+    public boolean mapped = false;
+    // 基础包文件，lowMemory模式下直接从该文件复制内容块到渠道包，而不经过内存
+    public File baseApk;
     public long apkSize;
     public Pair<ByteBuffer, Long> contentEntry;
     // apk签名块
     public Pair<ByteBuffer, Long> apkSigningBlock;
     public Pair<ByteBuffer, Long> centralDir;
     public Pair<ByteBuffer, Long> eocd;
+    // 渠道信息的签名块模板，第一次写入渠道时生成，之后所有渠道共享
+    private volatile ApkSigningBlockTemplate channelBlockTemplate;
 
     public void checkParamters() throws SignatureNotFoundException {
         if ((!lowMemory && contentEntry == null) || apkSigningBlock == null || centralDir == null || eocd == null) {
@@ -69,6 +78,52 @@ public class ApkSectionInfo {
         }
     }
 
+    /**
+     * get the APK Signing Block template in which only the channel value changes
+     *
+     * @return
+     * @throws SignatureNotFoundException
+     */
+    public ApkSigningBlockTemplate getChannelBlockTemplate() throws SignatureNotFoundException {
+        ApkSigningBlockTemplate template = channelBlockTemplate;
+        if (template == null) {
+            template = ApkSigningBlockTemplate.create(apkSigningBlock.getFirst(), ChannelConstants.CHANNEL_BLOCK_ID);
+            channelBlockTemplate = template;
+        }
+        return template;
+    }
+
+    /**
+     * get a snapshot of this info whose sections are read-only views of the same bytes.
+     * the writer never changes the position of the sections or the eocd of base apk ,
+     * so the snapshot can be shared by all threads which write channel apk at the same time
+     *
+     * @return
+     */
+    public ApkSectionInfo snapshot() {
+        ApkSectionInfo snapshot = new ApkSectionInfo();
+        snapshot.lowMemory = lowMemory;
+        snapshot.mapped = mapped;
+        snapshot.baseApk = baseApk;
+        snapshot.apkSize = apkSize;
+        snapshot.contentEntry = readOnlySection(contentEntry);
+        snapshot.apkSigningBlock = readOnlySection(apkSigningBlock);
+        snapshot.centralDir = readOnlySection(centralDir);
+        snapshot.eocd = readOnlySection(eocd);
+        snapshot.channelBlockTemplate = channelBlockTemplate;
+        return snapshot;
+    }
+
+    private static Pair<ByteBuffer, Long> readOnlySection(Pair<ByteBuffer, Long> section) {
+        if (section == null) {
+            return null;
+        }
+        ByteBuffer buffer = section.getFirst().asReadOnlyBuffer();
+        // asReadOnlyBuffer的字节序总是大端，apk中所有字节都是小端模式
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return Pair.create(buffer, section.getSecond());
+    }
+
     public void checkEocdCentralDirOffset() throws SignatureNotFoundException {
         //通过eocd找到中央目录的偏移量
         long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocd.getFirst(), eocd.getSecond());
@@ -79,6 +134,6 @@ public class ApkSectionInfo {
 
     @Override
     public String toString() {
-        return "lowMemory : " + lowMemory + "\n apkSize : " + apkSize + "\n contentEntry : " + contentEntry + "\n schemeV2Block : " + apkSigningBlock + "\n centralDir : " + centralDir + "\n eocd : " + eocd;
+        return "lowMemory : " + lowMemory + "\n mapped : " + mapped + "\n baseApk : " + baseApk + "\n apkSize : " + apkSize + "\n contentEntry : " + contentEntry + "\n schemeV2Block : " + apkSigningBlock + "\n centralDir : " + centralDir + "\n eocd : " + eocd;
     }
 }
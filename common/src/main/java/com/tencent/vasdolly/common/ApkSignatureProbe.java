@@ -0,0 +1,274 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common;
+
+import com.tencent.vasdolly.common.apk.ApkDataSource;
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.FileDataSource;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Find out which signature schemes an apk is signed with , without verifying the signatures.
+ * <p>
+ * The v2/v3 schemes are found by the ids in the APK Signing Block , only the 12 bytes header of every id-value is
+ * read. The v1 scheme is found by scanning the names in the central directory for META-INF/MANIFEST.MF and
+ * META-INF/*.SF , the scan stops as soon as both are found. So only the eocd , the id-value headers and the
+ * central directory (usually a few KB) are read , the content entries are never read no matter how large the apk is.
+ * <p>
+ * The result only says which signatures are present , use the verify module to check whether they are valid.
+ */
+public class ApkSignatureProbe {
+    private static final int ZIP_CENTRAL_DIR_HEADER_SIG = 0x02014b50;
+    private static final int ZIP_CENTRAL_DIR_HEADER_MIN_SIZE = 46;
+    private static final int ZIP_CENTRAL_DIR_NAME_LENGTH_OFFSET = 28;
+    private static final int ZIP_CENTRAL_DIR_EXTRA_LENGTH_OFFSET = 30;
+    private static final int ZIP_CENTRAL_DIR_COMMENT_LENGTH_OFFSET = 32;
+    // id-value的头部：8字节长度和4字节id
+    private static final int ID_VALUE_HEADER_SIZE = 12;
+    // 每次读取中央目录的大小
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private static final String META_INF_PREFIX = "META-INF/";
+    private static final String SIGNATURE_FILE_SUFFIX = ".SF";
+
+    private final boolean v1;
+    private final boolean v2;
+    private final boolean v3;
+    private final List<Integer> ids;
+
+    private ApkSignatureProbe(boolean v1, List<Integer> ids) {
+        this.v1 = v1;
+        this.ids = Collections.unmodifiableList(ids);
+        this.v2 = ids.contains(V2SchemeUtil.APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+        this.v3 = ids.contains(V3SchemeUtil.APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+    }
+
+    /**
+     * probe the signature schemes of apk
+     *
+     * @param apk
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException the apk is not a zip file
+     */
+    public static ApkSignatureProbe probe(File apk) throws IOException, SignatureNotFoundException {
+        if (apk == null || !apk.exists() || !apk.isFile()) {
+            throw new RuntimeException("ApkSignatureProbe probe , param invalid, apk = " + apk);
+        }
+        FileDataSource source = null;
+        try {
+            source = FileDataSource.open(apk);
+            //1. find the central dir
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(source);
+            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(source, eocdAndOffsetInFile.getSecond())) {
+                throw new SignatureNotFoundException("ZIP64 APK not supported");
+            }
+            long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocdAndOffsetInFile.getFirst(), eocdAndOffsetInFile.getSecond());
+            return probe(source, centralDirOffset, eocdAndOffsetInFile.getSecond());
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * probe the signature schemes of an opened apk whose central dir is already found , only positional reads are
+     * used so the source can be shared with other readers
+     *
+     * @param source
+     * @param centralDirOffset
+     * @param eocdOffset       the end of central dir
+     * @return
+     * @throws IOException
+     */
+    public static ApkSignatureProbe probe(ApkDataSource source, long centralDirOffset, long eocdOffset) throws IOException {
+        //2. ids of APK Signing Block
+        List<Integer> ids = readIds(source, centralDirOffset);
+        //3. v1 signature files in central dir
+        boolean v1 = containV1SignatureFiles(source, centralDirOffset, eocdOffset);
+        return new ApkSignatureProbe(v1, ids);
+    }
+
+    /**
+     * read the ids of APK Signing Block , the values are skipped
+     *
+     * @return empty list if there is no APK Signing Block
+     */
+    private static List<Integer> readIds(ApkDataSource source, long centralDirOffset) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        if (centralDirOffset < ApkSigningBlockUtils.APK_SIG_BLOCK_MIN_SIZE) {
+            return ids;
+        }
+        //1. footer : size of block and magic
+        ByteBuffer footer = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(source, footer, centralDirOffset - footer.capacity());
+        if (footer.getLong(8) != ApkSigningBlockUtils.APK_SIG_BLOCK_MAGIC_LO
+                || footer.getLong(16) != ApkSigningBlockUtils.APK_SIG_BLOCK_MAGIC_HI) {
+            return ids;
+        }
+        long blockSize = footer.getLong(0);
+        long blockOffset = centralDirOffset - blockSize - 8;
+        if (blockSize < footer.capacity() || blockOffset < 0) {
+            return ids;
+        }
+        //2. id-values are between the size in header and the footer
+        long position = blockOffset + 8;
+        long end = centralDirOffset - footer.capacity();
+        ByteBuffer header = ByteBuffer.allocate(ID_VALUE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (position < end) {
+            if (end - position < ID_VALUE_HEADER_SIZE) {
+                throw new IOException("Insufficient data to read size of APK Signing Block entry , position : " + position);
+            }
+            header.clear();
+            readFully(source, header, position);
+            long length = header.getLong(0);
+            if (length < 4 || length > end - position - 8) {
+                throw new IOException("APK Signing Block entry size out of range : " + length + " , position : " + position);
+            }
+            ids.add(header.getInt(8));
+            position += 8 + length;
+        }
+        return ids;
+    }
+
+    /**
+     * scan the names in central dir for META-INF/MANIFEST.MF and META-INF/*.SF
+     */
+    private static boolean containV1SignatureFiles(ApkDataSource source, long centralDirOffset, long centralDirEnd) throws IOException {
+        boolean manifest = false;
+        boolean signatureFile = false;
+        ReadWindow window = new ReadWindow(source, centralDirEnd);
+        long position = centralDirOffset;
+        while (position < centralDirEnd && !(manifest && signatureFile)) {
+            //1. fixed part of the entry
+            ByteBuffer entry = window.read(position, ZIP_CENTRAL_DIR_HEADER_MIN_SIZE);
+            int base = entry.position();
+            if (entry.getInt(base) != ZIP_CENTRAL_DIR_HEADER_SIG) {
+                throw new IOException("Not a central directory entry , position : " + position);
+            }
+            int nameLength = ZipUtils.getUnsignedInt16(entry, base + ZIP_CENTRAL_DIR_NAME_LENGTH_OFFSET);
+            int entrySize = ZIP_CENTRAL_DIR_HEADER_MIN_SIZE + nameLength
+                    + ZipUtils.getUnsignedInt16(entry, base + ZIP_CENTRAL_DIR_EXTRA_LENGTH_OFFSET)
+                    + ZipUtils.getUnsignedInt16(entry, base + ZIP_CENTRAL_DIR_COMMENT_LENGTH_OFFSET);
+            //2. the name
+            ByteBuffer nameBuffer = window.read(position + ZIP_CENTRAL_DIR_HEADER_MIN_SIZE, nameLength);
+            byte[] name = new byte[nameLength];
+            nameBuffer.get(name);
+            String entryName = new String(name, ChannelConstants.CONTENT_CHARSET);
+            if (MANIFEST_NAME.equals(entryName)) {
+                manifest = true;
+            } else if (isSignatureFile(entryName)) {
+                signatureFile = true;
+            }
+            position += entrySize;
+        }
+        return manifest && signatureFile;
+    }
+
+    /**
+     * signature file is META-INF/xxx.SF , it is not in any sub dir
+     */
+    private static boolean isSignatureFile(String entryName) {
+        return entryName.startsWith(META_INF_PREFIX) && entryName.endsWith(SIGNATURE_FILE_SUFFIX)
+                && entryName.length() > META_INF_PREFIX.length() + SIGNATURE_FILE_SUFFIX.length()
+                && entryName.indexOf('/', META_INF_PREFIX.length()) == -1;
+    }
+
+    private static void readFully(ApkDataSource source, ByteBuffer buffer, long position) throws IOException {
+        source.read(buffer, position);
+        buffer.flip();
+    }
+
+    /**
+     * sequential reads of the file by READ_BUFFER_SIZE , so the small entries of central dir do not need a read
+     * every entry
+     */
+    private static class ReadWindow {
+        private final ApkDataSource source;
+        private final long end;
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long offset;
+
+        ReadWindow(ApkDataSource source, long end) {
+            this.source = source;
+            this.end = end;
+            buffer.limit(0);
+        }
+
+        /**
+         * @return the buffer whose [position , position + size) are the bytes of [filePosition , filePosition + size)
+         */
+        ByteBuffer read(long filePosition, int size) throws IOException {
+            if (filePosition + size > end) {
+                throw new IOException("Truncated central directory , position : " + filePosition + " , size : " + size + " , end : " + end);
+            }
+            if (filePosition < offset || filePosition + size > offset + buffer.limit()) {
+                if (size > buffer.capacity()) {
+                    buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - filePosition));
+                readFully(source, buffer, filePosition);
+                offset = filePosition;
+            }
+            ByteBuffer result = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            result.position((int) (filePosition - offset));
+            result.limit((int) (filePosition - offset) + size);
+            return result;
+        }
+    }
+
+    public boolean hasV1Signature() {
+        return v1;
+    }
+
+    public boolean hasV2Signature() {
+        return v2;
+    }
+
+    public boolean hasV3Signature() {
+        return v3;
+    }
+
+    /**
+     * ids of APK Signing Block in order , empty if there is no APK Signing Block
+     */
+    public List<Integer> getIds() {
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        return "ApkSignatureProbe{" +
+                "v1=" + v1 +
+                ", v2=" + v2 +
+                ", v3=" + v3 +
+                ", ids=" + ids.size() +
+                '}';
+    }
+}
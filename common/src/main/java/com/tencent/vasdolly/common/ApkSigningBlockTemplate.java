@@ -0,0 +1,214 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common;
+
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Precompiled APK Signing Block of a base apk , in which only the value of one id changes.
+ * <p>
+ * The id-value pairs of base apk are parsed once. For every new value only the value bytes, the size fields
+ * and the verity padding are written into a reusable buffer, so no map , boxing or new signing block is needed
+ * per value. The output is byte-identical to {@link V2SchemeUtil#generateApkSigningBlock}.
+ * <p>
+ * The template is immutable and can be shared by all threads.
+ */
+public class ApkSigningBlockTemplate {
+    private static final int PAIR_HEADER_SIZE = 8 + 4;//8 is the size of pair, 4 is the id of pair
+    //padding的最大长度小于一页加上一个pair头
+    private static final byte[] ZERO_PADDING = new byte[ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES + PAIR_HEADER_SIZE];
+
+    private final int id;
+    // raw id-value pairs before the slot of id
+    private final byte[] headPairs;
+    // raw id-value pairs after the slot of id , not contain the verity padding pair
+    private final byte[] tailPairs;
+    private final boolean needPadding;
+
+    private ApkSigningBlockTemplate(int id, byte[] headPairs, byte[] tailPairs, boolean needPadding) {
+        this.id = id;
+        this.headPairs = headPairs;
+        this.tailPairs = tailPairs;
+        this.needPadding = needPadding;
+    }
+
+    /**
+     * create the template from the APK Signing Block of base apk
+     *
+     * @param apkSigningBlock APK Signing Block of base apk
+     * @param id              the id whose value changes , such as {@link ChannelConstants#CHANNEL_BLOCK_ID}
+     * @return
+     * @throws SignatureNotFoundException
+     */
+    public static ApkSigningBlockTemplate create(ByteBuffer apkSigningBlock, int id) throws SignatureNotFoundException {
+        ApkSigningBlockUtils.checkByteOrderLittleEndian(apkSigningBlock);
+        // FORMAT:
+        // OFFSET       DATA TYPE  DESCRIPTION
+        // * @+0  bytes uint64:    size in bytes (excluding this field)
+        // * @+8  bytes pairs
+        // * @-24 bytes uint64:    size in bytes (same as the one above)
+        // * @-16 bytes uint128:   magic
+        ByteBuffer pairs = ApkSigningBlockUtils.sliceFromTo(apkSigningBlock, 8, apkSigningBlock.capacity() - 24);
+        ByteBuffer head = ByteBuffer.allocate(pairs.remaining());
+        ByteBuffer tail = ByteBuffer.allocate(pairs.remaining());
+        boolean needPadding = false;
+        boolean foundId = false;
+        int entryCount = 0;
+        while (pairs.hasRemaining()) {
+            entryCount++;
+            if (pairs.remaining() < 8) {
+                throw new SignatureNotFoundException("Insufficient data to read size of APK Signing Block entry #" + entryCount);
+            }
+            int entryStart = pairs.position();
+            long lenLong = pairs.getLong();
+            if ((lenLong < 4) || (lenLong > Integer.MAX_VALUE)) {
+                throw new SignatureNotFoundException("APK Signing Block entry #" + entryCount + " size out of range: " + lenLong);
+            }
+            int len = (int) lenLong;
+            int nextEntryPos = pairs.position() + len;
+            if (len > pairs.remaining()) {
+                throw new SignatureNotFoundException("APK Signing Block entry #" + entryCount + " size out of range: " + len + ", available: " + pairs.remaining());
+            }
+            int pairId = pairs.getInt();
+            if (pairId == ApkSigningBlockUtils.VERITY_PADDING_BLOCK_ID) {
+                // padding block is always regenerated at the end
+                needPadding = true;
+            } else if (pairId == id) {
+                foundId = true;
+            } else {
+                ByteBuffer entry = ApkSigningBlockUtils.sliceFromTo(pairs, entryStart, nextEntryPos);
+                (foundId ? tail : head).put(entry);
+            }
+            pairs.position(nextEntryPos);
+        }
+
+        if (entryCount == 0) {
+            throw new SignatureNotFoundException("not have Id-Value Pair in APK Signing Block entry #" + entryCount);
+        }
+
+        return new ApkSigningBlockTemplate(id, toByteArray(head), toByteArray(tail), needPadding);
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * get the size of the new APK Signing Block
+     *
+     * @param valueLength length of the value
+     * @return
+     */
+    public int getBlockSize(int valueLength) {
+        return (int) (getSizeField(valueLength) + 8);
+    }
+
+    /**
+     * size field of the new APK Signing Block (excluding the first 8 bytes)
+     */
+    private long getSizeField(int valueLength) {
+        //24 = 16 byte (magic) + 8 byte (length of the signing block excluding first 8 byte)
+        long length = 16 + 8 + headPairs.length + PAIR_HEADER_SIZE + valueLength + tailPairs.length;
+        if (needPadding) {
+            length += getPaddingSize(length);
+        }
+        return length;
+    }
+
+    /**
+     * size of the verity padding pair (including its header) , 0 means no padding pair
+     */
+    private static int getPaddingSize(long lengthWithoutPadding) {
+        int remainder = (int) ((lengthWithoutPadding + 8) % ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES);
+        if (remainder == 0) {
+            return 0;
+        }
+        // Calculate the number of bytes that need to be filled
+        int padding = ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES - remainder;
+        // padding size must not be less than 8 + 4 bytes.
+        if (padding < PAIR_HEADER_SIZE) {
+            padding += ApkSigningBlockUtils.ANDROID_COMMON_PAGE_ALIGNMENT_BYTES;
+        }
+        return padding;
+    }
+
+    /**
+     * generate the new APK Signing Block which contains the value
+     *
+     * @param value  value of the id , the position of value is not changed
+     * @param output reusable buffer , a new buffer is allocated only if it is null or too small
+     * @return the buffer which contains the new APK Signing Block between position and limit
+     */
+    public ByteBuffer generate(ByteBuffer value, ByteBuffer output) {
+        int valueLength = value.remaining();
+        long length = getSizeField(valueLength);
+        int blockSize = (int) (length + 8);
+        if (output == null || output.capacity() < blockSize) {
+            output = ByteBuffer.allocate(blockSize);
+        }
+        output.clear();
+        output.order(ByteOrder.LITTLE_ENDIAN);
+        output.limit(blockSize);
+
+        output.putLong(length);//1.write size (excluding this field)
+        //2.write id-value pairs
+        output.put(headPairs);
+        output.putLong(valueLength + 4);//4 is length of id
+        output.putInt(id);
+        if (value.hasArray()) {
+            output.put(value.array(), value.arrayOffset() + value.position(), valueLength);
+        } else {
+            for (int i = value.position(); i < value.limit(); i++) {
+                output.put(value.get(i));
+            }
+        }
+        output.put(tailPairs);
+        if (needPadding) {
+            //the rest of block except the footer(24 bytes) is the padding pair
+            writePadding(output, blockSize - output.position() - 24);
+        }
+
+        output.putLong(length);//3.write size (same as the one above)
+        output.putLong(ApkSigningBlockUtils.APK_SIG_BLOCK_MAGIC_LO);//4. write magic
+        output.putLong(ApkSigningBlockUtils.APK_SIG_BLOCK_MAGIC_HI);//4. write magic
+        if (output.hasRemaining()) {
+            throw new RuntimeException("ApkSigningBlockTemplate generate error");
+        }
+        output.flip();
+        return output;
+    }
+
+    private static void writePadding(ByteBuffer output, int paddingSize) {
+        if (paddingSize == 0) {
+            return;
+        }
+        output.putLong(paddingSize - 8);//size of padding pair (excluding this field)
+        output.putInt(ApkSigningBlockUtils.VERITY_PADDING_BLOCK_ID);
+        output.put(ZERO_PADDING, 0, paddingSize - PAIR_HEADER_SIZE);
+    }
+}
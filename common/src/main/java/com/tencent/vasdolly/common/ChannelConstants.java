@@ -23,6 +23,6 @@ package com.tencent.vasdolly.common;
 public class ChannelConstants {
     public static final int CHANNEL_BLOCK_ID = 0x881155ff;
     public static final String CONTENT_CHARSET = "UTF-8";
-    static final int SHORT_LENGTH = 2;
-    static final byte[] V1_MAGIC = new byte[]{0x6c, 0x74, 0x6c, 0x6f, 0x76, 0x65, 0x7a, 0x68}; //ltlovezh
+    public static final int SHORT_LENGTH = 2;
+    public static final byte[] V1_MAGIC = new byte[]{0x6c, 0x74, 0x6c, 0x6f, 0x76, 0x65, 0x7a, 0x68}; //ltlovezh
 }
@@ -0,0 +1,210 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copy file by FileChannel transfers.
+ * <p>
+ * A large file is split into ranges which are copied by several threads at the same time , every thread uses
+ * its own channels and positional transfers , so the ranges never share a file position.
+ * A small file is copied by the calling thread.
+ * <p>
+ * The ranges of all copies are run by one shared pool of {@link #MAX_COPY_THREADS} threads , so the concurrent
+ * copies of many worker threads (such as the multi-thread v1 channel apks) queue their ranges instead of
+ * oversubscribing the disk.
+ */
+public class FileCopyUtil {
+    // 小于该大小的文件由当前线程直接复制
+    private static final long PARALLEL_THRESHOLD = 256L * 1024 * 1024;
+    // 每个分段的最小大小
+    private static final long MIN_RANGE_SIZE = 64L * 1024 * 1024;
+    // 所有复制同时使用的最大线程数，再多也无法提升磁盘吞吐
+    private static final int MAX_COPY_THREADS = 8;
+
+    private static volatile ExecutorService sExecutorService;
+
+    private FileCopyUtil() {
+    }
+
+    /**
+     * copy the whole src file to dest file
+     *
+     * @param src
+     * @param dest
+     * @throws IOException
+     */
+    public static void copy(File src, File dest) throws IOException {
+        long length = src.length();
+        copyRange(src, dest, length);
+        RandomAccessFile destFile = null;
+        try {
+            destFile = new RandomAccessFile(dest, "rw");
+            destFile.setLength(length);
+        } finally {
+            if (destFile != null) {
+                destFile.close();
+            }
+        }
+    }
+
+    /**
+     * copy the first count bytes of src file to the same position of dest file ,
+     * the rest of dest file is not changed
+     *
+     * @param src
+     * @param dest
+     * @param count
+     * @throws IOException
+     */
+    public static void copyRange(File src, File dest, long count) throws IOException {
+        if (src == null || dest == null || count < 0 || count > src.length()) {
+            throw new RuntimeException("copyRange , param invalid, src = " + src + " , dest = " + dest + " , count = " + count);
+        }
+        if (src.getCanonicalPath().equals(dest.getCanonicalPath())) {
+            System.out.println("No copying induces same absolute path, dest: " + dest.getAbsolutePath());
+            return;
+        }
+        File parent = dest.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        int threadCount = getThreadCount(count);
+        if (threadCount <= 1) {
+            transfer(src, dest, 0, count);
+            return;
+        }
+        //1. split into ranges , the last range contains the rest , all ranges are copied by the shared pool
+        long rangeSize = count / threadCount;
+        List<Future<Void>> futures = new ArrayList<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            final long position = rangeSize * i;
+            final long rangeCount = (i == threadCount - 1) ? count - position : rangeSize;
+            futures.add(getExecutorService().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    transfer(src, dest, position, rangeCount);
+                    return null;
+                }
+            }));
+        }
+        //2. wait for all ranges
+        IOException error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (error == null) {
+                    error = new IOException("copyRange interrupted", e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * the count of copy threads , depends on the size of copy
+     */
+    static int getThreadCount(long count) {
+        if (count < PARALLEL_THRESHOLD) {
+            return 1;
+        }
+        int cpu = Runtime.getRuntime().availableProcessors();
+        long ranges = count / MIN_RANGE_SIZE;
+        return (int) Math.max(1, Math.min(Math.min(cpu, MAX_COPY_THREADS), ranges));
+    }
+
+    /**
+     * copy [position , position + count) of src to the same position of dest
+     */
+    private static void transfer(File src, File dest, long position, long count) throws IOException {
+        FileInputStream inStream = null;
+        RandomAccessFile outFile = null;
+        try {
+            inStream = new FileInputStream(src);
+            outFile = new RandomAccessFile(dest, "rw");
+            FileChannel in = inStream.getChannel();
+            FileChannel out = outFile.getChannel();
+            //写入位置可以超过dest的当前长度，因此各分段可以任意顺序完成
+            out.position(position);
+            long copied = 0;
+            while (copied < count) {
+                // transferTo最多只能复制int.MAX_VALUE个字节，因此需要多次操作
+                long transferred = in.transferTo(position + copied, count - copied, out);
+                if (transferred <= 0) {
+                    throw new IOException("copyRange , unexpected end of file : " + src.getAbsolutePath() + " , position : " + (position + copied));
+                }
+                copied += transferred;
+            }
+        } finally {
+            if (inStream != null) {
+                inStream.close();
+            }
+            if (outFile != null) {
+                outFile.close();
+            }
+        }
+    }
+
+    private static ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            synchronized (FileCopyUtil.class) {
+                if (sExecutorService == null) {
+                    //所有复制共享固定数量的线程，空闲的线程会退出
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_COPY_THREADS, MAX_COPY_THREADS, 60L, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "vasdolly-copy-" + mCount.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    executor.allowCoreThreadTimeOut(true);
+                    sExecutorService = executor;
+                }
+            }
+        }
+        return sExecutorService;
+    }
+}
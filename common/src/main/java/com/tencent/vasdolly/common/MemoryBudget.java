@@ -0,0 +1,264 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common;
+
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Java heap budget shared by all channel jobs in the same process.
+ * <p>
+ * For every base apk the budget chooses how the content entry is held:
+ * <ul>
+ * <li>{@link Mode#BUFFER} : copy the whole apk into the java heap , only for small apks (not larger than 64MB) which
+ * fit into the budget</li>
+ * <li>{@link Mode#MAP} : memory-map the apk , only the small sections need heap , only for short-lived processes
+ * such as the command line , the mapping is released by gc only</li>
+ * <li>{@link Mode#STREAM} : the lowMemory mode , the content entry is copied from file to file</li>
+ * </ul>
+ * The mode only depends on the apk and the whole budget , never on the jobs running now : an apk which fits into the
+ * budget is always buffered , it is never downgraded to {@link Mode#MAP} or {@link Mode#STREAM} because other jobs
+ * hold heap at the moment.
+ * <p>
+ * The cost of a job is the heap of its mode plus the heap of writing : the signing block template , and for every
+ * writer thread the reused signing block buffer and the signing block , central dir and eocd of a channel apk
+ * prepared for verification. The cost is reserved until the job is finished. A job which does not fit into the rest
+ * of the budget waits until other jobs release their heap , so concurrent jobs (such as several flavors in one gradle
+ * daemon) never use more than the budget together , a single job is always allowed.
+ */
+public class MemoryBudget {
+    public enum Mode {
+        BUFFER, MAP, STREAM
+    }
+
+    private static volatile MemoryBudget sInstance;
+
+    private final long budget;
+    private long used;
+    private int jobCount;
+
+    public MemoryBudget(long budget) {
+        if (budget <= 0) {
+            throw new RuntimeException("MemoryBudget , budget invalid : " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * the budget shared by the whole process , it is half of the max java heap
+     */
+    public static MemoryBudget getInstance() {
+        if (sInstance == null) {
+            synchronized (MemoryBudget.class) {
+                if (sInstance == null) {
+                    sInstance = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * choose the mode of base apk and reserve its heap , wait if the budget is not enough now.
+     * the lease must be closed after the job is finished
+     *
+     * @param baseApk
+     * @param lowMemory force the {@link Mode#STREAM} mode
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     * @throws InterruptedException
+     */
+    public Lease acquire(File baseApk, boolean lowMemory) throws IOException, SignatureNotFoundException, InterruptedException {
+        return acquire(baseApk, lowMemory, true);
+    }
+
+    /**
+     * choose the mode of base apk and reserve its heap , wait if the budget is not enough now.
+     * the lease must be closed after the job is finished
+     *
+     * @param baseApk
+     * @param lowMemory force the {@link Mode#STREAM} mode
+     * @param allowMap  false in a long-lived process such as the gradle daemon : the mapping is never unmapped and
+     *                  locks the base apk on Windows , the apk is copied into the heap or streamed instead
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     * @throws InterruptedException
+     */
+    public Lease acquire(File baseApk, boolean lowMemory, boolean allowMap) throws IOException, SignatureNotFoundException, InterruptedException {
+        return acquire(baseApk, lowMemory, allowMap, 1);
+    }
+
+    /**
+     * choose the mode of base apk and reserve its heap for the writer threads , wait if the budget is not enough now.
+     * the lease must be closed after the job is finished
+     *
+     * @param baseApk
+     * @param lowMemory     force the {@link Mode#STREAM} mode
+     * @param allowMap      false in a long-lived process such as the gradle daemon
+     * @param writerThreads the count of threads which write the channel apks of the job at the same time
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     * @throws InterruptedException
+     */
+    public Lease acquire(File baseApk, boolean lowMemory, boolean allowMap, int writerThreads) throws IOException, SignatureNotFoundException, InterruptedException {
+        if (baseApk == null || !baseApk.exists() || !baseApk.isFile() || writerThreads <= 0) {
+            throw new RuntimeException("MemoryBudget acquire , param invalid, baseApk = " + baseApk + " , writerThreads = " + writerThreads);
+        }
+        long apkSize = baseApk.length();
+        long[] sectionSizes = getSectionSizes(baseApk);
+        long apkSigningBlockSize = sectionSizes[0];
+        long centralDirAndEocdSize = sectionSizes[1];
+        long writeCost = getWriteCost(apkSigningBlockSize, centralDirAndEocdSize, writerThreads);
+
+        //1. the mode only depends on the apk and the whole budget
+        Mode mode;
+        long cost;
+        // 只有较小的apk复制到内存中，更大的apk使用内存映射，不允许内存映射时内容块从文件直接复制到文件
+        if (!lowMemory && apkSize <= ApkSectionInfo.COPY_CONTENT_MAX_SIZE && apkSize + writeCost <= budget) {
+            mode = Mode.BUFFER;
+            cost = apkSize + writeCost;
+        } else if (!lowMemory && allowMap && apkSize <= Integer.MAX_VALUE) {
+            mode = Mode.MAP;
+            cost = writeCost;
+        } else {
+            mode = Mode.STREAM;
+            cost = apkSigningBlockSize + centralDirAndEocdSize + writeCost;
+        }
+        synchronized (this) {
+            //2. wait for other jobs , a single job is always allowed
+            while (jobCount > 0 && cost > budget - used) {
+                System.out.println("MemoryBudget , " + baseApk.getName() + " needs " + cost + " bytes , used " + used + " of " + budget + " , wait");
+                wait();
+            }
+            //3. reserve the heap
+            used += cost;
+            jobCount++;
+            System.out.println("MemoryBudget , " + baseApk.getName() + " mode : " + mode + " , cost : " + cost + " , used " + used + " of " + budget);
+            return new Lease(baseApk, mode, cost);
+        }
+    }
+
+    /**
+     * the heap of writing channel apks : the signing block template (its head and tail) , and for every writer thread
+     * the reused signing block buffer and the signing block , central dir and eocd of a channel apk prepared for
+     * verification
+     */
+    static long getWriteCost(long apkSigningBlockSize, long centralDirAndEocdSize, int writerThreads) {
+        return apkSigningBlockSize * 2 + writerThreads * (apkSigningBlockSize * 2 + centralDirAndEocdSize);
+    }
+
+    private synchronized void release(long cost) {
+        used -= cost;
+        jobCount--;
+        notifyAll();
+    }
+
+    /**
+     * read the size of APK Signing Block and the size of central dir and eocd , without reading the sections
+     *
+     * @return [size of APK Signing Block , size of central dir and eocd]
+     */
+    private static long[] getSectionSizes(File apkFile) throws IOException, SignatureNotFoundException {
+        RandomAccessFile apk = null;
+        try {
+            apk = new RandomAccessFile(apkFile, "r");
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(apk);
+            long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocdAndOffsetInFile.getFirst(), eocdAndOffsetInFile.getSecond());
+            if (centralDirOffset < ApkSigningBlockUtils.APK_SIG_BLOCK_MIN_SIZE) {
+                throw new SignatureNotFoundException("APK too small for APK Signing Block. ZIP Central Directory offset: " + centralDirOffset);
+            }
+            // the size field in the footer of APK Signing Block (excluding the first 8 bytes)
+            ByteBuffer footer = ByteBuffer.allocate(8);
+            footer.order(ByteOrder.LITTLE_ENDIAN);
+            apk.seek(centralDirOffset - 24);
+            apk.readFully(footer.array());
+            long apkSigningBlockSize = footer.getLong(0) + 8;
+            if (apkSigningBlockSize < ApkSigningBlockUtils.APK_SIG_BLOCK_MIN_SIZE || apkSigningBlockSize > centralDirOffset) {
+                throw new SignatureNotFoundException("APK Signing Block size out of range: " + apkSigningBlockSize);
+            }
+            return new long[]{apkSigningBlockSize, apk.length() - centralDirOffset};
+        } finally {
+            if (apk != null) {
+                apk.close();
+            }
+        }
+    }
+
+    /**
+     * the heap reserved for one job
+     */
+    public class Lease implements Closeable {
+        private final File baseApk;
+        private final Mode mode;
+        private final long cost;
+        private boolean released;
+
+        private Lease(File baseApk, Mode mode, long cost) {
+            this.baseApk = baseApk;
+            this.mode = mode;
+            this.cost = cost;
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public long getCost() {
+            return cost;
+        }
+
+        /**
+         * get the ApkSectionInfo of base apk in the chosen mode
+         *
+         * @return
+         * @throws IOException
+         * @throws SignatureNotFoundException
+         */
+        public ApkSectionInfo getApkSectionInfo() throws IOException, SignatureNotFoundException {
+            switch (mode) {
+                case BUFFER:
+                    return V2SchemeUtil.getApkSectionInfo(baseApk, false);
+                case MAP:
+                    return V2SchemeUtil.getMappedApkSectionInfo(baseApk);
+                default:
+                    return V2SchemeUtil.getApkSectionInfo(baseApk, true);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(cost);
+            }
+        }
+    }
+}
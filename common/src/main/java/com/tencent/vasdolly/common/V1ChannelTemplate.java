@@ -0,0 +1,189 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common;
+
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parsed EOCD of a v1 base apk , used to write v1 channel apks in one sequential pass.
+ * <p>
+ * The EOCD (with the existing comment) of base apk is read once. For every channel , the bytes of base apk before
+ * the EOCD are transferred to the dest apk , then the EOCD with the new comment length , the channel ,
+ * the channel length and the magic are written by one write , so the dest apk is never read again.
+ * The output is byte-identical to copying base apk and calling {@link V1SchemeUtil#writeChannel(File, String)}.
+ * <p>
+ * The template is immutable and can be shared by all threads.
+ */
+public class V1ChannelTemplate {
+    private final File baseApk;
+    private final long eocdOffset;
+    // EOCD and the existing comment of base apk
+    private final byte[] eocd;
+
+    private V1ChannelTemplate(File baseApk, long eocdOffset, byte[] eocd) {
+        this.baseApk = baseApk;
+        this.eocdOffset = eocdOffset;
+        this.eocd = eocd;
+    }
+
+    /**
+     * create the template from base apk
+     *
+     * @param baseApk
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     * @throws V1SchemeUtil.ChannelExistException base apk already has a v1 channel
+     */
+    public static V1ChannelTemplate create(File baseApk) throws IOException, SignatureNotFoundException, V1SchemeUtil.ChannelExistException {
+        if (baseApk == null || !baseApk.exists() || !baseApk.isFile()) {
+            throw new RuntimeException("V1ChannelTemplate create , param invalid, baseApk = " + baseApk);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(baseApk, "r");
+            //1.find the EOCD
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(raf);
+            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(raf, eocdAndOffsetInFile.getSecond())) {
+                throw new SignatureNotFoundException("ZIP64 APK not supported");
+            }
+            ByteBuffer eocdBuffer = eocdAndOffsetInFile.getFirst();
+            byte[] eocd = new byte[eocdBuffer.remaining()];
+            eocdBuffer.duplicate().get(eocd);
+
+            //2.check whether base apk already has a channel
+            if (isV1MagicMatch(eocd)) {
+                throw new V1SchemeUtil.ChannelExistException("file : " + baseApk.getAbsolutePath() + " has a v1 channel");
+            }
+            return new V1ChannelTemplate(baseApk, eocdAndOffsetInFile.getSecond(), eocd);
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+    }
+
+    private static boolean isV1MagicMatch(byte[] eocd) {
+        int magicLength = ChannelConstants.V1_MAGIC.length;
+        if (eocd.length < ZipUtils.ZIP_EOCD_REC_MIN_SIZE + magicLength) {
+            return false;
+        }
+        for (int i = 0; i < magicLength; ++i) {
+            if (eocd[eocd.length - magicLength + i] != ChannelConstants.V1_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public File getBaseApk() {
+        return baseApk;
+    }
+
+    /**
+     * get the size of the channel apk
+     *
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    public long getApkSize(String channel) throws IOException {
+        return eocdOffset + eocd.length + getChannelLength(channel);
+    }
+
+    private static int getChannelLength(String channel) throws IOException {
+        return channel.getBytes(ChannelConstants.CONTENT_CHARSET).length + ChannelConstants.SHORT_LENGTH + ChannelConstants.V1_MAGIC.length;
+    }
+
+    /**
+     * the offset of EOCD , the bytes before it are the same in base apk and all channel apks
+     */
+    public long getEocdOffset() {
+        return eocdOffset;
+    }
+
+    /**
+     * get the bytes after the EOCD offset of the channel apk : the EOCD with the new comment length ,
+     * the existing comment , the channel , the channel length and the magic
+     *
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    public ByteBuffer getTail(String channel) throws IOException {
+        if (channel == null || channel.isEmpty()) {
+            throw new RuntimeException("V1ChannelTemplate getTail , param invalid, channel = " + channel);
+        }
+        byte[] comment = channel.getBytes(ChannelConstants.CONTENT_CHARSET);
+        int existCommentLength = eocd.length - ZipUtils.ZIP_EOCD_REC_MIN_SIZE;
+        int newCommentLength = existCommentLength + comment.length + ChannelConstants.SHORT_LENGTH + ChannelConstants.V1_MAGIC.length;
+        if (newCommentLength > 0xffff) {
+            throw new RuntimeException("V1ChannelTemplate getTail , zip comment is too long : " + newCommentLength);
+        }
+        ByteBuffer tail = ByteBuffer.allocate(eocd.length + comment.length + ChannelConstants.SHORT_LENGTH + ChannelConstants.V1_MAGIC.length);
+        tail.order(ByteOrder.LITTLE_ENDIAN);
+        tail.put(eocd);
+        tail.putShort(ZipUtils.ZIP_EOCD_REC_MIN_SIZE - ChannelConstants.SHORT_LENGTH, (short) newCommentLength);
+        tail.put(comment);
+        tail.putShort((short) comment.length);
+        tail.put(ChannelConstants.V1_MAGIC);
+        tail.flip();
+        return tail;
+    }
+
+    /**
+     * write the channel apk
+     *
+     * @param destApk
+     * @param channel
+     * @throws IOException
+     */
+    public void writeChannel(File destApk, String channel) throws IOException {
+        if (destApk == null || channel == null || channel.isEmpty()) {
+            throw new RuntimeException("V1ChannelTemplate writeChannel , param invalid, channel = " + channel + " , destApk = " + destApk);
+        }
+        //1.eocd with the new comment length , channel , channel length and magic
+        ByteBuffer tail = getTail(channel);
+
+        //2.copy the bytes before eocd , base apk itself already has them
+        FileCopyUtil.copyRange(baseApk, destApk, eocdOffset);
+        RandomAccessFile dest = null;
+        try {
+            dest = new RandomAccessFile(destApk, "rw");
+            dest.setLength(eocdOffset + tail.remaining());
+            FileChannel destChannel = dest.getChannel();
+            //3.write eocd and channel
+            long position = eocdOffset;
+            while (tail.hasRemaining()) {
+                position += destChannel.write(tail, position);
+            }
+        } finally {
+            if (dest != null) {
+                dest.close();
+            }
+        }
+    }
+}
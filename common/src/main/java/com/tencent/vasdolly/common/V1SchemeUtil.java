@@ -16,20 +16,19 @@
 
 package com.tencent.vasdolly.common;
 
+import com.tencent.vasdolly.common.apk.ApkDataSource;
 import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.FileDataSource;
 import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipTail;
 import com.tencent.vasdolly.common.apk.ZipUtils;
 
-import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -40,6 +39,13 @@ import java.util.jar.JarFile;
  */
 
 public class V1SchemeUtil {
+    // 每个线程复用一个尾部窗口的缓冲区
+    private static final ThreadLocal<ZipTail> ZIP_TAIL = new ThreadLocal<ZipTail>() {
+        @Override
+        protected ZipTail initialValue() {
+            return new ZipTail();
+        }
+    };
 
     /**
      * write channel to apk
@@ -54,7 +60,9 @@ public class V1SchemeUtil {
         }
         RandomAccessFile raf = null;
         byte[] comment = channel.getBytes(ChannelConstants.CONTENT_CHARSET);
-        Pair<ByteBuffer, Long> eocdAndOffsetInFile = getEocd(file);
+        //EOCD、注释和已有的渠道只读取一次
+        ZipTail tail = readZipTail(file);
+        Pair<ByteBuffer, Long> eocdAndOffsetInFile = tail.getEocd();
         if (eocdAndOffsetInFile.getFirst().remaining() == ZipUtils.ZIP_EOCD_REC_MIN_SIZE) {
             System.out.println("file : " + file.getAbsolutePath() + " , has no comment");
             try {
@@ -77,9 +85,9 @@ public class V1SchemeUtil {
             }
         } else {
             System.out.println("file : " + file.getAbsolutePath() + " , has comment");
-            if (containV1Magic(file)) {
+            if (tail.containV1Magic()) {
                 try {
-                    String existChannel = readChannel(file);
+                    String existChannel = readChannel(tail);
                     if (existChannel != null) {
                         file.delete();
                         throw new ChannelExistException(
@@ -160,37 +168,64 @@ public class V1SchemeUtil {
      * @throws Exception
      */
     public static String readChannel(File file) throws Exception {
-        RandomAccessFile raf = null;
+        FileDataSource source = null;
         try {
-            raf = new RandomAccessFile(file, "r");
-            long index = raf.length();
-            byte[] buffer = new byte[ChannelConstants.V1_MAGIC.length];
-            index -= ChannelConstants.V1_MAGIC.length;
-            raf.seek(index);
-            raf.readFully(buffer);
-            // whether magic bytes matched
-            if (isV1MagicMatch(buffer)) {
-                index -= ChannelConstants.SHORT_LENGTH;
-                raf.seek(index);
-                // read channel length field
-                int length = readShort(raf);
-                if (length > 0) {
-                    index -= length;
-                    raf.seek(index);
-                    // read channel bytes
-                    byte[] bytesComment = new byte[length];
-                    raf.readFully(bytesComment);
-                    String channel = new String(bytesComment, ChannelConstants.CONTENT_CHARSET);
-                    return channel.trim();
-                } else {
-                    throw new Exception("zip channel info not found");
-                }
+            source = FileDataSource.open(file);
+            return readChannel(source);
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * read channel from apk by one read of its tail , the source may be shared with other threads
+     *
+     * @param source
+     * @return
+     * @throws Exception
+     */
+    public static String readChannel(ApkDataSource source) throws Exception {
+        return readChannel(ZIP_TAIL.get().read(source));
+    }
+
+    /**
+     * parse channel from the tail window of apk
+     */
+    private static String readChannel(ZipTail tail) throws Exception {
+        // whether magic bytes matched
+        if (tail.containV1Magic()) {
+            byte[] bytesComment = tail.getV1Channel();
+            if (bytesComment != null) {
+                String channel = new String(bytesComment, ChannelConstants.CONTENT_CHARSET);
+                return channel.trim();
             } else {
-                throw new Exception("zip v1 magic not found");
+                throw new Exception("zip channel info not found");
+            }
+        } else {
+            throw new Exception("zip v1 magic not found");
+        }
+    }
+
+    /**
+     * read the tail window of apk , the EOCD must be found
+     */
+    private static ZipTail readZipTail(File apk) throws IOException, SignatureNotFoundException {
+        FileDataSource source = null;
+        try {
+            source = FileDataSource.open(apk);
+            ZipTail tail = ZIP_TAIL.get().read(source);
+            if (!tail.hasEocd()) {
+                throw new SignatureNotFoundException("Not an APK file: ZIP End of Central Directory record not found");
             }
+            if (tail.isZip64()) {
+                throw new SignatureNotFoundException("ZIP64 APK not supported");
+            }
+            return tail;
         } finally {
-            if (raf != null) {
-                raf.close();
+            if (source != null) {
+                source.close();
             }
         }
     }
@@ -201,13 +236,6 @@ public class V1SchemeUtil {
         out.write(bb.array());
     }
 
-    private static short readShort(DataInput input) throws IOException {
-        byte[] buf = new byte[ChannelConstants.SHORT_LENGTH];
-        input.readFully(buf);
-        ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
-        return bb.getShort(0);
-    }
-
     /**
      * judge whether contain v1 magic int the end of file
      *
@@ -216,22 +244,34 @@ public class V1SchemeUtil {
      * @throws IOException
      */
     public static boolean containV1Magic(File file) throws IOException {
-        RandomAccessFile raf = null;
+        FileDataSource source = null;
         try {
-            raf = new RandomAccessFile(file, "r");
-            long index = raf.length();
-            byte[] buffer = new byte[ChannelConstants.V1_MAGIC.length];
-            index -= ChannelConstants.V1_MAGIC.length;
-            raf.seek(index);
-            raf.readFully(buffer);
-            return isV1MagicMatch(buffer);
+            source = FileDataSource.open(file);
+            return containV1Magic(source);
         } finally {
-            if (raf != null) {
-                raf.close();
+            if (source != null) {
+                source.close();
             }
         }
     }
 
+    /**
+     * judge whether contain v1 magic int the end of source
+     *
+     * @param source
+     * @return
+     * @throws IOException
+     */
+    public static boolean containV1Magic(ApkDataSource source) throws IOException {
+        long index = source.size() - ChannelConstants.V1_MAGIC.length;
+        if (index < 0) {
+            return false;
+        }
+        byte[] buffer = new byte[ChannelConstants.V1_MAGIC.length];
+        source.read(ByteBuffer.wrap(buffer), index);
+        return isV1MagicMatch(buffer);
+    }
+
     /**
      * check v1 magic
      *
@@ -264,19 +304,19 @@ public class V1SchemeUtil {
         if (apk == null || !apk.exists() || !apk.isFile()) {
             return null;
         }
-        RandomAccessFile raf = null;
+        FileDataSource source = null;
         try {
-            raf = new RandomAccessFile(apk, "r");
+            source = FileDataSource.open(apk);
             //find the EOCD
-            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(raf);
-            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(raf, eocdAndOffsetInFile.getSecond())) {
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(source);
+            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(source, eocdAndOffsetInFile.getSecond())) {
                 throw new SignatureNotFoundException("ZIP64 APK not supported");
             }
 
             return eocdAndOffsetInFile;
         } finally {
-            if (raf != null) {
-                raf.close();
+            if (source != null) {
+                source.close();
             }
         }
 
@@ -290,23 +330,7 @@ public class V1SchemeUtil {
      * @throws IOException
      */
     public static void copyFile(File src, File dest) throws IOException {
-        if (!dest.exists()) {
-            dest.createNewFile();
-        }
-        FileChannel source = null;
-        FileChannel destination = null;
-        try {
-            source = new FileInputStream(src).getChannel();
-            destination = new FileOutputStream(dest).getChannel();
-            destination.transferFrom(source, 0, source.size());
-        } finally {
-            if (source != null) {
-                source.close();
-            }
-            if (destination != null) {
-                destination.close();
-            }
-        }
+        FileCopyUtil.copy(src, dest);
     }
 
     /**
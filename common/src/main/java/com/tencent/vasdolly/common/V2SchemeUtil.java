@@ -16,7 +16,9 @@
 
 package com.tencent.vasdolly.common;
 
+import com.tencent.vasdolly.common.apk.ApkDataSource;
 import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.FileDataSource;
 import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
 import com.tencent.vasdolly.common.apk.ZipUtils;
 
@@ -25,6 +27,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -92,23 +95,10 @@ public class V2SchemeUtil {
         if (channelFile == null || !channelFile.exists() || !channelFile.isFile()) {
             return null;
         }
-        RandomAccessFile apk = null;
+        FileDataSource apk = null;
         try {
-            apk = new RandomAccessFile(channelFile, "r");
-            //1.find the EOCD
-            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(apk);
-            ByteBuffer eocd = eocdAndOffsetInFile.getFirst();
-            long eocdOffset = eocdAndOffsetInFile.getSecond();
-
-            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(apk, eocdOffset)) {
-                throw new SignatureNotFoundException("ZIP64 APK not supported");
-            }
-
-            //2.find the APK Signing Block. The block immediately precedes the Central Directory.
-            long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocd, eocdOffset);//通过eocd找到中央目录的偏移量
-            //3. find the apk V2 signature block
-            Pair<ByteBuffer, Long> apkSignatureBlock = ApkSigningBlockUtils.findApkSigningBlock(apk, centralDirOffset);//找到V2签名块的内容和偏移量
-            return apkSignatureBlock.getFirst();
+            apk = FileDataSource.open(channelFile);
+            return getApkSigningBlock(apk);
         } finally {
             if (apk != null) {
                 apk.close();
@@ -116,6 +106,31 @@ public class V2SchemeUtil {
         }
     }
 
+    /**
+     * get apk signature block from apk by positional reads , the source may be shared with other threads
+     *
+     * @param apk
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static ByteBuffer getApkSigningBlock(ApkDataSource apk) throws SignatureNotFoundException, IOException {
+        //1.find the EOCD
+        Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(apk);
+        ByteBuffer eocd = eocdAndOffsetInFile.getFirst();
+        long eocdOffset = eocdAndOffsetInFile.getSecond();
+
+        if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(apk, eocdOffset)) {
+            throw new SignatureNotFoundException("ZIP64 APK not supported");
+        }
+
+        //2.find the APK Signing Block. The block immediately precedes the Central Directory.
+        long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocd, eocdOffset);//通过eocd找到中央目录的偏移量
+        //3. find the apk V2 signature block
+        Pair<ByteBuffer, Long> apkSignatureBlock = ApkSigningBlockUtils.findApkSigningBlock(apk, centralDirOffset);//找到V2签名块的内容和偏移量
+        return apkSignatureBlock.getFirst();
+    }
+
     /**
      * get the all Apk Section info from apk which is signatured by v2
      *
@@ -147,9 +162,10 @@ public class V2SchemeUtil {
             Pair<ByteBuffer, Long> centralDir = findCentralDir(apk, centralDirOffset, (int) (eocdOffset - centralDirOffset));
 
             ApkSectionInfo apkSectionInfo = new ApkSectionInfo();
+            apkSectionInfo.baseApk = baseApk;
             apkSectionInfo.apkSize = baseApk.length();
             apkSectionInfo.lowMemory = lowMemory;
-            // 当apk太大时，复制到ByteBuffer会超过ByteBuffer的可分配空间
+            // 较大的apk不复制到内存，内容块直接从基础包复制到渠道包，既不占用大量Java堆内存，也省去一次复制
             if (apkSectionInfo.apkSize > ApkSectionInfo.COPY_CONTENT_MAX_SIZE) {
                 apkSectionInfo.lowMemory = true;
             }
@@ -174,6 +190,62 @@ public class V2SchemeUtil {
         }
     }
 
+    /**
+     * get the all Apk Section info from apk which is signatured by v2.
+     * unlike {@link #getApkSectionInfo(File, boolean)}, all sections are read-only slices of one memory mapping of the apk,
+     * so they cost no java heap and can be shared by every channel write on every thread.
+     * if the apk is too large to be mapped into one buffer , fall back to the lowMemory mode
+     *
+     * @param baseApk
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException not have v2 sinature
+     */
+    public static ApkSectionInfo getMappedApkSectionInfo(File baseApk) throws IOException, SignatureNotFoundException {
+        if (baseApk.length() > Integer.MAX_VALUE) {
+            System.out.println("baseApk : " + baseApk.getAbsolutePath() + " is too large to map , use lowMemory mode");
+            return getApkSectionInfo(baseApk, true);
+        }
+        RandomAccessFile apk = null;
+        try {
+            apk = new RandomAccessFile(baseApk, "r");
+            //1.find the EOCD and offset
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(apk);
+            long eocdOffset = eocdAndOffsetInFile.getSecond();
+
+            if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(apk, eocdOffset)) {
+                throw new SignatureNotFoundException("ZIP64 APK not supported");
+            }
+
+            //2.find the APK Signing Block. The block immediately precedes the Central Directory.
+            long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocdAndOffsetInFile.getFirst(), eocdOffset);
+            long apkSigningBlockOffset = ApkSigningBlockUtils.findApkSigningBlock(apk, centralDirOffset).getSecond();
+
+            //3.map the whole apk once , every section is a slice of the mapping
+            ByteBuffer mapped = apk.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, apk.length());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+            ApkSectionInfo apkSectionInfo = new ApkSectionInfo();
+            apkSectionInfo.baseApk = baseApk;
+            apkSectionInfo.apkSize = mapped.capacity();
+            apkSectionInfo.mapped = true;
+            apkSectionInfo.contentEntry = Pair.create(ApkSigningBlockUtils.sliceFromTo(mapped, 0, (int) apkSigningBlockOffset), 0L);
+            apkSectionInfo.apkSigningBlock = Pair.create(ApkSigningBlockUtils.sliceFromTo(mapped, (int) apkSigningBlockOffset, (int) centralDirOffset), apkSigningBlockOffset);
+            apkSectionInfo.centralDir = Pair.create(ApkSigningBlockUtils.sliceFromTo(mapped, (int) centralDirOffset, (int) eocdOffset), centralDirOffset);
+            apkSectionInfo.eocd = Pair.create(ApkSigningBlockUtils.sliceFromTo(mapped, (int) eocdOffset, mapped.capacity()), eocdOffset);
+
+            //4. check Paramters
+            apkSectionInfo.checkParamters();
+
+            System.out.println("baseApk : " + baseApk.getAbsolutePath() + "\nApkSectionInfo = " + apkSectionInfo);
+            return apkSectionInfo;
+        } finally {
+            if (apk != null) {
+                apk.close();
+            }
+        }
+    }
+
     /**
      * get the CentralDir of apk
      *
@@ -275,7 +347,7 @@ public class V2SchemeUtil {
             //2.2 write id
             newApkV2Scheme.putInt(entry.getKey());
             //2.3 write value
-            newApkV2Scheme.put(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+            newApkV2Scheme.put(byteBuffer.duplicate());
         }
 
         newApkV2Scheme.putLong(length);//3.write size (same as the one above)
@@ -0,0 +1,43 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common.apk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The bytes of an apk which are read by position.
+ * <p>
+ * A read does not depend on any file pointer , so the implementations must allow several threads to read one
+ * source at the same time.
+ */
+public interface ApkDataSource {
+
+    /**
+     * size of the apk in bytes
+     */
+    long size() throws IOException;
+
+    /**
+     * read {@code dst.remaining()} bytes at position into dst , the position of dst is advanced to its limit
+     *
+     * @param dst
+     * @param position offset in the apk
+     * @throws IOException the bytes are beyond the end of apk , or an I/O error occurs
+     */
+    void read(ByteBuffer dst, long position) throws IOException;
+}
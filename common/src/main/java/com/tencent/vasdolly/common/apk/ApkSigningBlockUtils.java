@@ -12,7 +12,7 @@ import java.nio.ByteOrder;
  * https://cs.android.com/android/platform/superproject/+/master:frameworks/base/core/java/android/util/apk/ApkSigningBlockUtils.java
  */
 public class ApkSigningBlockUtils {
-    private static final long CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
+    public static final int CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
     public static final int ANDROID_COMMON_PAGE_ALIGNMENT_BYTES = 4096;
     public static final int VERITY_PADDING_BLOCK_ID = 0x42726577;
 
@@ -35,6 +35,21 @@ public class ApkSigningBlockUtils {
      */
     public static SignatureInfo findSignature(RandomAccessFile apk, int blockId)
             throws IOException, SignatureNotFoundException {
+        return findSignature(FileDataSource.wrap(apk), blockId);
+    }
+
+    /**
+     * Returns the APK Signature Scheme block contained in the provided APK data source and the
+     * additional information relevant for verifying the block against the file.
+     *
+     * @param blockId the ID value in the APK Signing Block's sequence of ID-value pairs
+     *                identifying the appropriate block to find, e.g. the APK Signature Scheme v2
+     *                block ID.
+     * @throws SignatureNotFoundException if the APK is not signed using this scheme.
+     * @throws IOException                if an I/O error occurs while reading the APK file.
+     */
+    public static SignatureInfo findSignature(ApkDataSource apk, int blockId)
+            throws IOException, SignatureNotFoundException {
         // Find the ZIP End of Central Directory (EoCD) record.
         Pair<ByteBuffer, Long> eocdAndOffsetInFile = getEocd(apk);
         ByteBuffer eocd = eocdAndOffsetInFile.getFirst();
@@ -67,6 +82,17 @@ public class ApkSigningBlockUtils {
      */
     public static Pair<ByteBuffer, Long> getEocd(RandomAccessFile apk)
             throws IOException, SignatureNotFoundException {
+        return getEocd(FileDataSource.wrap(apk));
+    }
+
+    /**
+     * Returns the ZIP End of Central Directory (EoCD) and its offset in the data source.
+     *
+     * @throws IOException                if an I/O error occurs while reading the file.
+     * @throws SignatureNotFoundException if the EoCD could not be found.
+     */
+    public static Pair<ByteBuffer, Long> getEocd(ApkDataSource apk)
+            throws IOException, SignatureNotFoundException {
         Pair<ByteBuffer, Long> eocdAndOffsetInFile =
                 ZipUtils.findZipEndOfCentralDirectoryRecord(apk);
         if (eocdAndOffsetInFile == null) {
@@ -97,6 +123,20 @@ public class ApkSigningBlockUtils {
     public static Pair<ByteBuffer, Long> findApkSigningBlock(
             RandomAccessFile apk, long centralDirOffset)
             throws IOException, SignatureNotFoundException {
+        return findApkSigningBlock(FileDataSource.wrap(apk), centralDirOffset);
+    }
+
+    /**
+     * Returns the APK Signing Block which immediately precedes the central dir and its offset in
+     * the data source. Only positional reads are used , so the source may be shared with other
+     * threads.
+     *
+     * @throws IOException                if an I/O error occurs while reading the file.
+     * @throws SignatureNotFoundException if there is no APK Signing Block.
+     */
+    public static Pair<ByteBuffer, Long> findApkSigningBlock(
+            ApkDataSource apk, long centralDirOffset)
+            throws IOException, SignatureNotFoundException {
         // FORMAT:
         // OFFSET       DATA TYPE  DESCRIPTION
         // * @+0  bytes uint64:    size in bytes (excluding this field)
@@ -114,8 +154,7 @@ public class ApkSigningBlockUtils {
         // * 16 bytes: magic
         ByteBuffer footer = ByteBuffer.allocate(24);
         footer.order(ByteOrder.LITTLE_ENDIAN);
-        apk.seek(centralDirOffset - footer.capacity());
-        apk.readFully(footer.array(), footer.arrayOffset(), footer.capacity());
+        apk.read(footer, centralDirOffset - footer.capacity());
         if ((footer.getLong(8) != APK_SIG_BLOCK_MAGIC_LO)
                 || (footer.getLong(16) != APK_SIG_BLOCK_MAGIC_HI)) {
             throw new SignatureNotFoundException(
@@ -136,8 +175,8 @@ public class ApkSigningBlockUtils {
         }
         ByteBuffer apkSigBlock = ByteBuffer.allocate(totalSize);
         apkSigBlock.order(ByteOrder.LITTLE_ENDIAN);
-        apk.seek(apkSigBlockOffset);
-        apk.readFully(apkSigBlock.array(), apkSigBlock.arrayOffset(), apkSigBlock.capacity());
+        apk.read(apkSigBlock, apkSigBlockOffset);
+        apkSigBlock.clear();
         long apkSigBlockSizeInHeader = apkSigBlock.getLong(0);
         if (apkSigBlockSizeInHeader != apkSigBlockSizeInFooter) {
             throw new SignatureNotFoundException(
@@ -199,7 +238,8 @@ public class ApkSigningBlockUtils {
      * Returns new byte buffer whose content is a shared subsequence of this buffer's content
      * between the specified start (inclusive) and end (exclusive) positions. As opposed to
      * {@link ByteBuffer#slice()}, the returned buffer's byte order is the same as the source
-     * buffer's byte order.
+     * buffer's byte order. The position and limit of the source buffer are never touched, so
+     * the source buffer may be sliced by several threads at the same time.
      */
     public static ByteBuffer sliceFromTo(ByteBuffer source, int start, int end) {
         if (start < 0) {
@@ -212,20 +252,13 @@ public class ApkSigningBlockUtils {
         if (end > source.capacity()) {
             throw new IllegalArgumentException("end > capacity: " + end + " > " + capacity);
         }
-        int originalLimit = source.limit();
-        int originalPosition = source.position();
-        try {
-            source.position(0);
-            source.limit(end);
-            source.position(start);
-            ByteBuffer result = source.slice();
-            result.order(source.order());
-            return result;
-        } finally {
-            source.position(0);
-            source.limit(originalLimit);
-            source.position(originalPosition);
-        }
+        ByteBuffer view = source.duplicate();
+        view.position(0);
+        view.limit(end);
+        view.position(start);
+        ByteBuffer result = view.slice();
+        result.order(source.order());
+        return result;
     }
 
     /**
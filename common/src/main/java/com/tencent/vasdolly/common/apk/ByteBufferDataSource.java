@@ -0,0 +1,55 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common.apk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link ApkDataSource} of an apk in memory , such as a downloaded or mapped apk.
+ * <p>
+ * The bytes between the position and the limit of the buffer are the apk , the buffer itself is never modified ,
+ * so one source can be shared by all threads.
+ */
+public class ByteBufferDataSource implements ApkDataSource {
+    private final ByteBuffer buffer;
+
+    public ByteBufferDataSource(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new RuntimeException("ByteBufferDataSource , param invalid, buffer = null");
+        }
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public long size() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        if (position < 0 || position + dst.remaining() > buffer.capacity()) {
+            throw new EOFException("Unexpected end of buffer , position : " + position + " , size : " + dst.remaining()
+                    + " , capacity : " + buffer.capacity());
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.position((int) position);
+        source.limit((int) position + dst.remaining());
+        dst.put(source);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common.apk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * An {@link ApkDataSource} of a {@link SeekableByteChannel} , such as a channel of a zip file system or of an
+ * object store client.
+ * <p>
+ * A SeekableByteChannel has only one position , so the seek and the read are done under the lock of the channel.
+ * A {@link FileChannel} is read by its positional reads without locking.
+ */
+public class ChannelDataSource implements ApkDataSource {
+    private final SeekableByteChannel channel;
+    // FileChannel支持按位置读取，不需要加锁
+    private final FileDataSource fileSource;
+
+    /**
+     * @param channel it is not closed by the source
+     */
+    public ChannelDataSource(SeekableByteChannel channel) {
+        if (channel == null) {
+            throw new RuntimeException("ChannelDataSource , param invalid, channel = null");
+        }
+        this.channel = channel;
+        this.fileSource = channel instanceof FileChannel ? new FileDataSource((FileChannel) channel) : null;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        if (fileSource != null) {
+            fileSource.read(dst, position);
+            return;
+        }
+        synchronized (channel) {
+            channel.position(position);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    throw new EOFException("Unexpected end of channel , position : " + channel.position());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common.apk;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link ApkDataSource} of a local file , reads by {@link FileChannel#read(ByteBuffer, long)}.
+ * <p>
+ * Positional reads of a FileChannel do not move the file pointer and may run concurrently , so one source can be
+ * shared by all threads. NOTE: interrupting a thread which is reading closes the channel for all threads.
+ */
+public class FileDataSource implements ApkDataSource, Closeable {
+    private final FileChannel channel;
+    private final Closeable owner;
+
+    /**
+     * wrap the channel , it is not closed by {@link #close()}
+     *
+     * @param channel
+     */
+    public FileDataSource(FileChannel channel) {
+        this(channel, null);
+    }
+
+    private FileDataSource(FileChannel channel, Closeable owner) {
+        if (channel == null) {
+            throw new RuntimeException("FileDataSource , param invalid, channel = null");
+        }
+        this.channel = channel;
+        this.owner = owner;
+    }
+
+    /**
+     * open the file for reading , it is closed by {@link #close()}
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static FileDataSource open(File file) throws IOException {
+        if (file == null || !file.exists() || !file.isFile()) {
+            throw new RuntimeException("FileDataSource open , param invalid, file = " + file);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        return new FileDataSource(raf.getChannel(), raf);
+    }
+
+    /**
+     * wrap the file , the file pointer of raf is never used
+     */
+    public static FileDataSource wrap(RandomAccessFile raf) {
+        return new FileDataSource(raf.getChannel());
+    }
+
+    @Override
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file , position : " + position);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner != null) {
+            owner.close();
+        }
+    }
+}
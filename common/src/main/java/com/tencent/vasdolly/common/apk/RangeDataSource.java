@@ -0,0 +1,183 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common.apk;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link ApkDataSource} of a remote apk which is fetched by ranges , such as the HTTP range requests to an
+ * artifact store.
+ * <p>
+ * The reader reads the apk by many small reads (EOCD , footer and header of APK Signing Block , headers of
+ * id-value pairs , values). The source fetches the apk by aligned blocks of blockSize , the missing blocks of a read
+ * are fetched by one range request and the recent blocks are cached. So reading the channel of an apk usually
+ * costs 2 or 3 range requests : the tail with the EOCD , and the end of APK Signing Block before the central dir.
+ * <p>
+ * The source can be shared by all threads , a block may be fetched twice when two threads miss it at once.
+ */
+public class RangeDataSource implements ApkDataSource {
+    public static final int DEFAULT_BLOCK_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_CACHED_BLOCKS = 16;
+
+    /**
+     * fetch a range of the apk
+     */
+    public interface RangeFetcher {
+        /**
+         * fetch {@code dst.remaining()} bytes at offset into dst , like a HTTP request with
+         * {@code Range: bytes=offset-(offset + dst.remaining() - 1)}
+         *
+         * @param offset
+         * @param dst
+         * @throws IOException
+         */
+        void fetch(long offset, ByteBuffer dst) throws IOException;
+    }
+
+    private final long size;
+    private final RangeFetcher fetcher;
+    private final int blockSize;
+    // 最近使用的块，key是块的序号
+    private final Map<Long, byte[]> blocks;
+    private final AtomicLong fetchCount = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+
+    /**
+     * @param size    size of the apk , such as the Content-Length of a HEAD request
+     * @param fetcher
+     */
+    public RangeDataSource(long size, RangeFetcher fetcher) {
+        this(size, fetcher, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_CACHED_BLOCKS);
+    }
+
+    /**
+     * @param size            size of the apk , such as the Content-Length of a HEAD request
+     * @param fetcher
+     * @param blockSize       the min size of a range request
+     * @param maxCachedBlocks
+     */
+    public RangeDataSource(long size, RangeFetcher fetcher, int blockSize, final int maxCachedBlocks) {
+        if (size < 0 || fetcher == null || blockSize <= 0 || maxCachedBlocks <= 0) {
+            throw new RuntimeException("RangeDataSource , param invalid, size = " + size + " , fetcher = " + fetcher
+                    + " , blockSize = " + blockSize + " , maxCachedBlocks = " + maxCachedBlocks);
+        }
+        this.size = size;
+        this.fetcher = fetcher;
+        this.blockSize = blockSize;
+        this.blocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > maxCachedBlocks;
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(ByteBuffer dst, long position) throws IOException {
+        int length = dst.remaining();
+        if (position < 0 || position + length > size) {
+            throw new EOFException("Unexpected end of apk , position : " + position + " , size : " + length + " , apk size : " + size);
+        }
+        if (length == 0) {
+            return;
+        }
+        long firstBlock = position / blockSize;
+        long lastBlock = (position + length - 1) / blockSize;
+        byte[][] parts = new byte[(int) (lastBlock - firstBlock + 1)][];
+        //1. cached blocks
+        long firstMissing = -1;
+        long lastMissing = -1;
+        synchronized (blocks) {
+            for (long block = firstBlock; block <= lastBlock; block++) {
+                byte[] part = blocks.get(block);
+                parts[(int) (block - firstBlock)] = part;
+                if (part == null) {
+                    if (firstMissing == -1) {
+                        firstMissing = block;
+                    }
+                    lastMissing = block;
+                }
+            }
+        }
+        //2. fetch the missing blocks by one range request
+        if (firstMissing != -1) {
+            long rangeStart = firstMissing * blockSize;
+            long rangeEnd = Math.min(size, (lastMissing + 1) * blockSize);
+            ByteBuffer range = ByteBuffer.allocate((int) (rangeEnd - rangeStart));
+            fetcher.fetch(rangeStart, range);
+            if (range.hasRemaining()) {
+                throw new EOFException("Incomplete range , offset : " + rangeStart + " , size : " + range.capacity() + " , fetched : " + range.position());
+            }
+            fetchCount.incrementAndGet();
+            fetchedBytes.addAndGet(range.capacity());
+            byte[] bytes = range.array();
+            synchronized (blocks) {
+                for (long block = firstMissing; block <= lastMissing; block++) {
+                    int from = (int) ((block - firstMissing) * blockSize);
+                    byte[] part = new byte[Math.min(blockSize, bytes.length - from)];
+                    System.arraycopy(bytes, from, part, 0, part.length);
+                    parts[(int) (block - firstBlock)] = part;
+                    blocks.put(block, part);
+                }
+            }
+        }
+        //3. copy the bytes of read
+        long filePosition = position;
+        for (int i = 0; i < parts.length; i++) {
+            int offsetInBlock = (int) (filePosition % blockSize);
+            int count = Math.min(parts[i].length - offsetInBlock, dst.remaining());
+            dst.put(parts[i], offsetInBlock, count);
+            filePosition += count;
+        }
+    }
+
+    /**
+     * count of range requests
+     */
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    /**
+     * bytes of all range requests
+     */
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RangeDataSource{" +
+                "size=" + size +
+                ", blockSize=" + blockSize +
+                ", fetchCount=" + fetchCount +
+                ", fetchedBytes=" + fetchedBytes +
+                '}';
+    }
+}
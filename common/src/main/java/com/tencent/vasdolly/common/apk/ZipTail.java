@@ -0,0 +1,188 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.common.apk;
+
+import com.tencent.vasdolly.common.ChannelConstants;
+import com.tencent.vasdolly.common.Pair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The tail window of a zip file : the EOCD , the zip comment and the v1 channel at the end of the comment.
+ * <p>
+ * The window is read by one positional read of at most {@link #MAX_SIZE} bytes , which holds the EOCD with the
+ * longest comment , then the EOCD , the comment and the v1 channel are parsed from memory. The buffer is reused by
+ * the next {@link #read(ApkDataSource)} , so a ZipTail is read by one thread at a time ; once it is read , the getters
+ * may be called by all threads , the values returned by them are copies.
+ */
+public class ZipTail {
+    // EOCD和最长的注释
+    public static final int MAX_SIZE = ZipUtils.ZIP_EOCD_REC_MIN_SIZE + 0xffff;
+    private static final int ZIP_EOCD_COMMENT_LENGTH_FIELD_OFFSET = 20;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_LOCATOR_SIG = 0x07064b50;
+
+    private ByteBuffer buffer;
+    private ByteBuffer window;
+    private long fileSize;
+    private long windowOffset;
+    private Pair<ByteBuffer, Long> eocd;
+    private boolean zip64;
+
+    /**
+     * read the tail window of at most {@link #MAX_SIZE} bytes
+     *
+     * @param source
+     * @return this
+     * @throws IOException
+     */
+    public ZipTail read(ApkDataSource source) throws IOException {
+        return read(source, MAX_SIZE);
+    }
+
+    /**
+     * read the tail window of at most maxSize bytes , the EOCD is found only if its comment is in the window
+     *
+     * @param source
+     * @param maxSize
+     * @return this
+     * @throws IOException
+     */
+    public ZipTail read(ApkDataSource source, int maxSize) throws IOException {
+        if (source == null || maxSize < ZipUtils.ZIP_EOCD_REC_MIN_SIZE || maxSize > MAX_SIZE) {
+            throw new RuntimeException("ZipTail read , param invalid, source = " + source + " , maxSize = " + maxSize);
+        }
+        fileSize = source.size();
+        int size = (int) Math.min(fileSize, maxSize);
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(maxSize);
+        }
+        //1. one read of the window
+        windowOffset = fileSize - size;
+        buffer.clear();
+        buffer.limit(size);
+        source.read(buffer, windowOffset);
+        buffer.flip();
+        window = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        //2. EOCD and ZIP64 locator which immediately precedes it
+        eocd = ZipUtils.findZipEndOfCentralDirectoryRecord(window, windowOffset);
+        zip64 = false;
+        if (eocd != null) {
+            long locatorOffset = eocd.getSecond() - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locatorOffset >= windowOffset) {
+                zip64 = window.getInt((int) (locatorOffset - windowOffset)) == ZIP64_EOCD_LOCATOR_SIG;
+            } else if (locatorOffset >= 0) {
+                zip64 = ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(source, eocd.getSecond());
+            }
+        }
+        return this;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getWindowOffset() {
+        return windowOffset;
+    }
+
+    public int getWindowSize() {
+        return window == null ? 0 : window.capacity();
+    }
+
+    public boolean hasEocd() {
+        return eocd != null;
+    }
+
+    /**
+     * @return -1 if the EOCD is not found
+     */
+    public long getEocdOffset() {
+        return eocd == null ? -1 : eocd.getSecond();
+    }
+
+    /**
+     * a copy of the EOCD with the comment and its offset in file , the same as
+     * {@link ApkSigningBlockUtils#getEocd(ApkDataSource)}
+     *
+     * @return null if the EOCD is not found
+     */
+    public Pair<ByteBuffer, Long> getEocd() {
+        if (eocd == null) {
+            return null;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(eocd.getFirst().remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(eocd.getFirst().duplicate());
+        copy.flip();
+        return Pair.create(copy, eocd.getSecond());
+    }
+
+    /**
+     * @return 0 if the EOCD is not found
+     */
+    public int getCommentLength() {
+        return eocd == null ? 0 : ZipUtils.getUnsignedInt16(eocd.getFirst(), ZIP_EOCD_COMMENT_LENGTH_FIELD_OFFSET);
+    }
+
+    public boolean isZip64() {
+        return zip64;
+    }
+
+    /**
+     * whether the window ends with the v1 magic
+     */
+    public boolean containV1Magic() {
+        int magicPosition = getWindowSize() - ChannelConstants.V1_MAGIC.length;
+        if (magicPosition < 0) {
+            return false;
+        }
+        for (int i = 0; i < ChannelConstants.V1_MAGIC.length; i++) {
+            if (window.get(magicPosition + i) != ChannelConstants.V1_MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * the v1 channel at the end of file : channel + 2 bytes length + magic
+     *
+     * @return null if there is no v1 channel , or the channel is out of the zip comment
+     */
+    public byte[] getV1Channel() {
+        if (!containV1Magic()) {
+            return null;
+        }
+        int lengthPosition = getWindowSize() - ChannelConstants.V1_MAGIC.length - ChannelConstants.SHORT_LENGTH;
+        if (lengthPosition < 0) {
+            return null;
+        }
+        int length = window.getShort(lengthPosition);
+        // 渠道必须在窗口内，找到EOCD时还必须在注释内
+        int start = eocd == null ? 0 : (int) (eocd.getSecond() - windowOffset) + ZipUtils.ZIP_EOCD_REC_MIN_SIZE;
+        if (length <= 0 || lengthPosition - length < start) {
+            return null;
+        }
+        byte[] channel = new byte[length];
+        ByteBuffer source = window.duplicate();
+        source.position(lengthPosition - length);
+        source.get(channel);
+        return channel;
+    }
+}
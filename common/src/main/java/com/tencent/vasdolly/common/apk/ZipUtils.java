@@ -52,6 +52,20 @@ public abstract class ZipUtils {
      */
     static Pair<ByteBuffer, Long> findZipEndOfCentralDirectoryRecord(RandomAccessFile zip)
             throws IOException {
+        return findZipEndOfCentralDirectoryRecord(FileDataSource.wrap(zip));
+    }
+
+    /**
+     * Returns the ZIP End of Central Directory record of the provided ZIP data source. Only
+     * positional reads are used , so the source may be shared with other threads.
+     *
+     * @return contents of the ZIP End of Central Directory record and the record's offset in the
+     *         file or {@code null} if the file does not contain the record.
+     *
+     * @throws IOException if an I/O error occurs while reading the file.
+     */
+    public static Pair<ByteBuffer, Long> findZipEndOfCentralDirectoryRecord(ApkDataSource zip)
+            throws IOException {
         // ZIP End of Central Directory (EOCD) record is located at the very end of the ZIP archive.
         // The record can be identified by its 4-byte signature/magic which is located at the very
         // beginning of the record. A complication is that the record is variable-length because of
@@ -62,7 +76,7 @@ public abstract class ZipUtils {
         // exactly the remaining bytes in the buffer. The search is bounded because the maximum
         // size of the comment field is 65535 bytes because the field is an unsigned 16-bit number.
 
-        long fileSize = zip.length();
+        long fileSize = zip.size();
         if (fileSize < ZIP_EOCD_REC_MIN_SIZE) {
             return null;
         }
@@ -94,7 +108,7 @@ public abstract class ZipUtils {
      * @throws IOException if an I/O error occurs while reading the file.
      */
     private static Pair<ByteBuffer, Long> findZipEndOfCentralDirectoryRecord(
-            RandomAccessFile zip, int maxCommentSize) throws IOException {
+            ApkDataSource zip, int maxCommentSize) throws IOException {
         // ZIP End of Central Directory (EOCD) record is located at the very end of the ZIP archive.
         // The record can be identified by its 4-byte signature/magic which is located at the very
         // beginning of the record. A complication is that the record is variable-length because of
@@ -109,7 +123,7 @@ public abstract class ZipUtils {
             throw new IllegalArgumentException("maxCommentSize: " + maxCommentSize);
         }
 
-        long fileSize = zip.length();
+        long fileSize = zip.size();
         if (fileSize < ZIP_EOCD_REC_MIN_SIZE) {
             // No space for EoCD record in the file.
             return null;
@@ -120,27 +134,46 @@ public abstract class ZipUtils {
         ByteBuffer buf = ByteBuffer.allocate(ZIP_EOCD_REC_MIN_SIZE + maxCommentSize);
         buf.order(ByteOrder.LITTLE_ENDIAN);
         long bufOffsetInFile = fileSize - buf.capacity();
-        zip.seek(bufOffsetInFile);
-        zip.readFully(buf.array(), buf.arrayOffset(), buf.capacity());
-        int eocdOffsetInBuf = findZipEndOfCentralDirectoryRecord(buf);
+        zip.read(buf, bufOffsetInFile);
+        buf.clear();
+        return findZipEndOfCentralDirectoryRecord(buf, bufOffsetInFile);
+    }
+
+    /**
+     * Returns the ZIP End of Central Directory record in the provided tail of a ZIP file. The
+     * record is found if its comment fits in the tail.
+     *
+     * <p>NOTE: Byte order of {@code tail} must be little-endian.
+     *
+     * @param tail the last {@code tail.capacity()} bytes of the file.
+     * @param tailOffset offset of the tail in the file.
+     *
+     * @return the slice of {@code tail} which is the ZIP End of Central Directory record and the
+     *         record's offset in the file or {@code null} if the tail does not contain the record.
+     */
+    public static Pair<ByteBuffer, Long> findZipEndOfCentralDirectoryRecord(
+            ByteBuffer tail, long tailOffset) {
+        int eocdOffsetInBuf = findZipEndOfCentralDirectoryRecord(tail);
         if (eocdOffsetInBuf == -1) {
             // No EoCD record found in the buffer
             return null;
         }
         // EoCD found
-        buf.position(eocdOffsetInBuf);
-        ByteBuffer eocd = buf.slice();
+        ByteBuffer eocd = tail.duplicate();
+        eocd.position(eocdOffsetInBuf);
+        eocd = eocd.slice();
         eocd.order(ByteOrder.LITTLE_ENDIAN);
-        return Pair.create(eocd, bufOffsetInFile + eocdOffsetInBuf);
+        return Pair.create(eocd, tailOffset + eocdOffsetInBuf);
     }
 
     /**
      * Returns the position at which ZIP End of Central Directory record starts in the provided
      * buffer or {@code -1} if the record is not present.
      *
-     * <p>NOTE: Byte order of {@code zipContents} must be little-endian.
+     * <p>NOTE: Byte order of {@code zipContents} must be little-endian. The buffer may also hold
+     * only the tail of the archive , then the record is found if its comment fits in the buffer.
      */
-    private static int findZipEndOfCentralDirectoryRecord(ByteBuffer zipContents) {
+    public static int findZipEndOfCentralDirectoryRecord(ByteBuffer zipContents) {
         assertByteOrderLittleEndian(zipContents);
 
         // ZIP End of Central Directory (EOCD) record is located at the very end of the ZIP archive.
@@ -186,6 +219,21 @@ public abstract class ZipUtils {
      */
     public static final boolean isZip64EndOfCentralDirectoryLocatorPresent(
             RandomAccessFile zip, long zipEndOfCentralDirectoryPosition) throws IOException {
+        return isZip64EndOfCentralDirectoryLocatorPresent(
+                FileDataSource.wrap(zip), zipEndOfCentralDirectoryPosition);
+    }
+
+    /**
+     * Returns {@code true} if the provided data source contains a ZIP64 End of Central Directory
+     * Locator.
+     *
+     * @param zipEndOfCentralDirectoryPosition offset of the ZIP End of Central Directory record
+     *        in the file.
+     *
+     * @throws IOException if an I/O error occurs while reading the file.
+     */
+    public static final boolean isZip64EndOfCentralDirectoryLocatorPresent(
+            ApkDataSource zip, long zipEndOfCentralDirectoryPosition) throws IOException {
 
         // ZIP64 End of Central Directory Locator immediately precedes the ZIP End of Central
         // Directory Record.
@@ -194,10 +242,11 @@ public abstract class ZipUtils {
             return false;
         }
 
-        zip.seek(locatorPosition);
-        // RandomAccessFile.readInt assumes big-endian byte order, but ZIP format uses
+        ByteBuffer signature = ByteBuffer.allocate(4);
+        zip.read(signature, locatorPosition);
+        // ByteBuffer assumes big-endian byte order by default, but ZIP format uses
         // little-endian.
-        return zip.readInt() == ZIP64_EOCD_LOCATOR_SIG_REVERSE_BYTE_ORDER;
+        return signature.getInt(0) == ZIP64_EOCD_LOCATOR_SIG_REVERSE_BYTE_ORDER;
     }
 
     /**
@@ -20,8 +20,10 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.util.Log;
 
+import com.tencent.vasdolly.reader.ChannelCache;
 import com.tencent.vasdolly.reader.ChannelReader;
 import com.tencent.vasdolly.reader.IdValueReader;
+import com.tencent.vasdolly.reader.IdValues;
 
 import java.io.File;
 import java.nio.ByteBuffer;
@@ -33,21 +35,40 @@ import java.util.Map;
 
 public class ChannelReaderUtil {
     private static final String TAG = "ChannelReaderUtil";
-    private static String mChannelCache;
+    private static final String CACHE_DIR = "vasdolly";
+    private static volatile String mChannelCache;
 
 
     public static String getChannel(Context context) {
         if (mChannelCache == null) {
-            String channel = getChannelByV2(context);
-            if (channel == null) {
-                channel = getChannelByV1(context);
-            }
-            mChannelCache = channel;
+            mChannelCache = readChannel(context);
         }
 
         return mChannelCache;
     }
 
+    /**
+     * 先读取私有目录中的渠道缓存，APK更新后缓存失效
+     * 没有缓存时只打开一次APK，先读取V2渠道，没有时读取V1渠道，并保存到缓存
+     *
+     * @param context
+     * @return
+     */
+    private static String readChannel(Context context) {
+        String apkPath = getApkPath(context);
+        if (apkPath == null) {
+            return "";
+        }
+        try {
+            String channel = getChannelCache(context).getChannel(new File(apkPath));
+            Log.i(TAG, "getChannel , channel = " + channel);
+            return channel != null ? channel : "";
+        } catch (Exception e) {
+            Log.e(TAG, "getChannel , error", e);
+            return "";
+        }
+    }
+
     /**
      * if apk use v2 signature , please use this method to get channel info
      *
@@ -102,14 +123,32 @@ public class ChannelReaderUtil {
     }
 
     /**
-     * find all Id-Value Pair from Apk in the v2 signature mode
+     * get byte[] values of several ids from apk in the v2 signature mode , the apk is read only once
+     *
+     * @param context
+     * @param ids
+     * @return the values of ids , the value of an absent id is null ; null if apk not have apk signature block
+     */
+    public static IdValues getByteValuesByIds(Context context, int... ids) {
+        String apkPath = getApkPath(context);
+        IdValues values = IdValueReader.getByteValuesByIds(new File(apkPath), ids);
+        Log.i(TAG, "getByteValuesByIds , values = " + values);
+        return values;
+    }
+
+    /**
+     * find all Id-Value Pair from Apk in the v2 signature mode , they are cached in the private dir until apk is updated
      *
      * @param context
      * @return
      */
     public static Map<Integer, ByteBuffer> getAllIdValueMap(Context context) {
         String apkPath = getApkPath(context);
-        return IdValueReader.getAllIdValueMap(new File(apkPath));
+        return getChannelCache(context).getAllIdValueMap(new File(apkPath));
+    }
+
+    private static ChannelCache getChannelCache(Context context) {
+        return new ChannelCache(new File(context.getCacheDir(), CACHE_DIR));
     }
 
     /**
@@ -15,6 +15,10 @@
  */
 package com.tencent.vasdolly.plugin.extension
 
+import com.tencent.vasdolly.verify.SamplingPolicy
+import com.tencent.vasdolly.verify.VerificationCache
+import com.tencent.vasdolly.verify.VerifyOptions
+import com.tencent.vasdolly.verify.VerifyProfile
 import org.gradle.api.Project
 import java.io.File
 
@@ -23,18 +27,91 @@ open class ConfigExtension(var project: Project) {
     //only fit v2 signature
     //低内存模式（仅针对V2签名，默认为false）：
     //只把签名块、中央目录和EOCD读取到内存，不把最大头的内容块读取到内存
+    //内容块由FileChannel直接从基础包复制到渠道包，不经过JVM堆内存
     //在手机上合成APK时，可以使用该模式
+    //为false时根据基础包大小和Gradle进程的内存预算自动选择：不超过64MB且放得下的基础包复制到内存，更大的基础包使用低内存模式
     var lowMemory = false
 
     //是否为快速模式，即不验证渠道名
     var fastMode = false
 
+    //结构校验模式（非快速模式下生效）：只完整校验一次基础包的签名
+    //渠道包与基础包逐段比较（内容块、签名块、中央目录和EOCD），不再重新计算每个渠道包的摘要
+    var structuralVerify = false
+
+    //校验结果缓存（非快速模式下生效）：以基础包的SHA-256和渠道为key，保存校验通过的渠道包
+    //相同基础包再次生成相同渠道包时（如CI多次构建）不再校验，缓存按最近使用淘汰
+    var verifyCache = false
+
+    //校验结果缓存目录，为null时使用~/.vasdolly/verify-cache
+    var verifyCacheDir: File? = null
+
+    //抽样校验的随机比例（非快速模式下生效，0-100，默认为-1即校验所有渠道包）：
+    //总是校验第一个、最后一个和每种渠道长度的一个渠道包，其余渠道包按该比例随机校验，未抽中的渠道包只校验渠道信息
+    //抽中的渠道包校验失败时，所有渠道包都会被完整校验
+    var samplingPercent = -1
+
+    //签名校验范围（非快速模式下生效，默认为full）：只校验指定平台版本范围使用的签名方案
+    //full：apk的minSdkVersion以上的所有版本；v2：Android 7.0以上，有V2/V3签名时不再校验V1签名（不再重新计算每个文件的摘要）
+    //也可以指定"minSdk"或"minSdk-maxSdk"，如"24"或"24-33"
+    var verifyProfile = VerifyProfile.FULL
+
+    //only fit v2 signature
+    //预留渠道信息的长度（字节，默认为0即不预留）：渠道值补0到该长度
+    //渠道包生成后可以用ChannelWriter.rewriteChannelByV2原地改写不超过该长度的渠道，不需要重新生成渠道包
+    var reservedLength = 0
+
+    //only fit v2 signature
+    //多线程模式：所有线程共享同一份只读的ApkSectionInfo，同时生成多个渠道包
+    var multiThread = false
+
     //渠道列表文件
     var channelFile: File? = null
 
     //渠道包保持目录
     var outputDir: File = File(project.buildDir,"channel")
 
+    /**
+     * 从扩展属性中获取校验结果缓存，未开启时返回null
+     */
+    fun getVerificationCache(): VerificationCache? {
+        if (!verifyCache) {
+            return null
+        }
+        return verifyCacheDir?.let { VerificationCache(it, VerificationCache.DEFAULT_MAX_ENTRIES) }
+            ?: VerificationCache.getDefault()
+    }
+
+    /**
+     * 从扩展属性中获取抽样校验策略，未开启时返回null
+     */
+    fun getSamplingPolicy(): SamplingPolicy? {
+        if (samplingPercent < 0) {
+            return null
+        }
+        return SamplingPolicy(samplingPercent.toDouble())
+    }
+
+    /**
+     * 从扩展属性中获取签名校验范围
+     */
+    fun getVerificationProfile(): VerifyProfile {
+        return VerifyProfile.parse(verifyProfile)
+    }
+
+    /**
+     * 从扩展属性中获取渠道包的校验方式：快速模式、结构校验、校验结果缓存、抽样校验和签名校验范围
+     */
+    fun getVerifyOptions(): VerifyOptions {
+        return VerifyOptions.Builder()
+            .setFastMode(fastMode)
+            .setStructuralVerify(structuralVerify)
+            .setVerificationCache(getVerificationCache())
+            .setSamplingPolicy(getSamplingPolicy())
+            .setVerifyProfile(getVerificationProfile())
+            .build()
+    }
+
     /**
      * 从扩展属性中获取channelFile配置的扩展渠道列表
      */
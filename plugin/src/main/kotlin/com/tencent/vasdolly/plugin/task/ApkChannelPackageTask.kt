@@ -4,6 +4,7 @@ import com.android.build.api.artifact.SingleArtifact
 import com.android.build.api.variant.ApplicationVariant
 import com.tencent.vasdolly.plugin.extension.ChannelConfigExtension
 import com.tencent.vasdolly.plugin.util.SimpleAGPVersion
+import com.tencent.vasdolly.verify.VerifyOptions
 import org.gradle.api.GradleException
 import org.gradle.api.InvalidUserDataException
 import org.gradle.api.file.Directory
@@ -97,13 +98,15 @@ open class ApkChannelPackageTask : ChannelPackageTask() {
         println("generateChannelApk baseApk:${baseApk?.absolutePath},outputDir:${outputDir?.path}")
         val signingConfig = variant?.signingConfig!!
         val lowMemory = channelExtension?.lowMemory ?: false
-        val isFastMode = channelExtension?.fastMode ?: false
+        val verifyOptions = channelExtension?.getVerifyOptions() ?: VerifyOptions.full()
+        val reservedLength = channelExtension?.reservedLength ?: 0
+        val multiThread = channelExtension?.multiThread ?: false
         when {
             signingConfig.enableV2Signing.get() -> {
-                generateV2ChannelApk(baseApk!!, outputDir!!, lowMemory, isFastMode)
+                generateV2ChannelApk(baseApk!!, outputDir!!, lowMemory, multiThread, verifyOptions, reservedLength)
             }
             signingConfig.enableV1Signing.get() -> {
-                generateV1ChannelApk(baseApk!!, outputDir!!, isFastMode)
+                generateV1ChannelApk(baseApk!!, outputDir!!, verifyOptions)
             }
             else -> {
                 throw GradleException("not have precise channel package mode");
@@ -1,14 +1,26 @@
 package com.tencent.vasdolly.plugin.task
 
+import com.tencent.vasdolly.common.ApkSectionInfo
+import com.tencent.vasdolly.common.MemoryBudget
+import com.tencent.vasdolly.common.V1ChannelTemplate
 import com.tencent.vasdolly.reader.ChannelReader
+import com.tencent.vasdolly.verify.ChannelApkVerifier
+import com.tencent.vasdolly.verify.SamplingPolicy
+import com.tencent.vasdolly.verify.VerificationCache
 import com.tencent.vasdolly.verify.VerifyApk
+import com.tencent.vasdolly.verify.VerifyOptions
+import com.tencent.vasdolly.verify.VerifyProfile
+import com.tencent.vasdolly.writer.ChannelApkPlan
 import com.tencent.vasdolly.writer.ChannelWriter
-import com.tencent.vasdolly.writer.IdValueWriter
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.Internal
 import java.io.File
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 
 abstract class ChannelPackageTask : DefaultTask() {
     @Input
@@ -38,46 +50,344 @@ abstract class ChannelPackageTask : DefaultTask() {
         baseApk: File,
         outputDir: File,
         lowMemory: Boolean,
-        isFastMode: Boolean
+        multiThread: Boolean = false,
+        verifyOptions: VerifyOptions = VerifyOptions.full(),
+        reservedLength: Int = 0
     ) {
         println("------ $project.name:$name generate v2 channel apk  , begin ------")
-        val apkSectionInfo = IdValueWriter.getApkSectionInfo(baseApk, lowMemory)
-        channelList.forEach { channel ->
-            val apkChannelName = getChannelApkName(baseApk.name, channel)
-            println("++++++++++++++++++++++++++++++  channel($channel)  ++++++++++++++++++++++++++++++")
-            println("generateV2ChannelApk,channel=$channel,apkChannelName=$apkChannelName")
-            val destFile = File(outputDir, apkChannelName)
-            if (apkSectionInfo.lowMemory) {
-                baseApk.copyTo(destFile)
+        //结构校验模式下只完整校验一次基础包
+        val isFastMode = verifyOptions.isFastMode
+        val verifyProfile = verifyOptions.verifyProfile
+        val verifier = verifyOptions.createVerifier(baseApk)
+        val cache = verifyOptions.openCache(baseApk, verifier)
+        val sampling = verifyOptions.startSampling(channelList)
+        //根据基础包的大小和当前进程的内存预算，选择复制到内存或者lowMemory模式，超出预算时等待其他任务完成
+        //gradle daemon常驻进程中不使用内存映射：映射无法主动释放，Windows下会锁住基础包
+        val writerThreads = if (multiThread) getWriterThreadCount() else 1
+        //抽样校验时，失败后已升级为完整校验，与命令行一致，继续生成其他渠道包，最后再报告所有失败
+        val failures = mutableListOf<String>()
+        MemoryBudget.getInstance().acquire(baseApk, lowMemory, false, writerThreads).use { lease ->
+            val apkSectionInfo = lease.apkSectionInfo
+            //预先计算所有渠道包的布局，渠道包文件在校验通过后才创建
+            val channelDestMap = LinkedHashMap<String, File>()
+            channelList.forEach { channel ->
+                channelDestMap[channel] = File(outputDir, getChannelApkName(baseApk.name, channel))
             }
-            ChannelWriter.addChannelByV2(apkSectionInfo, destFile, channel)
-            if (!isFastMode) {
-                //1. verify channel info
-                if (ChannelReader.verifyChannelByV2(destFile, channel)) {
-                    println("generateV2ChannelApk, $destFile add channel success")
+            val plan = ChannelWriter.planChannelByV2(apkSectionInfo, channelDestMap, reservedLength)
+            println("generateV2ChannelApk,$plan")
+            try {
+                if (multiThread) {
+                    failures += generateV2ChannelApkMultiThread(plan, apkSectionInfo, isFastMode, verifier, cache, sampling, verifyProfile)
                 } else {
-                    throw GradleException("generateV2ChannelApk, $destFile add channel failure")
+                    plan.entries.forEach { entry ->
+                        println("++++++++++++++++++++++++++++++  channel(${entry.channel})  ++++++++++++++++++++++++++++++")
+                        println("generateV2ChannelApk,channel=${entry.channel},apkChannelName=${entry.destApk.name}")
+                        try {
+                            writePlannedV2ChannelApk(apkSectionInfo, entry, plan.reservedLength, isFastMode, verifier, cache, sampling, verifyProfile)
+                        } catch (e: Exception) {
+                            if (sampling == null) {
+                                throw e
+                            }
+                            failures.add(entry.destApk.name)
+                            println("generateV2ChannelApk,${entry.destApk} failure, continue with full verification")
+                            e.printStackTrace()
+                        }
+                        apkSectionInfo.rewind()
+
+                        if (!isFastMode) {
+                            apkSectionInfo.checkEocdCentralDirOffset()
+                        }
+                    }
                 }
-                //2. verify v2 signature
-                if (VerifyApk.verifySignature(destFile)) {
-                    println("generateV2ChannelApk,after add channel,apk $destFile v2 verify success")
-                } else {
-                    throw GradleException("generateV2ChannelApk,after add channel, apk $destFile v2 verify failure")
+            } catch (e: Exception) {
+                //抽中的渠道包校验失败时，仍然完整校验已经生成但未校验的渠道包
+                verifySkippedChannelApk(sampling, false, baseApk, verifier, verifyProfile)
+                throw e
+            }
+        }
+        verifySkippedChannelApk(sampling, false, baseApk, verifier, verifyProfile).forEach { failures.add(it.name) }
+        if (failures.isNotEmpty()) {
+            throw GradleException("generateV2ChannelApk, channel apk verify failure : $failures")
+        }
+        if (!isFastMode) {
+            println(verifyProfile.report)
+        }
+        println("------ $project.name:$name generate v2 channel apk , end ------")
+    }
+
+    /**
+     * 多线程生成V2渠道包，所有线程共享同一份只读的ApkSectionInfo
+     *
+     * @return 抽样校验时生成或校验失败的渠道包，不抽样时第一个失败直接抛出异常
+     */
+    private fun generateV2ChannelApkMultiThread(
+        plan: ChannelApkPlan,
+        apkSectionInfo: ApkSectionInfo,
+        isFastMode: Boolean,
+        verifier: ChannelApkVerifier?,
+        cache: VerificationCache.Session?,
+        sampling: SamplingPolicy.Batch?,
+        profile: VerifyProfile
+    ): List<String> {
+        val failures = mutableListOf<String>()
+        val snapshot = apkSectionInfo.snapshot()
+        val executor = Executors.newFixedThreadPool(getWriterThreadCount())
+        try {
+            val futures = plan.entries.map { entry ->
+                executor.submit(Callable {
+                    println("generateV2ChannelApk,channel=${entry.channel},apkChannelName=${entry.destApk.name}")
+                    writePlannedV2ChannelApk(snapshot, entry, plan.reservedLength, isFastMode, verifier, cache, sampling, profile)
+                })
+            }
+            futures.forEachIndexed { index, future ->
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    if (sampling == null) {
+                        throw GradleException("generateV2ChannelApk failure", e.cause ?: e)
+                    }
+                    val destApk = plan.entries[index].destApk
+                    failures.add(destApk.name)
+                    println("generateV2ChannelApk,$destApk failure, continue with full verification")
+                    (e.cause ?: e).printStackTrace()
                 }
             }
-            apkSectionInfo.rewind()
+        } finally {
+            //等待被中断的任务删除未完成的渠道包和临时文件
+            executor.shutdownNow()
+            executor.awaitTermination(1, TimeUnit.MINUTES)
+        }
+        if (!isFastMode) {
+            apkSectionInfo.checkEocdCentralDirOffset()
+        }
+        return failures
+    }
+
+    /**
+     * 多线程生成渠道包时的线程数
+     */
+    private fun getWriterThreadCount(): Int {
+        return Runtime.getRuntime().availableProcessors().coerceAtLeast(2)
+    }
+
+    /**
+     * 生成一个V2渠道包，生成或校验失败时删除该渠道包，不留下不完整或未通过校验的渠道包
+     */
+    private fun writePlannedV2ChannelApk(
+        apkSectionInfo: ApkSectionInfo,
+        entry: ChannelApkPlan.Entry,
+        reservedLength: Int,
+        isFastMode: Boolean,
+        verifier: ChannelApkVerifier?,
+        cache: VerificationCache.Session?,
+        sampling: SamplingPolicy.Batch?,
+        profile: VerifyProfile
+    ) {
+        var committed = false
+        try {
+            writeSampledV2ChannelApk(apkSectionInfo, entry.destApk, entry.channel, reservedLength, isFastMode, verifier, cache, sampling, profile)
+            committed = true
+        } finally {
+            if (!committed && apkSectionInfo.baseApk != null) {
+                deleteChannelApk(apkSectionInfo.baseApk, entry.destApk)
+            }
+        }
+    }
 
-            if (!isFastMode) {
-                apkSectionInfo.checkEocdCentralDirOffset()
+    /**
+     * 抽样校验时，未抽中的渠道包只校验渠道信息，抽中的渠道包正常校验并记录结果
+     */
+    private fun writeSampledV2ChannelApk(
+        apkSectionInfo: ApkSectionInfo,
+        destFile: File,
+        channel: String,
+        reservedLength: Int,
+        isFastMode: Boolean,
+        verifier: ChannelApkVerifier?,
+        cache: VerificationCache.Session?,
+        sampling: SamplingPolicy.Batch?,
+        profile: VerifyProfile
+    ) {
+        if (isFastMode || sampling == null) {
+            writeV2ChannelApk(apkSectionInfo, destFile, channel, reservedLength, isFastMode, verifier, cache, profile)
+            return
+        }
+        if (!sampling.shouldVerify(channel)) {
+            //未抽中的渠道包只在内存中校验渠道信息，校验通过后才写入磁盘
+            val channelApkSectionInfo = ChannelWriter.prepareChannelByV2(apkSectionInfo, channel, reservedLength)
+            if (!ChannelReader.verifyChannelByV2(channelApkSectionInfo, channel)) {
+                throw GradleException("generateV2ChannelApk, $destFile add channel failure")
             }
+            ChannelWriter.commitChannelByV2(channelApkSectionInfo, destFile)
+            sampling.onSkipped(channel, destFile)
+            println("generateV2ChannelApk,apk $destFile not sampled, skip verify")
+            return
+        }
+        var verified = false
+        try {
+            writeV2ChannelApk(apkSectionInfo, destFile, channel, reservedLength, isFastMode, verifier, cache, profile)
+            verified = true
+        } finally {
+            sampling.onVerified(channel, verified)
+        }
+    }
+
+    /**
+     * 抽中的渠道包校验失败时，完整校验所有未校验的渠道包，删除校验失败的V2渠道包，并输出抽样校验的结果
+     *
+     * @return 校验失败的渠道包
+     */
+    private fun verifySkippedChannelApk(
+        sampling: SamplingPolicy.Batch?,
+        isV1: Boolean,
+        baseApk: File,
+        verifier: ChannelApkVerifier?,
+        profile: VerifyProfile
+    ): List<File> {
+        if (sampling == null) {
+            return listOf()
+        }
+        val failures = mutableListOf<File>()
+        sampling.takeSkipped().forEach { (channel, apk) ->
+            val verified = try {
+                when {
+                    verifier == null -> VerifyApk.verifySignature(apk, profile)
+                    isV1 -> verifier.verifyV1(apk)
+                    else -> verifier.verifyV2(apk)
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+                false
+            }
+            sampling.onVerified(channel, verified)
+            if (!verified) {
+                println("verifySkippedChannelApk,apk $apk verify failure")
+                failures.add(apk)
+                //校验失败的V2渠道包不保留
+                if (!isV1) {
+                    deleteChannelApk(baseApk, apk)
+                }
+            }
+        }
+        println(sampling.report)
+        return failures
+    }
+
+    /**
+     * 生成一个V2渠道包
+     * 极速模式下直接写入；结构校验模式下写入后与基础包比较；
+     * 否则先在内存中拼接渠道包并校验渠道信息和签名，校验通过后才写入磁盘
+     */
+    private fun writeV2ChannelApk(
+        apkSectionInfo: ApkSectionInfo,
+        destFile: File,
+        channel: String,
+        reservedLength: Int,
+        isFastMode: Boolean,
+        verifier: ChannelApkVerifier?,
+        cache: VerificationCache.Session?,
+        profile: VerifyProfile
+    ) {
+        if (isFastMode) {
+            ChannelWriter.addChannelByV2(apkSectionInfo, destFile, channel, reservedLength)
+            return
+        }
+        if (verifier != null) {
+            //结构校验需要比较写入的字节，先写入临时文件，校验通过后才重命名为渠道包
+            val tempFile = File(destFile.absoluteFile.parentFile, "${destFile.name}.tmp")
+            try {
+                ChannelWriter.addChannelByV2(apkSectionInfo, tempFile, channel, reservedLength)
+                verifyV2ChannelApk(tempFile, channel, verifier, cache, profile)
+                renameChannelApk(tempFile, destFile)
+            } finally {
+                if (tempFile.exists()) {
+                    tempFile.delete()
+                }
+            }
+            return
+        }
+        val channelApkSectionInfo = ChannelWriter.prepareChannelByV2(apkSectionInfo, channel, reservedLength)
+        //1. verify channel info
+        if (!ChannelReader.verifyChannelByV2(channelApkSectionInfo, channel)) {
+            throw GradleException("generateV2ChannelApk, $destFile add channel failure")
+        }
+        //2. verify v2 signature before write , skip it if the same channel apk was verified before
+        if (cache?.isVerified(channel, channelApkSectionInfo.apkSize) == true) {
+            ChannelWriter.commitChannelByV2(channelApkSectionInfo, destFile)
+            println("generateV2ChannelApk,apk $destFile verified before, skip verify")
+            return
+        }
+        if (!VerifyApk.verifySignature(channelApkSectionInfo, profile)) {
+            throw GradleException("generateV2ChannelApk,before write, apk $destFile v2 verify failure")
+        }
+        //3. write channel apk
+        ChannelWriter.commitChannelByV2(channelApkSectionInfo, destFile)
+        cache?.putVerified(channel, channelApkSectionInfo.apkSize)
+        println("generateV2ChannelApk,apk $destFile v2 verify success before write")
+    }
+
+    /**
+     * 校验通过的临时文件重命名为渠道包，已有的同名渠道包会被替换
+     */
+    private fun renameChannelApk(tempFile: File, destFile: File) {
+        //renameTo在目标文件存在时可能失败，先删除旧的渠道包
+        if (!tempFile.renameTo(destFile)) {
+            if (destFile.isFile) {
+                destFile.delete()
+            }
+            if (!tempFile.renameTo(destFile)) {
+                throw GradleException("generateV2ChannelApk, rename $tempFile to $destFile failure")
+            }
+        }
+    }
+
+    /**
+     * 删除校验失败的渠道包，基础包本身不会被删除
+     */
+    private fun deleteChannelApk(baseApk: File, apk: File) {
+        if (baseApk.canonicalPath == apk.canonicalPath) {
+            return
+        }
+        if (apk.isFile && !apk.delete()) {
+            println("verifySkippedChannelApk,delete $apk failure")
+        }
+    }
+
+    /**
+     * 校验V2渠道包的渠道信息和签名，有结构校验器时与基础包逐段比较
+     */
+    private fun verifyV2ChannelApk(
+        destFile: File,
+        channel: String,
+        verifier: ChannelApkVerifier?,
+        cache: VerificationCache.Session?,
+        profile: VerifyProfile
+    ) {
+        //1. verify channel info
+        if (ChannelReader.verifyChannelByV2(destFile, channel)) {
+            println("generateV2ChannelApk, $destFile add channel success")
+        } else {
+            throw GradleException("generateV2ChannelApk, $destFile add channel failure")
+        }
+        //2. verify v2 signature , skip it if the same channel apk was verified before
+        if (cache?.isVerified(channel, destFile.length()) == true) {
+            println("generateV2ChannelApk,apk $destFile verified before, skip verify")
+        } else if (verifier?.verifyV2(destFile) ?: VerifyApk.verifySignature(destFile, profile)) {
+            cache?.putVerified(channel, destFile.length())
+            println("generateV2ChannelApk,after add channel,apk $destFile v2 verify success")
+        } else {
+            throw GradleException("generateV2ChannelApk,after add channel, apk $destFile v2 verify failure")
         }
-        println("------ $project.name:$name generate v2 channel apk , end ------")
     }
 
     /**
      * 生成V1渠道包
      */
-    fun generateV1ChannelApk(baseApk: File, outputDir: File, isFastMode: Boolean) {
+    fun generateV1ChannelApk(
+        baseApk: File,
+        outputDir: File,
+        verifyOptions: VerifyOptions = VerifyOptions.full()
+    ) {
         //check v1 signature , if not have v1 signature , you can't install Apk below 7.0
         println("------$project.name:$name generate v1 channel apk, begin------")
 
@@ -93,27 +403,68 @@ abstract class ChannelPackageTask : DefaultTask() {
             throw GradleException("baseApk $baseApk.getAbsolutePath() has channel")
         }
 
-        channelList.forEach { channel ->
-            val apkChannelName = getChannelApkName(baseApk.name, channel)
-            println("++++++++++++++++++++++++++++++  channel($channel)  ++++++++++++++++++++++++++++++")
-            println("generateV1ChannelApk,channel=$channel,apkChannelName=$apkChannelName")
-            val destFile = File(outputDir, apkChannelName)
-            baseApk.copyTo(destFile)
-            ChannelWriter.addChannelByV1(destFile, channel)
-            if (isFastMode) {
-                //1. verify channel info
-                if (ChannelReader.verifyChannelByV1(destFile, channel)) {
-                    println("generateV1ChannelApk,apk $destFile add channel success")
-                } else {
-                    throw GradleException("generateV1ChannelApk,apk $destFile add channel failure")
-                }
-                //2. verify v1 signature
-                if (VerifyApk.verifySignature(destFile)) {
-                    println("generateV1ChannelApk,after add channel,apk $destFile verify success")
-                } else {
-                    throw GradleException("generateV1ChannelApk , after add channel , apk $destFile verify failure")
+        //只解析一次基础包的EOCD，每个渠道包一次写完
+        val template = V1ChannelTemplate.create(baseApk)
+        val isFastMode = verifyOptions.isFastMode
+        val verifyProfile = verifyOptions.verifyProfile
+        val verifier = verifyOptions.createVerifier(baseApk)
+        val cache = verifyOptions.openCache(baseApk, verifier)
+        val sampling = verifyOptions.startSampling(channelList)
+        //抽样校验时，失败后已升级为完整校验，与命令行一致，继续生成其他渠道包，最后再报告所有失败
+        val failures = mutableListOf<String>()
+        try {
+            channelList.forEach { channel ->
+                val apkChannelName = getChannelApkName(baseApk.name, channel)
+                println("++++++++++++++++++++++++++++++  channel($channel)  ++++++++++++++++++++++++++++++")
+                println("generateV1ChannelApk,channel=$channel,apkChannelName=$apkChannelName")
+                val destFile = File(outputDir, apkChannelName)
+                try {
+                    ChannelWriter.addChannelByV1(template, destFile, channel)
+                    if (!isFastMode) {
+                        //1. verify channel info
+                        if (ChannelReader.verifyChannelByV1(destFile, channel)) {
+                            println("generateV1ChannelApk,apk $destFile add channel success")
+                        } else {
+                            throw GradleException("generateV1ChannelApk,apk $destFile add channel failure")
+                        }
+                        //2. verify v1 signature , skip it if not sampled or the same channel apk was verified before
+                        if (sampling != null && !sampling.shouldVerify(channel)) {
+                            sampling.onSkipped(channel, destFile)
+                            println("generateV1ChannelApk,apk $destFile not sampled, skip verify")
+                        } else if (cache?.isVerified(channel, destFile.length()) == true) {
+                            sampling?.onVerified(channel, true)
+                            println("generateV1ChannelApk,apk $destFile verified before, skip verify")
+                        } else {
+                            val verified = verifier?.verifyV1(destFile) ?: VerifyApk.verifySignature(destFile, verifyProfile)
+                            sampling?.onVerified(channel, verified)
+                            if (verified) {
+                                cache?.putVerified(channel, destFile.length())
+                                println("generateV1ChannelApk,after add channel,apk $destFile verify success")
+                            } else {
+                                throw GradleException("generateV1ChannelApk , after add channel , apk $destFile verify failure")
+                            }
+                        }
+                    }
+                } catch (e: Exception) {
+                    if (sampling == null) {
+                        throw e
+                    }
+                    failures.add(apkChannelName)
+                    println("generateV1ChannelApk,$destFile failure, continue with full verification")
+                    e.printStackTrace()
                 }
             }
+        } catch (e: Exception) {
+            //抽中的渠道包校验失败时，仍然完整校验已经生成但未校验的渠道包
+            verifySkippedChannelApk(sampling, true, baseApk, verifier, verifyProfile)
+            throw e
+        }
+        verifySkippedChannelApk(sampling, true, baseApk, verifier, verifyProfile).forEach { failures.add(it.name) }
+        if (failures.isNotEmpty()) {
+            throw GradleException("generateV1ChannelApk, channel apk verify failure : $failures")
+        }
+        if (!isFastMode) {
+            println(verifyProfile.report)
         }
         println("------$project.name:$name generate v1 channel apk , end------")
     }
@@ -2,6 +2,7 @@ package com.tencent.vasdolly.plugin.task
 
 import com.tencent.vasdolly.plugin.extension.RebuildChannelConfigExtension
 import com.tencent.vasdolly.reader.ChannelReader
+import com.tencent.vasdolly.verify.VerifyOptions
 import org.gradle.api.GradleException
 import org.gradle.api.InvalidUserDataException
 import org.gradle.api.tasks.Input
@@ -48,7 +49,9 @@ open class RebuildApkChannelPackageTask : ChannelPackageTask() {
     private fun generateChannelApk(baseApk: File?, outputDir: File?) {
         println("generateChannelApk baseApk:${baseApk?.absolutePath},outputDir:${outputDir?.path}")
         val lowMemory = rebuildExt?.lowMemory ?: false
-        val isFastMode = rebuildExt?.fastMode ?: false
+        val verifyOptions = rebuildExt?.getVerifyOptions() ?: VerifyOptions.full()
+        val reservedLength = rebuildExt?.reservedLength ?: 0
+        val multiThread = rebuildExt?.multiThread ?: false
         //检要baseApk
         if (baseApk == null || !baseApk.exists() || !baseApk.isFile) {
             println("baseApk:$baseApk, it is not a valid file , so can not rebuild channel apk")
@@ -67,9 +70,9 @@ open class RebuildApkChannelPackageTask : ChannelPackageTask() {
             }
             //开始生成渠道包
             if (ChannelReader.containV2Signature(baseApk)) {
-                generateV2ChannelApk(baseApk, outputDir, lowMemory, isFastMode)
+                generateV2ChannelApk(baseApk, outputDir, lowMemory, multiThread, verifyOptions, reservedLength)
             } else if (ChannelReader.containV1Signature(baseApk)) {
-                generateV1ChannelApk(baseApk, outputDir, isFastMode)
+                generateV1ChannelApk(baseApk, outputDir, verifyOptions)
             }
         } ?: throw GradleException("rebuild apk channel outputDir is empty")
     }
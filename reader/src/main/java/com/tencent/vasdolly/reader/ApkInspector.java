@@ -0,0 +1,408 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.reader;
+
+import com.tencent.vasdolly.common.ApkSignatureProbe;
+import com.tencent.vasdolly.common.ChannelConstants;
+import com.tencent.vasdolly.common.Pair;
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.ApkDataSource;
+import com.tencent.vasdolly.common.apk.FileDataSource;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipTail;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A session of queries on one apk.
+ * <p>
+ * The apk is opened once , and its tail (EOCD , zip comment and v1 channel) is read once. The id-value headers of
+ * APK Signing Block are walked once on the first id-value query , and the signature schemes are probed once on the
+ * first signature query. All the other queries (channel of v1/v2 , id-value , signature mode , section layout) are
+ * answered from the shared state , only the bytes of the requested value are read.
+ * <p>
+ * All reads are positional reads of an {@link ApkDataSource} , and the shared state is immutable once it is loaded ,
+ * so the inspector can be shared by all threads without locking the queries.
+ */
+public class ApkInspector implements Closeable {
+    // 先读取文件尾部的一小段，绝大多数apk的EOCD和V1渠道都在其中
+    private static final int INITIAL_TAIL_SIZE = 4 * 1024;
+
+    private final File apk;
+    private final ApkDataSource source;
+    // 通过File打开时持有的文件，由close关闭
+    private final Closeable owner;
+    private final long fileSize;
+    // 文件尾部，包含完整的EOCD，打开后不再读取
+    private final ZipTail tail;
+    private final long eocdOffset;
+    private final long centralDirOffset;
+
+    // id-value的头部，在第一次查询时读取
+    private volatile IdValueIndex idValueIndex;
+    private volatile ApkSignatureProbe signatureProbe;
+
+    private ApkInspector(File apk, ApkDataSource source, Closeable owner, ZipTail tail, long centralDirOffset) {
+        this.apk = apk;
+        this.source = source;
+        this.owner = owner;
+        this.fileSize = tail.getFileSize();
+        this.tail = tail;
+        this.eocdOffset = tail.getEocdOffset();
+        this.centralDirOffset = centralDirOffset;
+    }
+
+    /**
+     * open the apk and read its tail
+     *
+     * @param apk
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException not a zip file , or a ZIP64 file
+     */
+    public static ApkInspector open(File apk) throws IOException, SignatureNotFoundException {
+        if (apk == null || !apk.exists() || !apk.isFile()) {
+            throw new RuntimeException("ApkInspector open , param invalid, apk = " + apk);
+        }
+        FileDataSource source = FileDataSource.open(apk);
+        try {
+            return open(apk, source, source);
+        } catch (IOException | SignatureNotFoundException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+    }
+
+    /**
+     * open an apk source and read its tail , such as an apk in memory or in an artifact store.
+     * the source is not closed by {@link #close()}
+     *
+     * @param source
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException not a zip file , or a ZIP64 file
+     */
+    public static ApkInspector open(ApkDataSource source) throws IOException, SignatureNotFoundException {
+        if (source == null) {
+            throw new RuntimeException("ApkInspector open , param invalid, source = null");
+        }
+        return open(null, source, null);
+    }
+
+    private static ApkInspector open(File apk, ApkDataSource source, Closeable owner) throws IOException, SignatureNotFoundException {
+        //1. read the tail , expand it to the max comment size if the EOCD is not in it
+        ZipTail tail = new ZipTail().read(source, INITIAL_TAIL_SIZE);
+        if (!tail.hasEocd() && tail.getWindowSize() < tail.getFileSize()) {
+            tail.read(source);
+        }
+        if (!tail.hasEocd()) {
+            throw new SignatureNotFoundException("Not an APK file: ZIP End of Central Directory record not found");
+        }
+        //2. ZIP64 locator immediately precedes the EOCD
+        if (tail.isZip64()) {
+            throw new SignatureNotFoundException("ZIP64 APK not supported");
+        }
+        //3. central dir
+        Pair<ByteBuffer, Long> eocd = tail.getEocd();
+        long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocd.getFirst(), eocd.getSecond());
+        return new ApkInspector(apk, source, owner, tail, centralDirOffset);
+    }
+
+    /**
+     * get channel , try v2 first and then v1
+     *
+     * @return null if there is no channel
+     */
+    public String getChannel() throws IOException {
+        String channel = getChannelByV2();
+        if (channel == null) {
+            channel = getChannelByV1();
+        }
+        return channel;
+    }
+
+    /**
+     * get channel from APK Signing Block
+     *
+     * @return null if there is no v2 channel
+     */
+    public String getChannelByV2() throws IOException {
+        return getStringValueById(ChannelConstants.CHANNEL_BLOCK_ID);
+    }
+
+    /**
+     * get channel from zip comment
+     *
+     * @return null if there is no v1 channel
+     */
+    public String getChannelByV1() {
+        byte[] channel = tail.getV1Channel();
+        if (channel == null) {
+            return null;
+        }
+        return toString(channel);
+    }
+
+    /**
+     * get byte[] value by id
+     *
+     * @param id
+     * @return null if not found
+     */
+    public byte[] getByteValueById(int id) throws IOException {
+        IdValueIndex index = getIdValueIndex();
+        for (int i = 0; i < index.ids.length; i++) {
+            if (index.ids[i] == id) {
+                return readValue(index, i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * get string value by id
+     *
+     * @param id
+     * @return null if not found
+     */
+    public String getStringValueById(int id) throws IOException {
+        byte[] value = getByteValueById(id);
+        if (value == null) {
+            return null;
+        }
+        return toString(value);
+    }
+
+    /**
+     * get byte[] values of several ids , the id-value headers are walked only once for all queries
+     *
+     * @param ids
+     * @return the values of ids , the value of an absent id is null
+     */
+    public IdValues getByteValuesByIds(int... ids) throws IOException {
+        IdValues values = new IdValues(ids);
+        IdValueIndex index = getIdValueIndex();
+        for (int i = 0; i < index.ids.length && !values.isComplete(); i++) {
+            int valueIndex = values.indexOf(index.ids[i]);
+            if (valueIndex >= 0 && !values.isValueSet(valueIndex)) {
+                values.set(valueIndex, readValue(index, i));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * ids of APK Signing Block in order
+     *
+     * @return empty if there is no APK Signing Block
+     */
+    public int[] getIds() throws IOException {
+        int[] ids = getIdValueIndex().ids;
+        return Arrays.copyOf(ids, ids.length);
+    }
+
+    private byte[] readValue(IdValueIndex index, int i) throws IOException {
+        ByteBuffer value = ByteBuffer.allocate(index.valueSizes[i]);
+        readFully(source, value, index.valueOffsets[i]);
+        return value.array();
+    }
+
+    /**
+     * the index is loaded once , then it is read without locking
+     */
+    private IdValueIndex getIdValueIndex() throws IOException {
+        IdValueIndex index = idValueIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = idValueIndex;
+                if (index == null) {
+                    index = loadIdValues();
+                    idValueIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * walk the id-value headers once
+     */
+    private IdValueIndex loadIdValues() throws IOException {
+        int count = 0;
+        long apkSigningBlockOffset = -1;
+        int[] ids = new int[8];
+        long[] valueOffsets = new long[8];
+        int[] valueSizes = new int[8];
+        try {
+            long[] pairs = IdValueReader.findIdValuePairs(source, centralDirOffset);
+            ByteBuffer header = ByteBuffer.allocate(IdValueReader.ID_VALUE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long position = pairs[0];
+            while (position < pairs[1]) {
+                long length = IdValueReader.readIdValueHeader(source, header, position, pairs[1], count + 1);
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    valueOffsets = Arrays.copyOf(valueOffsets, count * 2);
+                    valueSizes = Arrays.copyOf(valueSizes, count * 2);
+                }
+                ids[count] = header.getInt(8);
+                valueOffsets[count] = position + IdValueReader.ID_VALUE_HEADER_SIZE;
+                valueSizes[count] = (int) (length - 4);
+                count++;
+                position += 8 + length;
+            }
+            apkSigningBlockOffset = pairs[0] - 8;
+        } catch (SignatureNotFoundException e) {
+            // 没有签名块或签名块格式错误，视为没有id-value
+            count = 0;
+            apkSigningBlockOffset = -1;
+        }
+        return new IdValueIndex(apkSigningBlockOffset, Arrays.copyOf(ids, count),
+                Arrays.copyOf(valueOffsets, count), Arrays.copyOf(valueSizes, count));
+    }
+
+    /**
+     * the signature schemes of apk , without verifying the signatures
+     */
+    public ApkSignatureProbe getSignatureProbe() throws IOException {
+        ApkSignatureProbe probe = signatureProbe;
+        if (probe == null) {
+            synchronized (this) {
+                probe = signatureProbe;
+                if (probe == null) {
+                    probe = ApkSignatureProbe.probe(source, centralDirOffset, eocdOffset);
+                    signatureProbe = probe;
+                }
+            }
+        }
+        return probe;
+    }
+
+    /**
+     * @return null if the inspector is opened from an apk source
+     */
+    public File getApk() {
+        return apk;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return -1 if there is no APK Signing Block
+     */
+    public long getApkSigningBlockOffset() throws IOException {
+        return getIdValueIndex().apkSigningBlockOffset;
+    }
+
+    /**
+     * @return 0 if there is no APK Signing Block
+     */
+    public long getApkSigningBlockSize() throws IOException {
+        long apkSigningBlockOffset = getIdValueIndex().apkSigningBlockOffset;
+        return apkSigningBlockOffset < 0 ? 0 : centralDirOffset - apkSigningBlockOffset;
+    }
+
+    /**
+     * size of the content entries before APK Signing Block (or central dir)
+     */
+    public long getContentEntrySize() throws IOException {
+        long apkSigningBlockOffset = getIdValueIndex().apkSigningBlockOffset;
+        return apkSigningBlockOffset < 0 ? centralDirOffset : apkSigningBlockOffset;
+    }
+
+    public long getCentralDirOffset() {
+        return centralDirOffset;
+    }
+
+    public long getCentralDirSize() {
+        return eocdOffset - centralDirOffset;
+    }
+
+    public long getEocdOffset() {
+        return eocdOffset;
+    }
+
+    /**
+     * size of EOCD with the zip comment
+     */
+    public long getEocdSize() {
+        return fileSize - eocdOffset;
+    }
+
+    /**
+     * length of the zip comment
+     */
+    public int getCommentLength() {
+        return tail.getCommentLength();
+    }
+
+    private static String toString(byte[] bytes) {
+        try {
+            return new String(bytes, ChannelConstants.CONTENT_CHARSET).trim();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void readFully(ApkDataSource source, ByteBuffer buffer, long position) throws IOException {
+        source.read(buffer, position);
+        buffer.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner != null) {
+            owner.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ApkInspector{" +
+                "apk=" + (apk != null ? apk.getName() : source) +
+                ", fileSize=" + fileSize +
+                ", apkSigningBlockOffset=" + (idValueIndex != null ? idValueIndex.apkSigningBlockOffset : "unknown") +
+                ", centralDirOffset=" + centralDirOffset +
+                ", eocdOffset=" + eocdOffset +
+                '}';
+    }
+
+    /**
+     * the id-value headers of APK Signing Block , immutable
+     */
+    private static class IdValueIndex {
+        // -1 if there is no APK Signing Block
+        final long apkSigningBlockOffset;
+        final int[] ids;
+        final long[] valueOffsets;
+        final int[] valueSizes;
+
+        IdValueIndex(long apkSigningBlockOffset, int[] ids, long[] valueOffsets, int[] valueSizes) {
+            this.apkSigningBlockOffset = apkSigningBlockOffset;
+            this.ids = ids;
+            this.valueOffsets = valueOffsets;
+            this.valueSizes = valueSizes;
+        }
+    }
+}
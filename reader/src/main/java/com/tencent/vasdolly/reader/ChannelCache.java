@@ -0,0 +1,321 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.reader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A persistent cache of the channel and the id-values of apks , such as the installed apk of an app which is read
+ * by every process start.
+ * <p>
+ * An entry is keyed by the path , the length and the last modified time of apk , so it is read again after the apk
+ * is updated. The entry starts with the key and the channel , so a warm {@link #getChannel(File)} reads only a few
+ * bytes of the cache file instead of the tail of apk. The entry is written to a temp file and then renamed , so the
+ * cache can be shared by all threads and processes of an app , a broken or stale entry is read from apk again. The
+ * entries of apks which no longer exist , such as the installed apk before an update , are deleted when an entry is
+ * saved.
+ */
+public class ChannelCache {
+    private static final int MAGIC = 0x56444348; // VDCH
+    private static final int VERSION = 1;
+    private static final String FILE_PREFIX = "channel_";
+
+    private final File cacheDir;
+
+    /**
+     * @param cacheDir the private dir of app , such as Context.getCacheDir()
+     */
+    public ChannelCache(File cacheDir) {
+        if (cacheDir == null) {
+            throw new RuntimeException("ChannelCache , param invalid, cacheDir = null");
+        }
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * get channel , try v2 first and then v1
+     *
+     * @param apk
+     * @return null if there is no channel or apk can not be read
+     */
+    public String getChannel(File apk) {
+        if (apk == null || !apk.isFile()) {
+            return null;
+        }
+        Entry entry = load(apk, false);
+        if (entry == null) {
+            entry = readApk(apk);
+        }
+        return entry != null ? entry.channel : null;
+    }
+
+    /**
+     * find all Id-Value Pair of APK Signing Block in order
+     *
+     * @param apk
+     * @return null if apk not have apk signature block or apk can not be read
+     */
+    public Map<Integer, ByteBuffer> getAllIdValueMap(File apk) {
+        if (apk == null || !apk.isFile()) {
+            return null;
+        }
+        Entry entry = load(apk, true);
+        if (entry == null) {
+            entry = readApk(apk);
+        }
+        if (entry == null || entry.idValues == null) {
+            return null;
+        }
+        Map<Integer, ByteBuffer> idValueMap = new LinkedHashMap<>();
+        for (Map.Entry<Integer, byte[]> idValue : entry.idValues.entrySet()) {
+            idValueMap.put(idValue.getKey(), ByteBuffer.wrap(idValue.getValue()).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        return idValueMap;
+    }
+
+    /**
+     * delete the entry of apk
+     *
+     * @param apk
+     */
+    public void remove(File apk) {
+        if (apk != null) {
+            getCacheFile(apk).delete();
+        }
+    }
+
+    File getCacheFile(File apk) {
+        String path = apk.getAbsolutePath();
+        // 路径也保存在缓存文件中，hash冲突时视为缓存失效
+        return new File(cacheDir, FILE_PREFIX + Integer.toHexString(path.hashCode()));
+    }
+
+    /**
+     * read the entry of apk from cache file
+     *
+     * @param apk
+     * @param withIdValues false to read only the key and the channel
+     * @return null if there is no valid entry
+     */
+    private Entry load(File apk, boolean withIdValues) {
+        File cacheFile = getCacheFile(apk);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 512));
+            //1. key
+            if (input.readInt() != MAGIC || input.readInt() != VERSION
+                    || !apk.getAbsolutePath().equals(input.readUTF())
+                    || input.readLong() != apk.length()
+                    || input.readLong() != apk.lastModified()) {
+                return null;
+            }
+            //2. channel
+            Entry entry = new Entry();
+            entry.channel = input.readBoolean() ? input.readUTF() : null;
+            if (!withIdValues) {
+                return entry;
+            }
+            //3. id-values , -1 if apk not have apk signature block
+            // 长度不可能超过缓存文件的大小，避免损坏的缓存文件导致分配过大的内存
+            long fileLength = cacheFile.length();
+            int count = input.readInt();
+            if (count > fileLength / 8) {
+                return null;
+            }
+            if (count >= 0) {
+                entry.idValues = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    int id = input.readInt();
+                    int length = input.readInt();
+                    if (length < 0 || length > fileLength) {
+                        return null;
+                    }
+                    byte[] value = new byte[length];
+                    input.readFully(value);
+                    entry.idValues.put(id, value);
+                }
+            }
+            return entry;
+        } catch (EOFException | RuntimeException e) {
+            // 缓存文件不完整或格式错误，重新读取apk
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * read the channel and the id-values from apk with one open , then save them
+     *
+     * @param apk
+     * @return null if apk can not be read
+     */
+    private Entry readApk(File apk) {
+        //1. the key before reading , an apk updated while reading is read again next time
+        long length = apk.length();
+        long lastModified = apk.lastModified();
+        Entry entry = new Entry();
+        ApkInspector inspector = null;
+        try {
+            inspector = ApkInspector.open(apk);
+            entry.channel = inspector.getChannel();
+            if (inspector.getApkSigningBlockOffset() >= 0) {
+                int[] ids = inspector.getIds();
+                IdValues values = inspector.getByteValuesByIds(ids);
+                entry.idValues = new LinkedHashMap<>();
+                for (int id : ids) {
+                    entry.idValues.put(id, values.get(id));
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(inspector);
+        }
+        //2. save
+        try {
+            save(apk, length, lastModified, entry);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return entry;
+    }
+
+    private void save(File apk, long length, long lastModified, Entry entry) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new IOException("mkdirs " + cacheDir + " fail");
+        }
+        File tempFile = File.createTempFile(FILE_PREFIX, ".tmp", cacheDir);
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(apk.getAbsolutePath());
+            output.writeLong(length);
+            output.writeLong(lastModified);
+            output.writeBoolean(entry.channel != null);
+            if (entry.channel != null) {
+                output.writeUTF(entry.channel);
+            }
+            if (entry.idValues == null) {
+                output.writeInt(-1);
+            } else {
+                output.writeInt(entry.idValues.size());
+                for (Map.Entry<Integer, byte[]> idValue : entry.idValues.entrySet()) {
+                    output.writeInt(idValue.getKey());
+                    output.writeInt(idValue.getValue().length);
+                    output.write(idValue.getValue());
+                }
+            }
+            output.close();
+            output = null;
+            //renameTo在目标文件存在时可能失败，先删除旧的缓存
+            File cacheFile = getCacheFile(apk);
+            if (!tempFile.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!tempFile.renameTo(cacheFile)) {
+                    throw new IOException("rename " + tempFile + " to " + cacheFile + " fail");
+                }
+            }
+            deleteStaleEntries(cacheFile);
+        } finally {
+            closeQuietly(output);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * delete the entries of apks which no longer exist , such as the old installed apk after the app is updated ,
+     * only called when an entry is saved
+     *
+     * @param current the cache file just saved
+     */
+    private void deleteStaleEntries(File current) {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            // 临时文件可能正在被其他进程写入，不删除
+            if (!name.startsWith(FILE_PREFIX) || name.endsWith(".tmp") || file.equals(current)) {
+                continue;
+            }
+            String path = readPath(file);
+            if (path == null || !new File(path).exists()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the path of apk in the cache file , null if the cache file is broken or of another version
+     */
+    private static String readPath(File cacheFile) {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 512));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                return null;
+            }
+            return input.readUTF();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Entry {
+        String channel;
+        // null if apk not have apk signature block
+        Map<Integer, byte[]> idValues;
+    }
+}
@@ -16,12 +16,16 @@
 
 package com.tencent.vasdolly.reader;
 
+import com.tencent.vasdolly.common.ApkSectionInfo;
 import com.tencent.vasdolly.common.ChannelConstants;
 import com.tencent.vasdolly.common.V1SchemeUtil;
 import com.tencent.vasdolly.common.V2SchemeUtil;
 import com.tencent.vasdolly.common.V3SchemeUtil;
+import com.tencent.vasdolly.common.apk.ApkDataSource;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
 
 /**
  * Created by leontli on 17/1/19.
@@ -56,6 +60,32 @@ public class ChannelReader {
         return "";
     }
 
+    /**
+     * get channel value from an apk source in the v2 signature mode , such as an apk in memory or in an artifact store.
+     * only the EOCD , the end of APK Signing Block and the channel value are read
+     *
+     * @param source
+     * @return
+     */
+    public static String getChannelByV2(ApkDataSource source) {
+        return IdValueReader.getStringValueById(source, ChannelConstants.CHANNEL_BLOCK_ID);
+    }
+
+    /**
+     * get channel info from an apk source in the v1 signature mode , only the end of apk is read
+     *
+     * @param source
+     * @return
+     */
+    public static String getChannelByV1(ApkDataSource source) {
+        try {
+            return V1SchemeUtil.readChannel(source);
+        } catch (Exception e) {
+            System.out.println("APK : " + source + " not have channel info from Zip Comment");
+        }
+        return "";
+    }
+
     /**
      * verify channel info in the v2 signature mode
      *
@@ -70,6 +100,34 @@ public class ChannelReader {
         return false;
     }
 
+    /**
+     * verify channel info of the channel apk which is not written yet , in the v2 signature mode.
+     * the channel is read from the APK Signing Block which the eocd of channel apk points to
+     *
+     * @param channelApkSectionInfo
+     * @param channel
+     * @return
+     */
+    public static boolean verifyChannelByV2(ApkSectionInfo channelApkSectionInfo, String channel) {
+        if (channel == null || channelApkSectionInfo == null) {
+            return false;
+        }
+        try {
+            channelApkSectionInfo.checkParamters();
+            Map<Integer, ByteBuffer> idValueMap = V2SchemeUtil.getAllIdValue(channelApkSectionInfo.apkSigningBlock.getFirst());
+            ByteBuffer value = idValueMap.get(ChannelConstants.CHANNEL_BLOCK_ID);
+            if (value == null) {
+                return false;
+            }
+            byte[] bytes = new byte[value.remaining()];
+            value.duplicate().get(bytes);
+            return channel.equals(new String(bytes, ChannelConstants.CONTENT_CHARSET).trim());
+        } catch (Exception e) {
+            System.out.println("verifyChannelByV2 , channel apk section info invalid : " + e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * verify channel info in the v1 signature mode
      *
@@ -17,14 +17,19 @@
 package com.tencent.vasdolly.reader;
 
 import com.tencent.vasdolly.common.ChannelConstants;
+import com.tencent.vasdolly.common.Pair;
 import com.tencent.vasdolly.common.V2SchemeUtil;
+import com.tencent.vasdolly.common.apk.ApkDataSource;
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.FileDataSource;
 import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.ByteOrder;
 import java.util.Map;
 
 /**
@@ -34,6 +39,10 @@ import java.util.Map;
  */
 
 public class IdValueReader {
+    // APK Signing Block的尾部：8字节长度和16字节magic
+    private static final int APK_SIG_BLOCK_FOOTER_SIZE = 24;
+    // id-value的头部：8字节长度和4字节id
+    static final int ID_VALUE_HEADER_SIZE = 12;
 
     /**
      * get string value by id
@@ -47,7 +56,24 @@ public class IdValueReader {
             return "";
         }
 
-        byte[] buffer = getByteValueById(channelFile, id);
+        return toString(getByteValueById(channelFile, id));
+    }
+
+    /**
+     * get string value by id from an apk source , such as an apk in memory or in an artifact store
+     *
+     * @param source
+     * @param id
+     * @return
+     */
+    public static String getStringValueById(ApkDataSource source, int id) {
+        if (source == null) {
+            return "";
+        }
+        return toString(getByteValueById(source, id));
+    }
+
+    private static String toString(byte[] buffer) {
         try {
             if (buffer != null && buffer.length > 0) {
                 String str = new String(buffer, ChannelConstants.CONTENT_CHARSET);
@@ -73,10 +99,27 @@ public class IdValueReader {
         }
 
         ByteBuffer value = getByteBufferValueById(channelFile, id);
-        System.out.println("getByteValueById , id = " + id + " , value = " + value);
+        if (value != null) {
+            return value.array();
+        }
+        return null;
+    }
+
+    /**
+     * get byte[] value by id from an apk source
+     *
+     * @param source
+     * @param id
+     * @return
+     */
+    public static byte[] getByteValueById(ApkDataSource source, int id) {
+        if (source == null) {
+            return null;
+        }
 
+        ByteBuffer value = getByteBufferValueById(source, id);
         if (value != null) {
-            return Arrays.copyOfRange(value.array(), value.arrayOffset() + value.position(), value.arrayOffset() + value.limit());
+            return value.array();
         }
         return null;
     }
@@ -84,25 +127,273 @@ public class IdValueReader {
 
     /**
      * get ByteBuffer value from apk by id
+     * 只读取EOCD、签名块尾部、各id-value的头部和目标value，不读取整个签名块
      *
      * @param channelFile
      * @param id
-     * @return
+     * @return the value which is backed by an array of its own size , null if not found
      */
     public static ByteBuffer getByteBufferValueById(File channelFile, int id) {
         if (channelFile == null || !channelFile.exists() || !channelFile.isFile()) {
             return null;
         }
 
-        Map<Integer, ByteBuffer> idValueMap = getAllIdValueMap(channelFile);
-        System.out.println("getByteBufferValueById , destApk " + channelFile.getAbsolutePath() + " IdValueMap = " + idValueMap);
-        if (idValueMap != null) {
-            return idValueMap.get(id);
+        FileDataSource apk = null;
+        try {
+            apk = FileDataSource.open(channelFile);
+            return getByteBufferValueById(apk, id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (apk != null) {
+                try {
+                    apk.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * get ByteBuffer value by id from an apk source
+     * 只读取EOCD、签名块尾部、各id-value的头部和目标value，远程apk只需要很少的范围请求
+     *
+     * @param source
+     * @param id
+     * @return the value which is backed by an array of its own size , null if not found
+     */
+    public static ByteBuffer getByteBufferValueById(ApkDataSource source, int id) {
+        if (source == null) {
+            return null;
+        }
+
+        try {
+            long centralDirOffset = getCentralDirOffset(source);
+            return findIdValue(source, centralDirOffset, id);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (SignatureNotFoundException e) {
+            //not have apk signature block
+        }
+        return null;
+    }
+
+    /**
+     * get byte[] values of several ids from apk
+     * 只打开一次apk，遍历一次签名块的id-value头部，读取所有请求的value
+     *
+     * @param channelFile
+     * @param ids
+     * @return the values of ids , the value of an absent id is null ; null if apk not have apk signature block
+     */
+    public static IdValues getByteValuesByIds(File channelFile, int... ids) {
+        if (channelFile == null || !channelFile.exists() || !channelFile.isFile()) {
+            return null;
+        }
+
+        FileDataSource apk = null;
+        try {
+            apk = FileDataSource.open(channelFile);
+            return getByteValuesByIds(apk, ids);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (apk != null) {
+                try {
+                    apk.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * get byte[] values of several ids from an apk source , the id-value headers are walked once
+     *
+     * @param source
+     * @param ids
+     * @return the values of ids , the value of an absent id is null ; null if apk not have apk signature block
+     */
+    public static IdValues getByteValuesByIds(ApkDataSource source, int... ids) {
+        if (source == null) {
+            return null;
+        }
+
+        IdValues values = new IdValues(ids);
+        try {
+            long centralDirOffset = getCentralDirOffset(source);
+            findIdValues(source, centralDirOffset, values);
+            return values;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (SignatureNotFoundException e) {
+            //not have apk signature block
+        }
+        return null;
+    }
+
+    /**
+     * find the central dir offset by the EOCD
+     *
+     * @throws SignatureNotFoundException not a zip file , or a ZIP64 file
+     */
+    static long getCentralDirOffset(ApkDataSource apk) throws IOException, SignatureNotFoundException {
+        Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(apk);
+        if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(apk, eocdAndOffsetInFile.getSecond())) {
+            throw new SignatureNotFoundException("ZIP64 APK not supported");
+        }
+        return ApkSigningBlockUtils.getCentralDirOffset(eocdAndOffsetInFile.getFirst(), eocdAndOffsetInFile.getSecond());
+    }
+
+    /**
+     * find where the value of id is in apk , such as to overwrite the value in place
+     * 只读取EOCD、签名块尾部和各id-value的头部，不读取整个签名块和value
+     *
+     * @param source
+     * @param id
+     * @return the offset of value in apk and the length of value , null if the id is not found
+     * @throws SignatureNotFoundException not have APK Signing Block , or the block is malformed , or a ZIP64 apk
+     */
+    public static Pair<Long, Integer> findIdValueSlot(ApkDataSource source, int id) throws IOException, SignatureNotFoundException {
+        if (source == null) {
+            throw new RuntimeException("findIdValueSlot , param invalid, source = null");
+        }
+        return findIdValueSlot(source, getCentralDirOffset(source), id);
+    }
+
+    /**
+     * find the value of id in the APK Signing Block which immediately precedes the central dir.
+     * the id-value pairs are walked by positional reads of their headers , only the value of id is read
+     *
+     * @param source
+     * @param centralDirOffset
+     * @param id
+     * @return the value , null if the id is not found
+     * @throws SignatureNotFoundException not have APK Signing Block , or the block is malformed
+     */
+    static ByteBuffer findIdValue(ApkDataSource source, long centralDirOffset, int id) throws IOException, SignatureNotFoundException {
+        Pair<Long, Integer> slot = findIdValueSlot(source, centralDirOffset, id);
+        if (slot == null) {
+            return null;
         }
+        ByteBuffer value = ByteBuffer.allocate(slot.getSecond()).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(source, value, slot.getFirst());
+        return value;
+    }
 
+    /**
+     * walk the headers of id-value pairs to find the value of id
+     *
+     * @return the offset of value in file and the length of value , null if the id is not found
+     * @throws SignatureNotFoundException not have APK Signing Block , or the block is malformed
+     */
+    static Pair<Long, Integer> findIdValueSlot(ApkDataSource source, long centralDirOffset, int id) throws IOException, SignatureNotFoundException {
+        long[] pairs = findIdValuePairs(source, centralDirOffset);
+        ByteBuffer header = ByteBuffer.allocate(ID_VALUE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = pairs[0];
+        long end = pairs[1];
+        int entryCount = 0;
+        while (position < end) {
+            entryCount++;
+            long length = readIdValueHeader(source, header, position, end, entryCount);
+            if (header.getInt(8) == id) {
+                return Pair.create(position + ID_VALUE_HEADER_SIZE, (int) (length - 4));
+            }
+            position += 8 + length;
+        }
         return null;
     }
 
+    /**
+     * find the values of all requested ids in one walk of the id-value pairs ,
+     * the walk stops once all requested ids are found
+     *
+     * @param source
+     * @param centralDirOffset
+     * @param values           the requested ids , the found values are set into it
+     * @throws SignatureNotFoundException not have APK Signing Block , or the block is malformed
+     */
+    static void findIdValues(ApkDataSource source, long centralDirOffset, IdValues values) throws IOException, SignatureNotFoundException {
+        long[] pairs = findIdValuePairs(source, centralDirOffset);
+        ByteBuffer header = ByteBuffer.allocate(ID_VALUE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = pairs[0];
+        long end = pairs[1];
+        int entryCount = 0;
+        while (position < end && !values.isComplete()) {
+            entryCount++;
+            long length = readIdValueHeader(source, header, position, end, entryCount);
+            int index = values.indexOf(header.getInt(8));
+            if (index >= 0 && !values.isValueSet(index)) {
+                ByteBuffer value = ByteBuffer.allocate((int) (length - 4));
+                readFully(source, value, position + ID_VALUE_HEADER_SIZE);
+                values.set(index, value.array());
+            }
+            position += 8 + length;
+        }
+    }
+
+    /**
+     * read the footer and the size in header of APK Signing Block
+     *
+     * @return the start and the end of id-value pairs in file
+     * @throws SignatureNotFoundException not have APK Signing Block
+     */
+    static long[] findIdValuePairs(ApkDataSource source, long centralDirOffset) throws IOException, SignatureNotFoundException {
+        if (centralDirOffset < ApkSigningBlockUtils.APK_SIG_BLOCK_MIN_SIZE) {
+            throw new SignatureNotFoundException("APK too small for APK Signing Block. ZIP Central Directory offset: " + centralDirOffset);
+        }
+        //1. footer : size of block and magic
+        ByteBuffer footer = ByteBuffer.allocate(APK_SIG_BLOCK_FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(source, footer, centralDirOffset - APK_SIG_BLOCK_FOOTER_SIZE);
+        if (footer.getLong(8) != ApkSigningBlockUtils.APK_SIG_BLOCK_MAGIC_LO
+                || footer.getLong(16) != ApkSigningBlockUtils.APK_SIG_BLOCK_MAGIC_HI) {
+            throw new SignatureNotFoundException("No APK Signing Block before ZIP Central Directory");
+        }
+        long blockSize = footer.getLong(0);
+        if (blockSize < APK_SIG_BLOCK_FOOTER_SIZE || blockSize > Integer.MAX_VALUE - 8) {
+            throw new SignatureNotFoundException("APK Signing Block size out of range: " + blockSize);
+        }
+        long blockOffset = centralDirOffset - blockSize - 8;
+        if (blockOffset < 0) {
+            throw new SignatureNotFoundException("APK Signing Block offset out of range: " + blockOffset);
+        }
+        //2. size in header
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(source, header, blockOffset);
+        if (header.getLong(0) != blockSize) {
+            throw new SignatureNotFoundException("APK Signing Block sizes in header and footer do not match: " + header.getLong(0) + " vs " + blockSize);
+        }
+        return new long[]{blockOffset + 8, centralDirOffset - APK_SIG_BLOCK_FOOTER_SIZE};
+    }
+
+    /**
+     * read the header of id-value pair at position
+     *
+     * @return the length of id and value
+     * @throws SignatureNotFoundException the pair is out of range
+     */
+    static long readIdValueHeader(ApkDataSource source, ByteBuffer header, long position, long end, int entryCount) throws IOException, SignatureNotFoundException {
+        if (end - position < ID_VALUE_HEADER_SIZE) {
+            throw new SignatureNotFoundException("Insufficient data to read size of APK Signing Block entry #" + entryCount);
+        }
+        header.clear();
+        readFully(source, header, position);
+        long length = header.getLong(0);
+        if (length < 4 || length > end - position - 8) {
+            throw new SignatureNotFoundException("APK Signing Block entry #" + entryCount + " size out of range: " + length);
+        }
+        return length;
+    }
+
+    private static void readFully(ApkDataSource source, ByteBuffer buffer, long position) throws IOException {
+        source.read(buffer, position);
+        buffer.flip();
+    }
+
     /**
      * find all Id-Value Pair from Apk
      *
@@ -127,4 +418,27 @@ public class IdValueReader {
         return null;
     }
 
+    /**
+     * find all Id-Value Pair from an apk source
+     *
+     * @param source
+     * @return
+     */
+    public static Map<Integer, ByteBuffer> getAllIdValueMap(ApkDataSource source) {
+        if (source == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer apkSigningBlock = V2SchemeUtil.getApkSigningBlock(source);
+            return V2SchemeUtil.getAllIdValue(apkSigningBlock);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (SignatureNotFoundException e) {
+            System.out.println("APK : " + source + " not have apk signature block");
+        }
+
+        return null;
+    }
+
 }
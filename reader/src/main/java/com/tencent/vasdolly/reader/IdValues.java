@@ -0,0 +1,152 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.reader;
+
+import com.tencent.vasdolly.common.ChannelConstants;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * The values of a set of ids , read from the APK Signing Block in one pass.
+ * <p>
+ * The ids are kept in a sorted int array and the values in a parallel array , so a lookup is a binary search
+ * without boxing the ids.
+ */
+public class IdValues {
+    private final int[] ids;
+    private final byte[][] values;
+    private int foundCount;
+
+    /**
+     * @param ids the requested ids , the duplicated ids are ignored
+     */
+    IdValues(int[] ids) {
+        if (ids == null) {
+            throw new RuntimeException("IdValues , param invalid, ids = null");
+        }
+        int[] sorted = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        this.ids = Arrays.copyOf(sorted, count);
+        this.values = new byte[count][];
+    }
+
+    /**
+     * @return index of the requested id , or a negative value if the id is not requested
+     */
+    int indexOf(int id) {
+        return Arrays.binarySearch(ids, id);
+    }
+
+    /**
+     * set the value of the id at index , only the first value of an id is kept
+     */
+    void set(int index, byte[] value) {
+        if (values[index] == null) {
+            values[index] = value;
+            foundCount++;
+        }
+    }
+
+    boolean isValueSet(int index) {
+        return values[index] != null;
+    }
+
+    /**
+     * whether the values of all requested ids are found
+     */
+    public boolean isComplete() {
+        return foundCount == ids.length;
+    }
+
+    /**
+     * count of the requested ids
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * the requested id at index , in ascending order
+     */
+    public int idAt(int index) {
+        return ids[index];
+    }
+
+    /**
+     * the value of the requested id at index
+     *
+     * @return null if not found
+     */
+    public byte[] valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * whether the value of id is found
+     */
+    public boolean contains(int id) {
+        int index = indexOf(id);
+        return index >= 0 && values[index] != null;
+    }
+
+    /**
+     * get byte[] value by id
+     *
+     * @return null if not found or not requested
+     */
+    public byte[] get(int id) {
+        int index = indexOf(id);
+        return index >= 0 ? values[index] : null;
+    }
+
+    /**
+     * get string value by id
+     *
+     * @return null if not found or not requested
+     */
+    public String getString(int id) {
+        byte[] value = get(id);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return new String(value, ChannelConstants.CONTENT_CHARSET).trim();
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("IdValues{");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append("0x").append(Integer.toHexString(ids[i])).append('=')
+                    .append(values[i] == null ? "null" : values[i].length + " bytes");
+        }
+        return builder.append('}').toString();
+    }
+}
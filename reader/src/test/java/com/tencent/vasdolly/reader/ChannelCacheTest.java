@@ -0,0 +1,255 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.reader;
+
+import com.tencent.vasdolly.common.V1SchemeUtil;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link ChannelCache} with small v1 channel apks , a cached entry is told apart from a read of apk by
+ * rewriting apk with another channel of the same length and restoring its last modified time.
+ */
+public class ChannelCacheTest {
+    private static final long LAST_MODIFIED = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDir;
+    private ChannelCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDir = folder.newFolder("cache");
+        cache = new ChannelCache(cacheDir);
+    }
+
+    @Test
+    public void warmHitIsReadFromCache() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        assertEquals("c1", cache.getChannel(apk));
+        assertTrue(cache.getCacheFile(apk).isFile());
+
+        // 长度和修改时间不变，命中缓存，不会读取apk中的新渠道
+        writeApk(apk, "c2");
+        assertEquals("c1", cache.getChannel(apk));
+        assertEquals("c1", new ChannelCache(cacheDir).getChannel(apk));
+    }
+
+    @Test
+    public void staleLengthIsReadFromApk() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        assertEquals("c1", cache.getChannel(apk));
+
+        writeApk(apk, "c22");
+        assertEquals("c22", cache.getChannel(apk));
+        // 新的缓存项再次命中
+        writeApk(apk, "c33");
+        assertEquals("c22", cache.getChannel(apk));
+    }
+
+    @Test
+    public void staleLastModifiedIsReadFromApk() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        assertEquals("c1", cache.getChannel(apk));
+
+        writeApk(apk, "c2");
+        assertTrue(apk.setLastModified(LAST_MODIFIED + 2000));
+        assertEquals("c2", cache.getChannel(apk));
+    }
+
+    @Test
+    public void apkWithoutSigningBlockHasNoIdValues() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        assertNull(cache.getAllIdValueMap(apk));
+        assertEquals("c1", cache.getChannel(apk));
+        assertNull(cache.getChannel(new File(folder.getRoot(), "missing.apk")));
+    }
+
+    @Test
+    public void truncatedCacheFileIsRewritten() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        assertEquals("c1", cache.getChannel(apk));
+        File cacheFile = cache.getCacheFile(apk);
+        byte[] expected = Files.readAllBytes(cacheFile.toPath());
+
+        for (int length = 0; length < expected.length; length++) {
+            RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+            // 读取完整的缓存项时发现文件不完整，重新读取apk并保存
+            writeApk(apk, "c2");
+            assertNull(cache.getAllIdValueMap(apk));
+            assertArrayEquals("truncated to " + length, expectedEntry(apk, "c2"), Files.readAllBytes(cacheFile.toPath()));
+            assertEquals("c2", cache.getChannel(apk));
+
+            writeApk(apk, "c1");
+            Files.write(cacheFile.toPath(), expected);
+        }
+    }
+
+    @Test
+    public void corruptIdValueCountIsBounded() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        File cacheFile = cache.getCacheFile(apk);
+        // 伪造的数量远大于缓存文件，不能按数量分配内存
+        Files.write(cacheFile.toPath(), entry(apk, "c2", Integer.MAX_VALUE, 0, 0));
+        assertNull(cache.getAllIdValueMap(apk));
+        assertArrayEquals(expectedEntry(apk, "c1"), Files.readAllBytes(cacheFile.toPath()));
+        // 只读取渠道时不会读取数量，伪造的缓存项仍然命中
+        Files.write(cacheFile.toPath(), entry(apk, "c2", Integer.MAX_VALUE, 0, 0));
+        assertEquals("c2", cache.getChannel(apk));
+    }
+
+    @Test
+    public void corruptIdValueLengthIsBounded() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        File cacheFile = cache.getCacheFile(apk);
+        Files.write(cacheFile.toPath(), entry(apk, "c2", 1, 0x881155ff, Integer.MAX_VALUE));
+        assertNull(cache.getAllIdValueMap(apk));
+        assertArrayEquals(expectedEntry(apk, "c1"), Files.readAllBytes(cacheFile.toPath()));
+
+        Files.write(cacheFile.toPath(), entry(apk, "c2", 1, 0x881155ff, -1));
+        assertNull(cache.getAllIdValueMap(apk));
+        assertArrayEquals(expectedEntry(apk, "c1"), Files.readAllBytes(cacheFile.toPath()));
+    }
+
+    @Test
+    public void cacheFileOfAnotherPathIsIgnored() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        File other = createApk("other.apk", "c2");
+        // hash冲突时缓存文件中的路径不同，视为缓存失效
+        Files.write(cache.getCacheFile(apk).toPath(), expectedEntry(other, "c2"));
+        assertEquals("c1", cache.getChannel(apk));
+    }
+
+    @Test
+    public void staleEntriesAreDeletedOnSave() throws Exception {
+        File oldApk = createApk("old.apk", "c1");
+        File keptApk = createApk("kept.apk", "c2");
+        assertEquals("c1", cache.getChannel(oldApk));
+        assertEquals("c2", cache.getChannel(keptApk));
+        File oldCacheFile = cache.getCacheFile(oldApk);
+        File keptCacheFile = cache.getCacheFile(keptApk);
+        File brokenFile = new File(cacheDir, "channel_broken");
+        Files.write(brokenFile.toPath(), new byte[]{1, 2, 3});
+        File tempFile = new File(cacheDir, "channel_123.tmp");
+        Files.write(tempFile.toPath(), new byte[]{1, 2, 3});
+        File otherFile = new File(cacheDir, "other");
+        Files.write(otherFile.toPath(), new byte[]{1, 2, 3});
+
+        // 只有保存缓存项时才清理
+        assertTrue(oldApk.delete());
+        assertEquals("c2", cache.getChannel(keptApk));
+        assertTrue(oldCacheFile.isFile());
+
+        File newApk = createApk("new.apk", "c3");
+        assertEquals("c3", cache.getChannel(newApk));
+        assertFalse(oldCacheFile.exists());
+        assertFalse(brokenFile.exists());
+        assertTrue(keptCacheFile.isFile());
+        assertTrue(cache.getCacheFile(newApk).isFile());
+        assertTrue(tempFile.isFile());
+        assertTrue(otherFile.isFile());
+    }
+
+    @Test
+    public void removeDeletesEntry() throws Exception {
+        File apk = createApk("app.apk", "c1");
+        assertEquals("c1", cache.getChannel(apk));
+        cache.remove(apk);
+        assertFalse(cache.getCacheFile(apk).exists());
+        writeApk(apk, "c2");
+        assertEquals("c2", cache.getChannel(apk));
+    }
+
+    private File createApk(String name, String channel) throws Exception {
+        File apk = new File(folder.getRoot(), name);
+        writeApk(apk, channel);
+        return apk;
+    }
+
+    /**
+     * write a zip of the same bytes except the v1 channel , and restore the last modified time
+     */
+    private static void writeApk(File apk, String channel) throws Exception {
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(apk));
+        try {
+            ZipEntry entry = new ZipEntry("classes.dex");
+            entry.setTime(LAST_MODIFIED);
+            output.putNextEntry(entry);
+            output.write(new byte[1024]);
+            output.closeEntry();
+        } finally {
+            output.close();
+        }
+        V1SchemeUtil.writeChannel(apk, channel);
+        assertTrue(apk.setLastModified(LAST_MODIFIED));
+    }
+
+    /**
+     * the cache file which is saved for apk without apk signature block
+     */
+    private static byte[] expectedEntry(File apk, String channel) throws IOException {
+        return entry(apk, channel, -1, 0, 0);
+    }
+
+    /**
+     * the cache file with a single id-value header and no value bytes , or no id-value if count is negative
+     */
+    private static byte[] entry(File apk, String channel, int count, int id, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(0x56444348);
+        output.writeInt(1);
+        output.writeUTF(apk.getAbsolutePath());
+        output.writeLong(apk.length());
+        output.writeLong(apk.lastModified());
+        output.writeBoolean(true);
+        output.writeUTF(channel);
+        output.writeInt(count);
+        if (count > 0) {
+            output.writeInt(id);
+            output.writeInt(length);
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+}
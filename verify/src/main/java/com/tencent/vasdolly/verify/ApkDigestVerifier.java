@@ -0,0 +1,523 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import com.tencent.vasdolly.common.V2SchemeUtil;
+import com.tencent.vasdolly.common.V3SchemeUtil;
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.SignatureInfo;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifier of APK Signature Scheme v2/v3 which digests the apk by several threads.
+ * <p>
+ * The v2/v3 content digest is defined over independent chunks of 1MB of the content entry , the central dir and
+ * the eocd , so the chunk digests are computed in parallel on a fork/join pool over the memory-mapped apk , then
+ * the top-level digest is computed from the chunk digests and compared with the digest signed by every signer.
+ * <p>
+ * Both the v3 block and the v2 block are verified if present , the chunks are digested once for both blocks.
+ * Only the strongest supported algorithm of every signer is verified , like the platform does , the weaker
+ * signatures and digests of the same signer , the v1 signature and the verity digests are not verified ,
+ * use {@link VerifyApk} for the complete verification.
+ * <p>
+ * https://source.android.com/security/apksigning/v2
+ */
+public class ApkDigestVerifier {
+    private static final int SIGNATURE_RSA_PSS_WITH_SHA256 = 0x0101;
+    private static final int SIGNATURE_RSA_PSS_WITH_SHA512 = 0x0102;
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256 = 0x0103;
+    private static final int SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512 = 0x0104;
+    private static final int SIGNATURE_ECDSA_WITH_SHA256 = 0x0201;
+    private static final int SIGNATURE_ECDSA_WITH_SHA512 = 0x0202;
+    private static final int SIGNATURE_DSA_WITH_SHA256 = 0x0301;
+
+    private static final int CONTENT_DIGEST_CHUNKED_SHA256 = 1;
+    private static final int CONTENT_DIGEST_CHUNKED_SHA512 = 2;
+
+    // 每个任务最少处理的块数
+    private static final int MIN_CHUNKS_PER_TASK = 8;
+    // 每次映射的最大大小，必须是块大小的整数倍
+    private static final long MAX_MAP_SIZE = (Integer.MAX_VALUE / ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES) * (long) ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+
+    private ApkDigestVerifier() {
+    }
+
+    /**
+     * verify the apk by the common fork/join pool
+     *
+     * @param apkFile
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException the apk has no v2/v3 signature
+     */
+    public static boolean verify(File apkFile) throws IOException, SignatureNotFoundException {
+        return verify(apkFile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * verify the apk
+     *
+     * @param apkFile
+     * @param pool    the pool which computes the chunk digests
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException the apk has no v2/v3 signature
+     */
+    public static boolean verify(File apkFile, ForkJoinPool pool) throws IOException, SignatureNotFoundException {
+        if (apkFile == null || !apkFile.exists() || !apkFile.isFile() || pool == null) {
+            throw new RuntimeException("ApkDigestVerifier verify , param invalid, apkFile = " + apkFile + " , pool = " + pool);
+        }
+        RandomAccessFile apk = null;
+        try {
+            apk = new RandomAccessFile(apkFile, "r");
+            //1. find the v3 block and the v2 block
+            SignatureInfo v3SignatureInfo = findSignature(apk, V3SchemeUtil.APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+            SignatureInfo v2SignatureInfo = findSignature(apk, V2SchemeUtil.APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+            if (v3SignatureInfo == null && v2SignatureInfo == null) {
+                throw new SignatureNotFoundException("No APK Signature Scheme v2/v3 block in APK Signing Block");
+            }
+            //2. verify the signed data of every signer , and get the signed content digests of every block
+            Map<Integer, byte[]> v3Digests = null;
+            if (v3SignatureInfo != null) {
+                v3Digests = verifySigners(v3SignatureInfo.signatureBlock, true);
+                if (v3Digests == null) {
+                    return false;
+                }
+            }
+            Map<Integer, byte[]> v2Digests = null;
+            if (v2SignatureInfo != null) {
+                v2Digests = verifySigners(v2SignatureInfo.signatureBlock, false);
+                if (v2Digests == null) {
+                    return false;
+                }
+            }
+            //3. compute the content digests by chunks , the two blocks sign the same content
+            SignatureInfo signatureInfo = v3SignatureInfo != null ? v3SignatureInfo : v2SignatureInfo;
+            Set<Integer> digestAlgorithms = new HashSet<>();
+            if (v3Digests != null) {
+                digestAlgorithms.addAll(v3Digests.keySet());
+            }
+            if (v2Digests != null) {
+                digestAlgorithms.addAll(v2Digests.keySet());
+            }
+            long startTime = System.currentTimeMillis();
+            Map<Integer, byte[]> actualDigests = computeContentDigests(apk.getChannel(), signatureInfo, digestAlgorithms, pool);
+            if (!matchContentDigests(apkFile, "v3", v3Digests, actualDigests)
+                    || !matchContentDigests(apkFile, "v2", v2Digests, actualDigests)) {
+                return false;
+            }
+            System.out.println("ApkDigestVerifier , " + apkFile + " verified using " + (v3Digests != null ? (v2Digests != null ? "v3 and v2" : "v3") : "v2")
+                    + " scheme , digest cost : " + (System.currentTimeMillis() - startTime) + " ms");
+            return true;
+        } finally {
+            if (apk != null) {
+                apk.close();
+            }
+        }
+    }
+
+    /**
+     * @return null if the apk has no block of the id
+     */
+    private static SignatureInfo findSignature(RandomAccessFile apk, int blockId) throws IOException {
+        try {
+            return ApkSigningBlockUtils.findSignature(apk, blockId);
+        } catch (SignatureNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * compare the digests signed in a block with the computed digests
+     *
+     * @param expectedDigests null if the apk has no such block
+     */
+    private static boolean matchContentDigests(File apkFile, String scheme, Map<Integer, byte[]> expectedDigests, Map<Integer, byte[]> actualDigests) {
+        if (expectedDigests == null) {
+            return true;
+        }
+        for (Map.Entry<Integer, byte[]> entry : expectedDigests.entrySet()) {
+            if (!MessageDigest.isEqual(entry.getValue(), actualDigests.get(entry.getKey()))) {
+                System.out.println("ApkDigestVerifier , " + apkFile + " " + scheme + " content digest mismatch , digest algorithm : " + entry.getKey());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * verify the signature of every signer
+     *
+     * @return content digest algorithm and the signed digest , null if any signer is invalid or malformed
+     */
+    private static Map<Integer, byte[]> verifySigners(ByteBuffer signatureBlock, boolean v3) throws SignatureNotFoundException {
+        Map<Integer, byte[]> contentDigests = new HashMap<>();
+        try {
+            ByteBuffer signers = getLengthPrefixedSlice(signatureBlock.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+            int signerCount = 0;
+            while (signers.hasRemaining()) {
+                signerCount++;
+                ByteBuffer signer = getLengthPrefixedSlice(signers);
+                if (!verifySigner(signer, v3, contentDigests)) {
+                    System.out.println("ApkDigestVerifier , signer #" + signerCount + " verify failure");
+                    return null;
+                }
+            }
+            if (signerCount == 0) {
+                throw new SignatureNotFoundException("No signers found");
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // 签名块格式错误视为校验失败
+            System.out.println("ApkDigestVerifier , failed to parse signers : " + e);
+            return null;
+        }
+        return contentDigests;
+    }
+
+    private static boolean verifySigner(ByteBuffer signer, boolean v3, Map<Integer, byte[]> contentDigests) throws IOException {
+        // v2 signer : signed data , signatures , public key
+        // v3 signer : signed data , min sdk , max sdk , signatures , public key
+        ByteBuffer signedData = getLengthPrefixedSlice(signer);
+        if (v3) {
+            signer.getInt();
+            signer.getInt();
+        }
+        ByteBuffer signatures = getLengthPrefixedSlice(signer);
+        byte[] publicKeyBytes = readLengthPrefixedByteArray(signer);
+
+        //1. choose the strongest supported signature algorithm
+        int bestAlgorithm = -1;
+        byte[] bestSignature = null;
+        List<Integer> signatureAlgorithms = new ArrayList<>();
+        while (signatures.hasRemaining()) {
+            ByteBuffer signature = getLengthPrefixedSlice(signatures);
+            int algorithm = signature.getInt();
+            byte[] signatureBytes = readLengthPrefixedByteArray(signature);
+            signatureAlgorithms.add(algorithm);
+            if (isSupportedSignatureAlgorithm(algorithm)
+                    && (bestAlgorithm == -1 || compareSignatureAlgorithm(algorithm, bestAlgorithm) > 0)) {
+                bestAlgorithm = algorithm;
+                bestSignature = signatureBytes;
+            }
+        }
+        if (bestAlgorithm == -1) {
+            System.out.println("ApkDigestVerifier , no supported signature algorithm : " + signatureAlgorithms);
+            return false;
+        }
+
+        //2. verify the signed data
+        PublicKey publicKey;
+        try {
+            publicKey = KeyFactory.getInstance(getKeyAlgorithm(bestAlgorithm)).generatePublic(new X509EncodedKeySpec(publicKeyBytes));
+            Signature sig = Signature.getInstance(getJcaSignatureAlgorithm(bestAlgorithm));
+            sig.initVerify(publicKey);
+            if (bestAlgorithm == SIGNATURE_RSA_PSS_WITH_SHA256) {
+                sig.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 256 / 8, 1));
+            } else if (bestAlgorithm == SIGNATURE_RSA_PSS_WITH_SHA512) {
+                sig.setParameter(new PSSParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, 512 / 8, 1));
+            }
+            sig.update(signedData.duplicate());
+            if (!sig.verify(bestSignature)) {
+                System.out.println("ApkDigestVerifier , signature of signed data did not verify , algorithm : " + bestAlgorithm);
+                return false;
+            }
+        } catch (GeneralSecurityException e) {
+            System.out.println("ApkDigestVerifier , failed to verify signature , algorithm : " + bestAlgorithm + " , " + e);
+            return false;
+        }
+
+        //3. the signed digests must be made by the same algorithms as the signatures
+        ByteBuffer digests = getLengthPrefixedSlice(signedData);
+        ByteBuffer certificates = getLengthPrefixedSlice(signedData);
+        List<Integer> digestAlgorithms = new ArrayList<>();
+        byte[] contentDigest = null;
+        while (digests.hasRemaining()) {
+            ByteBuffer digest = getLengthPrefixedSlice(digests);
+            int algorithm = digest.getInt();
+            byte[] digestBytes = readLengthPrefixedByteArray(digest);
+            digestAlgorithms.add(algorithm);
+            if (algorithm == bestAlgorithm) {
+                contentDigest = digestBytes;
+            }
+        }
+        if (!signatureAlgorithms.equals(digestAlgorithms) || contentDigest == null) {
+            System.out.println("ApkDigestVerifier , signature algorithms " + signatureAlgorithms + " mismatch digest algorithms " + digestAlgorithms);
+            return false;
+        }
+        int digestAlgorithm = getContentDigestAlgorithm(bestAlgorithm);
+        byte[] previous = contentDigests.put(digestAlgorithm, contentDigest);
+        if (previous != null && !MessageDigest.isEqual(previous, contentDigest)) {
+            System.out.println("ApkDigestVerifier , signers have different content digests");
+            return false;
+        }
+
+        //4. the public key must be the key of the first certificate
+        if (!certificates.hasRemaining()) {
+            System.out.println("ApkDigestVerifier , no certificates listed");
+            return false;
+        }
+        try {
+            byte[] certificateBytes = readLengthPrefixedByteArray(certificates);
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(certificateBytes));
+            if (!Arrays.equals(publicKeyBytes, certificate.getPublicKey().getEncoded())) {
+                System.out.println("ApkDigestVerifier , public key mismatch between certificate and signature record");
+                return false;
+            }
+        } catch (GeneralSecurityException e) {
+            System.out.println("ApkDigestVerifier , failed to decode certificate , " + e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * compute the chunked content digests of content entry , central dir and eocd.
+     * the eocd is digested with the offset of APK Signing Block as the central dir offset
+     */
+    private static Map<Integer, byte[]> computeContentDigests(FileChannel apk, SignatureInfo signatureInfo, Iterable<Integer> digestAlgorithms, ForkJoinPool pool) throws IOException {
+        //1. the sections , content entry is mapped by several buffers if it is too large
+        List<ByteBuffer> sections = new ArrayList<>();
+        for (long position = 0; position < signatureInfo.apkSigningBlockOffset; position += MAX_MAP_SIZE) {
+            long size = Math.min(MAX_MAP_SIZE, signatureInfo.apkSigningBlockOffset - position);
+            sections.add(apk.map(FileChannel.MapMode.READ_ONLY, position, size));
+        }
+        sections.add(apk.map(FileChannel.MapMode.READ_ONLY, signatureInfo.centralDirOffset, signatureInfo.eocdOffset - signatureInfo.centralDirOffset));
+        ByteBuffer eocd = ByteBuffer.allocate(signatureInfo.eocd.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        eocd.put(signatureInfo.eocd.duplicate());
+        eocd.flip();
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocd, signatureInfo.apkSigningBlockOffset);
+        sections.add(eocd);
+
+        //2. split the sections into chunks
+        List<ByteBuffer> chunks = new ArrayList<>();
+        for (ByteBuffer section : sections) {
+            int sectionSize = section.remaining();
+            for (int offset = 0; offset < sectionSize; offset += ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES) {
+                int end = Math.min(sectionSize, offset + ApkSigningBlockUtils.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
+                chunks.add(ApkSigningBlockUtils.sliceFromTo(section, offset, end));
+            }
+        }
+
+        //3. digest the chunks in parallel , then the top-level digest of every algorithm
+        Map<Integer, byte[]> contentDigests = new HashMap<>();
+        for (int digestAlgorithm : digestAlgorithms) {
+            String jcaDigestAlgorithm = getJcaDigestAlgorithm(digestAlgorithm);
+            int digestLength = getDigestLength(digestAlgorithm);
+            byte[] chunkDigests = new byte[chunks.size() * digestLength];
+            pool.invoke(new ChunkDigestTask(chunks, 0, chunks.size(), jcaDigestAlgorithm, digestLength, chunkDigests));
+
+            MessageDigest md = newMessageDigest(jcaDigestAlgorithm);
+            md.update((byte) 0x5a);
+            md.update(toLittleEndianInt(chunks.size()));
+            md.update(chunkDigests);
+            contentDigests.put(digestAlgorithm, md.digest());
+        }
+        return contentDigests;
+    }
+
+    /**
+     * digest the chunks [from , to) , the digest of chunk i is written to chunkDigests at i * digestLength
+     */
+    private static class ChunkDigestTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ByteBuffer> chunks;
+        private final int from;
+        private final int to;
+        private final String jcaDigestAlgorithm;
+        private final int digestLength;
+        private final byte[] chunkDigests;
+
+        ChunkDigestTask(List<ByteBuffer> chunks, int from, int to, String jcaDigestAlgorithm, int digestLength, byte[] chunkDigests) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.jcaDigestAlgorithm = jcaDigestAlgorithm;
+            this.digestLength = digestLength;
+            this.chunkDigests = chunkDigests;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MIN_CHUNKS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChunkDigestTask(chunks, from, middle, jcaDigestAlgorithm, digestLength, chunkDigests),
+                        new ChunkDigestTask(chunks, middle, to, jcaDigestAlgorithm, digestLength, chunkDigests));
+                return;
+            }
+            MessageDigest md = newMessageDigest(jcaDigestAlgorithm);
+            try {
+                for (int i = from; i < to; i++) {
+                    ByteBuffer chunk = chunks.get(i).duplicate();
+                    md.update((byte) 0xa5);
+                    md.update(toLittleEndianInt(chunk.remaining()));
+                    md.update(chunk);
+                    int digested = md.digest(chunkDigests, i * digestLength, digestLength);
+                    if (digested != digestLength) {
+                        throw new RuntimeException("Unexpected output size of " + jcaDigestAlgorithm + " digest : " + digested);
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Failed to digest chunks by " + jcaDigestAlgorithm, e);
+            }
+        }
+    }
+
+    private static MessageDigest newMessageDigest(String jcaDigestAlgorithm) {
+        try {
+            return MessageDigest.getInstance(jcaDigestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(jcaDigestAlgorithm + " digest not supported", e);
+        }
+    }
+
+    private static byte[] toLittleEndianInt(int value) {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)};
+    }
+
+    private static boolean isSupportedSignatureAlgorithm(int algorithm) {
+        switch (algorithm) {
+            case SIGNATURE_RSA_PSS_WITH_SHA256:
+            case SIGNATURE_RSA_PSS_WITH_SHA512:
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256:
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+            case SIGNATURE_ECDSA_WITH_SHA256:
+            case SIGNATURE_ECDSA_WITH_SHA512:
+            case SIGNATURE_DSA_WITH_SHA256:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * sha512 is stronger than sha256 , the algorithms of the same strength are equal , so the first one is kept
+     */
+    private static int compareSignatureAlgorithm(int algorithm1, int algorithm2) {
+        int digestAlgorithm1 = getContentDigestAlgorithm(algorithm1);
+        int digestAlgorithm2 = getContentDigestAlgorithm(algorithm2);
+        if (digestAlgorithm1 != digestAlgorithm2) {
+            return digestAlgorithm1 - digestAlgorithm2;
+        }
+        return 0;
+    }
+
+    private static int getContentDigestAlgorithm(int signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case SIGNATURE_RSA_PSS_WITH_SHA512:
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+            case SIGNATURE_ECDSA_WITH_SHA512:
+                return CONTENT_DIGEST_CHUNKED_SHA512;
+            default:
+                return CONTENT_DIGEST_CHUNKED_SHA256;
+        }
+    }
+
+    private static String getJcaDigestAlgorithm(int digestAlgorithm) {
+        return digestAlgorithm == CONTENT_DIGEST_CHUNKED_SHA512 ? "SHA-512" : "SHA-256";
+    }
+
+    private static int getDigestLength(int digestAlgorithm) {
+        return digestAlgorithm == CONTENT_DIGEST_CHUNKED_SHA512 ? 64 : 32;
+    }
+
+    private static String getKeyAlgorithm(int signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case SIGNATURE_ECDSA_WITH_SHA256:
+            case SIGNATURE_ECDSA_WITH_SHA512:
+                return "EC";
+            case SIGNATURE_DSA_WITH_SHA256:
+                return "DSA";
+            default:
+                return "RSA";
+        }
+    }
+
+    private static String getJcaSignatureAlgorithm(int signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case SIGNATURE_RSA_PSS_WITH_SHA256:
+                return "SHA256withRSA/PSS";
+            case SIGNATURE_RSA_PSS_WITH_SHA512:
+                return "SHA512withRSA/PSS";
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA256:
+                return "SHA256withRSA";
+            case SIGNATURE_RSA_PKCS1_V1_5_WITH_SHA512:
+                return "SHA512withRSA";
+            case SIGNATURE_ECDSA_WITH_SHA256:
+                return "SHA256withECDSA";
+            case SIGNATURE_ECDSA_WITH_SHA512:
+                return "SHA512withECDSA";
+            default:
+                return "SHA256withDSA";
+        }
+    }
+
+    private static ByteBuffer getLengthPrefixedSlice(ByteBuffer source) throws IOException {
+        if (source.remaining() < 4) {
+            throw new IOException("Remaining buffer too short to contain length of length-prefixed field. Remaining: " + source.remaining());
+        }
+        int len = source.getInt();
+        if (len < 0) {
+            throw new IOException("Negative length");
+        } else if (len > source.remaining()) {
+            throw new IOException("Length-prefixed field longer than remaining buffer. Field length: " + len + ", remaining: " + source.remaining());
+        }
+        return ApkSigningBlockUtils.getByteBuffer(source, len);
+    }
+
+    private static byte[] readLengthPrefixedByteArray(ByteBuffer buf) throws IOException {
+        int len = buf.getInt();
+        if (len < 0) {
+            throw new IOException("Negative length");
+        } else if (len > buf.remaining()) {
+            throw new IOException("Underflow while reading length-prefixed value. Length: " + len + ", available: " + buf.remaining());
+        }
+        byte[] result = new byte[len];
+        buf.get(result);
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import com.android.apksig.util.DataSink;
+import com.android.apksig.util.DataSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link DataSource} which is the concatenation of several data sources , such as a range of base apk file
+ * followed by the sections of a channel apk in memory. No byte is copied until it is read.
+ */
+public class ChainedDataSource implements DataSource {
+    private final DataSource[] sources;
+    // start offset of every source in the chain
+    private final long[] offsets;
+    private final long size;
+
+    public ChainedDataSource(DataSource... sources) {
+        List<DataSource> nonEmpty = new ArrayList<>(sources.length);
+        for (DataSource source : sources) {
+            if (source.size() > 0) {
+                nonEmpty.add(source);
+            }
+        }
+        this.sources = nonEmpty.toArray(new DataSource[0]);
+        this.offsets = new long[this.sources.length];
+        long size = 0;
+        for (int i = 0; i < this.sources.length; i++) {
+            offsets[i] = size;
+            size += this.sources[i].size();
+        }
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void feed(long offset, long size, DataSink sink) throws IOException {
+        checkRange(offset, size);
+        int index = indexOf(offset);
+        long fed = 0;
+        while (fed < size) {
+            long offsetInSource = offset + fed - offsets[index];
+            long count = Math.min(size - fed, sources[index].size() - offsetInSource);
+            sources[index].feed(offsetInSource, count, sink);
+            fed += count;
+            index++;
+        }
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer(long offset, int size) throws IOException {
+        checkRange(offset, size);
+        if (size == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        //只在一个数据源内时，直接使用该数据源的Buffer，避免复制
+        int index = indexOf(offset);
+        long offsetInSource = offset - offsets[index];
+        if (offsetInSource + size <= sources[index].size()) {
+            return sources[index].getByteBuffer(offsetInSource, size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        copyTo(offset, size, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void copyTo(long offset, int size, ByteBuffer dest) throws IOException {
+        checkRange(offset, size);
+        int index = indexOf(offset);
+        long copied = 0;
+        while (copied < size) {
+            long offsetInSource = offset + copied - offsets[index];
+            int count = (int) Math.min(size - copied, sources[index].size() - offsetInSource);
+            sources[index].copyTo(offsetInSource, count, dest);
+            copied += count;
+            index++;
+        }
+    }
+
+    @Override
+    public DataSource slice(long offset, long size) {
+        checkRange(offset, size);
+        if (size == 0) {
+            return new ChainedDataSource();
+        }
+        int index = indexOf(offset);
+        long offsetInSource = offset - offsets[index];
+        if (offsetInSource + size <= sources[index].size()) {
+            return sources[index].slice(offsetInSource, size);
+        }
+        List<DataSource> slices = new ArrayList<>();
+        long sliced = 0;
+        while (sliced < size) {
+            offsetInSource = offset + sliced - offsets[index];
+            long count = Math.min(size - sliced, sources[index].size() - offsetInSource);
+            slices.add(sources[index].slice(offsetInSource, count));
+            sliced += count;
+            index++;
+        }
+        return new ChainedDataSource(slices.toArray(new DataSource[0]));
+    }
+
+    private void checkRange(long offset, long size) {
+        if (offset < 0 || size < 0 || offset > this.size || size > this.size - offset) {
+            throw new IndexOutOfBoundsException("offset : " + offset + " , size : " + size + " , source size : " + this.size);
+        }
+    }
+
+    /**
+     * index of the source which contains the offset
+     */
+    private int indexOf(long offset) {
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
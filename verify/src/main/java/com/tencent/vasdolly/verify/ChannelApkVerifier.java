@@ -0,0 +1,309 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import com.tencent.vasdolly.common.ChannelConstants;
+import com.tencent.vasdolly.common.Pair;
+import com.tencent.vasdolly.common.V1ChannelTemplate;
+import com.tencent.vasdolly.common.V1SchemeUtil;
+import com.tencent.vasdolly.common.V2SchemeUtil;
+import com.tencent.vasdolly.common.apk.ApkSigningBlockUtils;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+import com.tencent.vasdolly.common.apk.ZipUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Structural verifier of channel apks.
+ * <p>
+ * The base apk is verified by apksig once. A channel apk only differs from the base apk in the channel id-value pair
+ * (and the verity padding) of APK Signing Block and the central dir offset of EOCD for v2/v3 , or in the zip comment
+ * for v1 , and none of them is protected by the signature. So a channel apk is as valid as the base apk , if:
+ * <ul>
+ * <li>the bytes before APK Signing Block (v2/v3) or before EOCD (v1) are identical to the base apk</li>
+ * <li>all the other id-value pairs of APK Signing Block , including the signature scheme blocks , are unchanged</li>
+ * <li>the central dir is unchanged and the central dir offset of EOCD is right</li>
+ * </ul>
+ * No digest is computed for the channel apk , it is only read once and compared with the base apk.
+ * <p>
+ * The verifier is immutable and can be shared by all threads.
+ */
+public class ChannelApkVerifier {
+    private static final int COMPARE_BUFFER_SIZE = 1024 * 1024;
+
+    private final File baseApk;
+    private final long eocdOffset;
+    private final byte[] eocd;
+    // only for the base apk without v1 channel
+    private final V1ChannelTemplate v1Template;
+    // only for the v2/v3 base apk
+    private final long apkSigningBlockOffset;
+    private final long centralDirOffset;
+    private final Map<Integer, ByteBuffer> signedIdValues;
+
+    private ChannelApkVerifier(File baseApk, long eocdOffset, byte[] eocd, V1ChannelTemplate v1Template, long apkSigningBlockOffset, long centralDirOffset, Map<Integer, ByteBuffer> signedIdValues) {
+        this.baseApk = baseApk;
+        this.eocdOffset = eocdOffset;
+        this.eocd = eocd;
+        this.v1Template = v1Template;
+        this.apkSigningBlockOffset = apkSigningBlockOffset;
+        this.centralDirOffset = centralDirOffset;
+        this.signedIdValues = signedIdValues;
+    }
+
+    /**
+     * verify the base apk by apksig , and parse it for the structural verification of channel apks
+     *
+     * @param baseApk
+     * @return
+     * @throws Exception the base apk verify failure
+     */
+    public static ChannelApkVerifier create(File baseApk) throws Exception {
+        return create(baseApk, VerifyProfile.full());
+    }
+
+    /**
+     * verify the base apk by apksig with the profile , and parse it for the structural verification of channel apks
+     *
+     * @param baseApk
+     * @param profile the platform versions which the base apk is verified for
+     * @return
+     * @throws Exception the base apk verify failure
+     */
+    public static ChannelApkVerifier create(File baseApk, VerifyProfile profile) throws Exception {
+        if (baseApk == null || !baseApk.exists() || !baseApk.isFile()) {
+            throw new RuntimeException("ChannelApkVerifier create , param invalid, baseApk = " + baseApk);
+        }
+        //1. verify the base apk once
+        if (!VerifyApk.verifySignature(baseApk, profile)) {
+            throw new RuntimeException("ChannelApkVerifier create , base apk " + baseApk + " verify failure");
+        }
+        //2. parse the sections of base apk
+        RandomAccessFile apk = null;
+        try {
+            apk = new RandomAccessFile(baseApk, "r");
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = getEocd(apk);
+            byte[] eocd = toByteArray(eocdAndOffsetInFile.getFirst());
+            long centralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocdAndOffsetInFile.getFirst(), eocdAndOffsetInFile.getSecond());
+            long apkSigningBlockOffset = -1;
+            Map<Integer, ByteBuffer> signedIdValues = null;
+            try {
+                Pair<ByteBuffer, Long> apkSigningBlock = ApkSigningBlockUtils.findApkSigningBlock(apk, centralDirOffset);
+                apkSigningBlockOffset = apkSigningBlock.getSecond();
+                signedIdValues = getSignedIdValues(apkSigningBlock.getFirst());
+            } catch (SignatureNotFoundException e) {
+                System.out.println("ChannelApkVerifier , base apk " + baseApk + " has no APK Signing Block , only v1 channel apk can be verified");
+            }
+            V1ChannelTemplate v1Template = null;
+            try {
+                v1Template = V1ChannelTemplate.create(baseApk);
+            } catch (V1SchemeUtil.ChannelExistException e) {
+                System.out.println("ChannelApkVerifier , base apk " + baseApk + " has a v1 channel , only v2 channel apk can be verified");
+            }
+            return new ChannelApkVerifier(baseApk, eocdAndOffsetInFile.getSecond(), eocd, v1Template, apkSigningBlockOffset, centralDirOffset, signedIdValues);
+        } finally {
+            if (apk != null) {
+                apk.close();
+            }
+        }
+    }
+
+    public File getBaseApk() {
+        return baseApk;
+    }
+
+    /**
+     * verify the channel apk which is generated from the base apk in the v2/v3 signature mode
+     *
+     * @param channelApk
+     * @return
+     * @throws IOException
+     */
+    public boolean verifyV2(File channelApk) throws IOException {
+        if (signedIdValues == null) {
+            System.out.println("ChannelApkVerifier verifyV2 , base apk has no APK Signing Block");
+            return false;
+        }
+        RandomAccessFile apk = null;
+        RandomAccessFile base = null;
+        try {
+            apk = new RandomAccessFile(channelApk, "r");
+            base = new RandomAccessFile(baseApk, "r");
+            //1. find the sections of channel apk
+            Pair<ByteBuffer, Long> eocdAndOffsetInFile = getEocd(apk);
+            long channelCentralDirOffset = ApkSigningBlockUtils.getCentralDirOffset(eocdAndOffsetInFile.getFirst(), eocdAndOffsetInFile.getSecond());
+            Pair<ByteBuffer, Long> apkSigningBlock = ApkSigningBlockUtils.findApkSigningBlock(apk, channelCentralDirOffset);
+            if (apkSigningBlock.getSecond() != apkSigningBlockOffset) {
+                return fail(channelApk, "APK Signing Block offset " + apkSigningBlock.getSecond() + " , expected " + apkSigningBlockOffset);
+            }
+            //2. eocd is unchanged except the central dir offset
+            ByteBuffer channelEocd = eocdAndOffsetInFile.getFirst();
+            if (channelEocd.remaining() != eocd.length) {
+                return fail(channelApk, "eocd size changed");
+            }
+            ByteBuffer expectedEocd = ByteBuffer.wrap(eocd.clone()).order(ByteOrder.LITTLE_ENDIAN);
+            ZipUtils.setZipEocdCentralDirectoryOffset(expectedEocd, channelCentralDirOffset);
+            if (!expectedEocd.equals(channelEocd)) {
+                return fail(channelApk, "eocd changed");
+            }
+            //3. central dir is unchanged
+            long centralDirSize = eocdOffset - centralDirOffset;
+            if (eocdAndOffsetInFile.getSecond() - channelCentralDirOffset != centralDirSize) {
+                return fail(channelApk, "central dir size changed");
+            }
+            if (!rangeEquals(apk.getChannel(), channelCentralDirOffset, base.getChannel(), centralDirOffset, centralDirSize)) {
+                return fail(channelApk, "central dir changed");
+            }
+            //4. the signed id-value pairs are unchanged
+            if (!signedIdValues.equals(getSignedIdValues(apkSigningBlock.getFirst()))) {
+                return fail(channelApk, "signature scheme block changed");
+            }
+            //5. content entry is unchanged
+            if (!rangeEquals(apk.getChannel(), 0, base.getChannel(), 0, apkSigningBlockOffset)) {
+                return fail(channelApk, "content entry changed");
+            }
+            System.out.println("ChannelApkVerifier verifyV2 , " + channelApk + " verify success");
+            return true;
+        } catch (SignatureNotFoundException e) {
+            return fail(channelApk, e.getMessage());
+        } finally {
+            if (apk != null) {
+                apk.close();
+            }
+            if (base != null) {
+                base.close();
+            }
+        }
+    }
+
+    /**
+     * verify the channel apk which is generated from the base apk in the v1 signature mode
+     *
+     * @param channelApk
+     * @return
+     * @throws IOException
+     */
+    public boolean verifyV1(File channelApk) throws IOException {
+        if (v1Template == null) {
+            System.out.println("ChannelApkVerifier verifyV1 , base apk already has a v1 channel");
+            return false;
+        }
+        //1. read the channel , the expected tail of channel apk depends on it
+        String channel;
+        try {
+            channel = V1SchemeUtil.readChannel(channelApk);
+        } catch (Exception e) {
+            return fail(channelApk, "read channel failure : " + e.getMessage());
+        }
+        long eocdOffset = v1Template.getEocdOffset();
+        ByteBuffer expectedTail = v1Template.getTail(channel);
+        if (channelApk.length() != eocdOffset + expectedTail.remaining()) {
+            return fail(channelApk, "apk size " + channelApk.length() + " , expected " + (eocdOffset + expectedTail.remaining()));
+        }
+        RandomAccessFile apk = null;
+        RandomAccessFile base = null;
+        try {
+            apk = new RandomAccessFile(channelApk, "r");
+            base = new RandomAccessFile(baseApk, "r");
+            //2. eocd , comment and channel
+            ByteBuffer tail = ByteBuffer.allocate(expectedTail.remaining());
+            readFully(apk.getChannel(), tail, eocdOffset, tail.capacity());
+            if (!expectedTail.equals(tail)) {
+                return fail(channelApk, "eocd changed");
+            }
+            //3. the bytes before eocd are unchanged
+            if (!rangeEquals(apk.getChannel(), 0, base.getChannel(), 0, eocdOffset)) {
+                return fail(channelApk, "content changed");
+            }
+            System.out.println("ChannelApkVerifier verifyV1 , " + channelApk + " verify success");
+            return true;
+        } finally {
+            if (apk != null) {
+                apk.close();
+            }
+            if (base != null) {
+                base.close();
+            }
+        }
+    }
+
+    private static boolean fail(File channelApk, String reason) {
+        System.out.println("ChannelApkVerifier , " + channelApk + " verify failure : " + reason);
+        return false;
+    }
+
+    private static Pair<ByteBuffer, Long> getEocd(RandomAccessFile apk) throws IOException, SignatureNotFoundException {
+        Pair<ByteBuffer, Long> eocdAndOffsetInFile = ApkSigningBlockUtils.getEocd(apk);
+        if (ZipUtils.isZip64EndOfCentralDirectoryLocatorPresent(apk, eocdAndOffsetInFile.getSecond())) {
+            throw new SignatureNotFoundException("ZIP64 APK not supported");
+        }
+        return eocdAndOffsetInFile;
+    }
+
+    /**
+     * all id-value pairs except the channel and the verity padding
+     */
+    private static Map<Integer, ByteBuffer> getSignedIdValues(ByteBuffer apkSigningBlock) throws SignatureNotFoundException {
+        Map<Integer, ByteBuffer> idValues = V2SchemeUtil.getAllIdValue(apkSigningBlock);
+        idValues.remove(ChannelConstants.CHANNEL_BLOCK_ID);
+        idValues.remove(ApkSigningBlockUtils.VERITY_PADDING_BLOCK_ID);
+        return idValues;
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * compare [position1 , position1 + count) of channel1 with [position2 , position2 + count) of channel2
+     */
+    private static boolean rangeEquals(FileChannel channel1, long position1, FileChannel channel2, long position2, long count) throws IOException {
+        ByteBuffer buffer1 = ByteBuffer.allocate((int) Math.min(COMPARE_BUFFER_SIZE, Math.max(count, 1)));
+        ByteBuffer buffer2 = ByteBuffer.allocate(buffer1.capacity());
+        long compared = 0;
+        while (compared < count) {
+            int size = (int) Math.min(buffer1.capacity(), count - compared);
+            readFully(channel1, buffer1, position1 + compared, size);
+            readFully(channel2, buffer2, position2 + compared, size);
+            if (!buffer1.equals(buffer2)) {
+                return false;
+            }
+            compared += size;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int size) throws IOException {
+        buffer.clear();
+        buffer.limit(size);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("unexpected end of file , position : " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+}
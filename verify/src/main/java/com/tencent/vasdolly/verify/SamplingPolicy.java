@@ -0,0 +1,225 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Verify only a sample of a batch of channel apks.
+ * <p>
+ * The channel apks of a batch only differ in the channel , and the APK Signing Block (with its padding) is rebuilt
+ * by the byte length of the channel , so the sample always contains :
+ * <ul>
+ * <li>the first and the last channel apk</li>
+ * <li>one channel apk of every byte length of channel</li>
+ * <li>a random percent of the rest channel apks</li>
+ * </ul>
+ * The other channel apks are only checked by their channel info. If any sampled channel apk fails , the batch is
+ * escalated : every channel apk generated after it is verified , and the skipped channel apks must be verified by
+ * {@link Batch#takeSkipped()}.
+ * <p>
+ * The command line and the gradle plugin handle a failure in the same way : the rest of the batch is still generated
+ * with full verification , then the skipped channel apks are verified , and all failures are reported at the end
+ * (the gradle task fails).
+ */
+public class SamplingPolicy {
+    // 置信度为95%时，未抽中的渠道包失败率的上限为 1 - 0.05^(1/随机抽样数)
+    private static final double CONFIDENCE_ALPHA = 0.05;
+
+    private final double percent;
+    private final long seed;
+
+    /**
+     * @param percent percent of the rest channel apks which are verified at random , [0 , 100]
+     * @param seed    seed of the random sample , the same seed chooses the same sample
+     */
+    public SamplingPolicy(double percent, long seed) {
+        if (percent < 0 || percent > 100) {
+            throw new RuntimeException("SamplingPolicy , param invalid, percent = " + percent);
+        }
+        this.percent = percent;
+        this.seed = seed;
+    }
+
+    public SamplingPolicy(double percent) {
+        this(percent, System.nanoTime());
+    }
+
+    public double getPercent() {
+        return percent;
+    }
+
+    /**
+     * choose the sample of a batch
+     *
+     * @param channelList channels in the order of generating
+     * @return
+     */
+    public Batch start(List<String> channelList) {
+        if (channelList == null) {
+            throw new RuntimeException("SamplingPolicy start , param invalid, channelList = null");
+        }
+        Set<String> sampled = new HashSet<>();
+        int size = channelList.size();
+        //1. the first and the last
+        if (size > 0) {
+            sampled.add(channelList.get(0));
+            sampled.add(channelList.get(size - 1));
+        }
+        //2. one of every byte length of channel
+        Set<Integer> lengthClasses = new HashSet<>();
+        for (String channel : channelList) {
+            if (lengthClasses.add(getLength(channel))) {
+                sampled.add(channel);
+            }
+        }
+        int fixedCount = sampled.size();
+        //3. a random percent of the rest
+        List<String> rest = new ArrayList<>();
+        for (String channel : channelList) {
+            if (!sampled.contains(channel)) {
+                rest.add(channel);
+            }
+        }
+        int randomCount = (int) Math.ceil(rest.size() * percent / 100);
+        Random random = new Random(seed);
+        for (int i = 0; i < randomCount; i++) {
+            int index = i + random.nextInt(rest.size() - i);
+            String channel = rest.get(index);
+            rest.set(index, rest.get(i));
+            rest.set(i, channel);
+            sampled.add(channel);
+        }
+        return new Batch(sampled, size, fixedCount, lengthClasses.size(), randomCount, rest.size());
+    }
+
+    private static int getLength(String channel) {
+        try {
+            return channel.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * the sample of a batch and its verification result , it can be shared by all threads
+     */
+    public class Batch {
+        private final Set<String> sampled;
+        private final int total;
+        private final int fixedCount;
+        private final int lengthClassCount;
+        private final int randomCount;
+        private final int randomPoolSize;
+        private final Map<String, File> skipped = new LinkedHashMap<>();
+        // 未抽中而跳过校验的渠道包总数，takeSkipped取走后也不清零
+        private int skippedCount;
+        private int verifiedCount;
+        private int failureCount;
+        private boolean escalated;
+
+        private Batch(Set<String> sampled, int total, int fixedCount, int lengthClassCount, int randomCount, int randomPoolSize) {
+            this.sampled = sampled;
+            this.total = total;
+            this.fixedCount = fixedCount;
+            this.lengthClassCount = lengthClassCount;
+            this.randomCount = randomCount;
+            this.randomPoolSize = randomPoolSize;
+        }
+
+        /**
+         * whether the channel apk should be verified , every channel apk is verified after the batch is escalated
+         */
+        public synchronized boolean shouldVerify(String channel) {
+            return escalated || sampled.contains(channel);
+        }
+
+        /**
+         * record the result of a verified channel apk , a failure escalates the batch
+         */
+        public synchronized void onVerified(String channel, boolean success) {
+            verifiedCount++;
+            if (!success) {
+                failureCount++;
+                if (!escalated) {
+                    escalated = true;
+                    System.out.println("SamplingPolicy , channel " + channel + " verify failure , verify all channel apks");
+                }
+            }
+        }
+
+        /**
+         * record a channel apk which is not verified
+         */
+        public synchronized void onSkipped(String channel, File channelApk) {
+            skipped.put(channel, channelApk);
+            skippedCount++;
+        }
+
+        public synchronized boolean isEscalated() {
+            return escalated;
+        }
+
+        /**
+         * take the skipped channel apks which must be verified after the batch is escalated
+         *
+         * @return channel and its channel apk , empty if the batch is not escalated
+         */
+        public synchronized Map<String, File> takeSkipped() {
+            if (!escalated) {
+                return new LinkedHashMap<>();
+            }
+            Map<String, File> result = new LinkedHashMap<>(skipped);
+            skipped.clear();
+            return result;
+        }
+
+        /**
+         * the report of the batch , with the confidence of the unverified channel apks
+         */
+        public synchronized String getReport() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("SamplingPolicy , total : ").append(total)
+                    .append(" , verified : ").append(verifiedCount)
+                    .append(" , failure : ").append(failureCount)
+                    .append(" , skipped : ").append(skippedCount)
+                    .append(" , sample : first/last/").append(lengthClassCount).append(" channel length classes (").append(fixedCount).append(" apks) + ")
+                    .append(randomCount).append(" random of ").append(randomPoolSize).append(" (").append(percent).append("% , seed ").append(seed).append(")");
+            if (escalated) {
+                builder.append("\n    a sampled channel apk failed , the batch was escalated to full verification , ")
+                        .append(skippedCount - skipped.size()).append(" of the skipped channel apks were verified after it");
+            } else if (skippedCount == 0) {
+                builder.append("\n    every channel apk was verified");
+            } else if (randomCount == 0) {
+                builder.append("\n    no random sample , there is no confidence about the ").append(skippedCount).append(" unverified channel apks");
+            } else {
+                double upperBound = 1 - Math.pow(CONFIDENCE_ALPHA, 1.0 / randomCount);
+                builder.append(String.format("\n    no failure in %d random samples , the failure rate of the %d unverified channel apks is below %.2f%% with %d%% confidence",
+                        randomCount, skippedCount, upperBound * 100, Math.round((1 - CONFIDENCE_ALPHA) * 100)));
+            }
+            return builder.toString();
+        }
+    }
+}
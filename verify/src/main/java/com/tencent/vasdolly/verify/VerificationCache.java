@@ -0,0 +1,244 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of the channel apks which passed the verification.
+ * <p>
+ * A channel apk is fully determined by the base apk and the channel , so the verification result is keyed by the
+ * SHA-256 of the base apk , the channel , the length of the written channel apk , the {@link VerifyProfile} name and
+ * the verify mode (full or structural) , a result of a narrower profile or of another mode is never reused. When the same channel apk is
+ * generated from an identical base apk again (such as every CI build) , the verification is skipped.
+ * Only successful verifications are stored , a failure is always verified again.
+ * <p>
+ * Every result is an empty file named by its key in the cache dir , so several processes can share the same cache
+ * dir without a lock. A hit touches the last modified time of the file , and the least recently used files are
+ * deleted when there are more than maxEntries files.
+ */
+public class VerificationCache {
+    // 缓存格式的版本，写渠道包的方式变化时需要修改，使旧的校验结果失效
+    private static final int CACHE_VERSION = 3;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final File cacheDir;
+    private final int maxEntries;
+
+    public VerificationCache(File cacheDir, int maxEntries) {
+        if (cacheDir == null || maxEntries <= 0) {
+            throw new RuntimeException("VerificationCache , param invalid, cacheDir = " + cacheDir + " , maxEntries = " + maxEntries);
+        }
+        this.cacheDir = cacheDir;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * the cache in ~/.vasdolly/verify-cache
+     */
+    public static VerificationCache getDefault() {
+        return new VerificationCache(new File(System.getProperty("user.home"), ".vasdolly" + File.separator + "verify-cache"), DEFAULT_MAX_ENTRIES);
+    }
+
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * compute the fingerprint of base apk , and evict the least recently used results
+     *
+     * @param baseApk
+     * @return the cache of channel apks generated from the base apk , and verified with the full profile
+     * @throws IOException
+     */
+    public Session open(File baseApk) throws IOException {
+        return open(baseApk, VerifyProfile.full());
+    }
+
+    /**
+     * compute the fingerprint of base apk , and evict the least recently used results
+     *
+     * @param baseApk
+     * @param profile the profile which the channel apks are verified with
+     * @return the cache of channel apks generated from the base apk , and verified with the profile
+     * @throws IOException
+     */
+    public Session open(File baseApk, VerifyProfile profile) throws IOException {
+        return open(baseApk, profile, false);
+    }
+
+    /**
+     * compute the fingerprint of base apk , and evict the least recently used results
+     *
+     * @param baseApk
+     * @param profile    the profile which the channel apks are verified with
+     * @param structural whether the channel apks are verified by {@link ChannelApkVerifier} instead of apksig
+     * @return the cache of channel apks generated from the base apk , and verified with the profile in the mode
+     * @throws IOException
+     */
+    public Session open(File baseApk, VerifyProfile profile, boolean structural) throws IOException {
+        if (baseApk == null || !baseApk.exists() || !baseApk.isFile()) {
+            throw new RuntimeException("VerificationCache open , param invalid, baseApk = " + baseApk);
+        }
+        if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new IOException("VerificationCache , can not create cache dir : " + cacheDir);
+        }
+        long startTime = System.currentTimeMillis();
+        byte[] fingerprint = digest(baseApk, profile.getName(), structural);
+        trim();
+        System.out.println("VerificationCache , " + cacheDir + " open " + baseApk.getName() + " , profile : " + profile.getName() + " , mode : " + (structural ? "structural" : "full") + " , cost : " + (System.currentTimeMillis() - startTime) + " ms");
+        return new Session(fingerprint);
+    }
+
+    /**
+     * delete the least recently used results if there are more than maxEntries results
+     */
+    private void trim() {
+        File[] files = cacheDir.listFiles();
+        if (files == null || files.length <= maxEntries) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        Integer[] indexes = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(lastModified[o1], lastModified[o2]);
+            }
+        });
+        int evictCount = files.length - maxEntries;
+        for (int i = 0; i < evictCount; i++) {
+            File file = files[indexes[i]];
+            if (!file.delete()) {
+                System.out.println("VerificationCache , delete " + file + " failure");
+            }
+        }
+        System.out.println("VerificationCache , evict " + evictCount + " results");
+    }
+
+    private static byte[] digest(File file, String profileName, boolean structural) throws IOException {
+        MessageDigest md = newMessageDigest();
+        md.update(profileName.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update((structural ? "structural" : "full").getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 digest not supported", e);
+        }
+    }
+
+    /**
+     * the cache of channel apks generated from one base apk , it can be shared by all threads
+     */
+    public class Session {
+        private final byte[] baseApkFingerprint;
+
+        private Session(byte[] baseApkFingerprint) {
+            this.baseApkFingerprint = baseApkFingerprint;
+        }
+
+        /**
+         * whether the channel apk is known to be good
+         *
+         * @param channel
+         * @param channelApkLength length of the channel apk
+         * @return
+         */
+        public boolean isVerified(String channel, long channelApkLength) {
+            File result = new File(cacheDir, getKey(channel, channelApkLength));
+            if (!result.isFile()) {
+                return false;
+            }
+            // 更新最近使用时间
+            if (!result.setLastModified(System.currentTimeMillis())) {
+                System.out.println("VerificationCache , touch " + result + " failure");
+            }
+            return true;
+        }
+
+        /**
+         * store the channel apk which passed the verification
+         *
+         * @param channel
+         * @param channelApkLength length of the channel apk
+         */
+        public void putVerified(String channel, long channelApkLength) {
+            File result = new File(cacheDir, getKey(channel, channelApkLength));
+            try {
+                // 空文件，创建即完成，多个进程同时写入也不会得到不完整的结果
+                if (!result.createNewFile() && !result.setLastModified(System.currentTimeMillis())) {
+                    System.out.println("VerificationCache , touch " + result + " failure");
+                }
+            } catch (IOException e) {
+                // 缓存写入失败不影响渠道包的生成
+                System.out.println("VerificationCache , put " + result + " failure : " + e.getMessage());
+            }
+        }
+
+        private String getKey(String channel, long channelApkLength) {
+            MessageDigest md = newMessageDigest();
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(CACHE_VERSION);
+            header.putLong(channelApkLength);
+            md.update(header.array());
+            md.update(baseApkFingerprint);
+            md.update(channel.getBytes(StandardCharsets.UTF_8));
+            byte[] key = md.digest();
+            StringBuilder builder = new StringBuilder(key.length * 2);
+            for (byte b : key) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        }
+    }
+}
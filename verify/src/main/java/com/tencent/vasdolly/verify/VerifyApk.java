@@ -18,10 +18,14 @@ package com.tencent.vasdolly.verify;
 
 import com.android.apksig.ApkVerifier;
 import com.android.apksig.apk.ApkFormatException;
+import com.android.apksig.util.DataSource;
+import com.android.apksig.util.DataSources;
 import com.android.apksig.zip.ZipFormatException;
+import com.tencent.vasdolly.common.ApkSectionInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.NoSuchAlgorithmException;
 
 /**
@@ -39,9 +43,56 @@ public class VerifyApk {
      * @throws ApkFormatException
      */
     public static ApkVerifier.Result getVerifierResult(File inputApk) throws NoSuchAlgorithmException, IOException, ApkFormatException {
-        ApkVerifier.Builder apkVerifierBuilder = new ApkVerifier.Builder(inputApk);
-        ApkVerifier apkVerifier = apkVerifierBuilder.build();
-        return apkVerifier.verify();
+        return getVerifierResult(inputApk, VerifyProfile.full());
+    }
+
+    /***
+     * 按校验范围获取签名验证结果
+     * @param inputApk 需要验证的apk
+     * @param profile 校验的平台版本范围，同时记录校验耗时
+     * @return 获取签名验证结果
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ApkFormatException
+     */
+    public static ApkVerifier.Result getVerifierResult(File inputApk, VerifyProfile profile) throws NoSuchAlgorithmException, IOException, ApkFormatException {
+        return verify(profile.apply(new ApkVerifier.Builder(inputApk)), profile);
+    }
+
+    /***
+     * 获取签名验证结果
+     * @param inputApk 需要验证的apk数据
+     * @return 获取签名验证结果
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ApkFormatException
+     */
+    public static ApkVerifier.Result getVerifierResult(DataSource inputApk) throws NoSuchAlgorithmException, IOException, ApkFormatException {
+        return getVerifierResult(inputApk, VerifyProfile.full());
+    }
+
+    /***
+     * 按校验范围获取签名验证结果
+     * @param inputApk 需要验证的apk数据
+     * @param profile 校验的平台版本范围，同时记录校验耗时
+     * @return 获取签名验证结果
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ApkFormatException
+     */
+    public static ApkVerifier.Result getVerifierResult(DataSource inputApk, VerifyProfile profile) throws NoSuchAlgorithmException, IOException, ApkFormatException {
+        return verify(profile.apply(new ApkVerifier.Builder(inputApk)), profile);
+    }
+
+    private static ApkVerifier.Result verify(ApkVerifier.Builder apkVerifierBuilder, VerifyProfile profile) throws NoSuchAlgorithmException, IOException, ApkFormatException {
+        long startTime = System.nanoTime();
+        try {
+            ApkVerifier apkVerifier = apkVerifierBuilder.build();
+            return apkVerifier.verify();
+        } finally {
+            // 只记录耗时，由VerifyProfile.getReport()统一输出，避免每个apk打印一行
+            profile.record(System.nanoTime() - startTime);
+        }
     }
 
     /**
@@ -55,7 +106,76 @@ public class VerifyApk {
      * @throws ApkFormatException
      */
     public static boolean verifySignature(File inputApk) throws NoSuchAlgorithmException, IOException, ZipFormatException, ApkFormatException {
-        ApkVerifier.Result result = getVerifierResult(inputApk);
+        return verifySignature(inputApk, VerifyProfile.full());
+    }
+
+    /**
+     * 按校验范围进行签名和apk验证
+     *
+     * @param inputApk 需要验证的apk
+     * @param profile  校验的平台版本范围，同时记录校验耗时
+     * @return 签名和apk验证是否成功
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ZipFormatException
+     * @throws ApkFormatException
+     */
+    public static boolean verifySignature(File inputApk, VerifyProfile profile) throws NoSuchAlgorithmException, IOException, ZipFormatException, ApkFormatException {
+        return verifySignature(getVerifierResult(inputApk, profile));
+    }
+
+    /**
+     * 写入磁盘之前，在内存中验证渠道包的签名
+     * 渠道包由基础包的内容块（内存中的Buffer，lowMemory模式下为基础包文件的对应范围）和内存中新的签名块、中央目录、EOCD拼接而成，
+     * 验证过程不读取渠道包文件
+     *
+     * @param apkSectionInfo 渠道包的各部分片段信息
+     * @return 签名和apk验证是否成功
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ApkFormatException
+     */
+    public static boolean verifySignature(ApkSectionInfo apkSectionInfo) throws NoSuchAlgorithmException, IOException, ApkFormatException {
+        return verifySignature(apkSectionInfo, VerifyProfile.full());
+    }
+
+    /**
+     * 写入磁盘之前，按校验范围在内存中验证渠道包的签名
+     *
+     * @param apkSectionInfo 渠道包的各部分片段信息
+     * @param profile        校验的平台版本范围，同时记录校验耗时
+     * @return 签名和apk验证是否成功
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     * @throws ApkFormatException
+     */
+    public static boolean verifySignature(ApkSectionInfo apkSectionInfo, VerifyProfile profile) throws NoSuchAlgorithmException, IOException, ApkFormatException {
+        RandomAccessFile baseApk = null;
+        try {
+            DataSource contentEntry;
+            if (apkSectionInfo.contentEntry != null) {
+                contentEntry = DataSources.asDataSource(apkSectionInfo.contentEntry.getFirst().duplicate());
+            } else {
+                baseApk = new RandomAccessFile(apkSectionInfo.baseApk, "r");
+                contentEntry = DataSources.asDataSource(baseApk, 0, apkSectionInfo.apkSigningBlock.getSecond());
+            }
+            DataSource inputApk = new ChainedDataSource(contentEntry,
+                    DataSources.asDataSource(apkSectionInfo.apkSigningBlock.getFirst().duplicate()),
+                    DataSources.asDataSource(apkSectionInfo.centralDir.getFirst().duplicate()),
+                    DataSources.asDataSource(apkSectionInfo.eocd.getFirst().duplicate()));
+            if (inputApk.size() != apkSectionInfo.apkSize) {
+                System.out.println("verify apk sections , size : " + inputApk.size() + " , expected : " + apkSectionInfo.apkSize);
+                return false;
+            }
+            return verifySignature(getVerifierResult(inputApk, profile));
+        } finally {
+            if (baseApk != null) {
+                baseApk.close();
+            }
+        }
+    }
+
+    private static boolean verifySignature(ApkVerifier.Result result) {
         boolean verified = result.isVerified();
         System.out.println("verify apk file verified : " + verified + ", errors:" + result.getErrors());
         if (verified) {
@@ -0,0 +1,201 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * How the channel apks are verified after the channel is written , shared by the command line and the gradle plugin.
+ * <p>
+ * In the fast mode nothing is verified and all other settings are ignored.
+ * Otherwise every channel apk is verified by its channel info and its signature :
+ * <ul>
+ * <li>structural verify , only verify the signature of base apk once , compare the channel apks with the base apk</li>
+ * <li>verification cache , skip the channel apks which are verified before with the same base apk</li>
+ * <li>sampling policy , only verify the signature of the sampled channel apks</li>
+ * <li>verify profile , the platform versions which the signature is verified for</li>
+ * </ul>
+ * Build it with {@link Builder} , the options are immutable and can be shared by all threads.
+ */
+public class VerifyOptions {
+    private final boolean fastMode;
+    private final boolean structuralVerify;
+    private final VerificationCache verificationCache;
+    private final SamplingPolicy samplingPolicy;
+    private final VerifyProfile verifyProfile;
+
+    private VerifyOptions(Builder builder) {
+        this.fastMode = builder.fastMode;
+        this.structuralVerify = builder.structuralVerify;
+        this.verificationCache = builder.verificationCache;
+        this.samplingPolicy = builder.samplingPolicy;
+        this.verifyProfile = builder.verifyProfile != null ? builder.verifyProfile : VerifyProfile.full();
+    }
+
+    /**
+     * the default options , verify the channel info and the full signature of every channel apk
+     */
+    public static VerifyOptions full() {
+        return new Builder().build();
+    }
+
+    /**
+     * the options of fast mode , nothing is verified
+     */
+    public static VerifyOptions fast() {
+        return new Builder().setFastMode(true).build();
+    }
+
+    public boolean isFastMode() {
+        return fastMode;
+    }
+
+    public boolean isStructuralVerify() {
+        return !fastMode && structuralVerify;
+    }
+
+    /**
+     * @return null if the verification cache is not used
+     */
+    public VerificationCache getVerificationCache() {
+        return fastMode ? null : verificationCache;
+    }
+
+    /**
+     * @return null if all channel apks are verified
+     */
+    public SamplingPolicy getSamplingPolicy() {
+        return fastMode ? null : samplingPolicy;
+    }
+
+    public VerifyProfile getVerifyProfile() {
+        return verifyProfile;
+    }
+
+    /**
+     * in the structural verify mode , verify the signature of base apk once and create the verifier of channel apks
+     *
+     * @param baseApk
+     * @return null if the channel apks are verified by their signature
+     * @throws Exception the signature of base apk is invalid
+     */
+    public ChannelApkVerifier createVerifier(File baseApk) throws Exception {
+        if (!isStructuralVerify()) {
+            return null;
+        }
+        return ChannelApkVerifier.create(baseApk, verifyProfile);
+    }
+
+    /**
+     * compute the fingerprint of base apk and open the verification cache ,
+     * the results of structural verify , full verify and different profiles are never reused by each other
+     *
+     * @param baseApk
+     * @param verifier the verifier of channel apks , null if the channel apks are verified by their signature
+     * @return null if the verification cache is not used
+     * @throws IOException
+     */
+    public VerificationCache.Session openCache(File baseApk, ChannelApkVerifier verifier) throws IOException {
+        VerificationCache cache = getVerificationCache();
+        if (cache == null) {
+            return null;
+        }
+        return cache.open(baseApk, verifyProfile, verifier != null);
+    }
+
+    /**
+     * select the channel apks which are verified
+     *
+     * @param channelList
+     * @return null if all channel apks are verified
+     */
+    public SamplingPolicy.Batch startSampling(List<String> channelList) {
+        SamplingPolicy policy = getSamplingPolicy();
+        if (policy == null) {
+            return null;
+        }
+        return policy.start(channelList);
+    }
+
+    @Override
+    public String toString() {
+        if (fastMode) {
+            return "fast mode , not verify";
+        }
+        return "structuralVerify : " + structuralVerify
+                + " , verifyCache : " + (verificationCache != null ? verificationCache.getCacheDir().getAbsolutePath() : null)
+                + " , samplingPercent : " + (samplingPolicy != null ? samplingPolicy.getPercent() : null)
+                + " , verifyProfile : " + verifyProfile;
+    }
+
+    /**
+     * Builder of {@link VerifyOptions} , all settings are off by default
+     */
+    public static class Builder {
+        private boolean fastMode;
+        private boolean structuralVerify;
+        private VerificationCache verificationCache;
+        private SamplingPolicy samplingPolicy;
+        private VerifyProfile verifyProfile;
+
+        /**
+         * fast mode , not verify the channel apks
+         */
+        public Builder setFastMode(boolean fastMode) {
+            this.fastMode = fastMode;
+            return this;
+        }
+
+        /**
+         * only verify the signature of base apk once , compare the channel apks with the base apk
+         */
+        public Builder setStructuralVerify(boolean structuralVerify) {
+            this.structuralVerify = structuralVerify;
+            return this;
+        }
+
+        /**
+         * @param verificationCache null if the verification cache is not used
+         */
+        public Builder setVerificationCache(VerificationCache verificationCache) {
+            this.verificationCache = verificationCache;
+            return this;
+        }
+
+        /**
+         * @param samplingPolicy null if all channel apks are verified
+         */
+        public Builder setSamplingPolicy(SamplingPolicy samplingPolicy) {
+            this.samplingPolicy = samplingPolicy;
+            return this;
+        }
+
+        /**
+         * @param verifyProfile null for {@link VerifyProfile#full()}
+         */
+        public Builder setVerifyProfile(VerifyProfile verifyProfile) {
+            this.verifyProfile = verifyProfile;
+            return this;
+        }
+
+        public VerifyOptions build() {
+            return new VerifyOptions(this);
+        }
+    }
+}
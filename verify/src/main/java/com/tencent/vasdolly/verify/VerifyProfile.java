@@ -0,0 +1,176 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.verify;
+
+import com.android.apksig.ApkVerifier;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The range of Android platform versions which the signature of apk is verified for.
+ * <p>
+ * apksig only checks the signature schemes which are used by the platform versions in the range :
+ * <ul>
+ * <li>v1 scheme (JAR signing) , it re-hashes every entry of the apk , is only checked when the min version is below
+ * Android 7.0 (24) or there is no v2/v3 signature</li>
+ * <li>v2 scheme is only checked when the max version is at least Android 7.0 (24)</li>
+ * <li>v3 scheme is only checked when the max version is at least Android 9 (28)</li>
+ * </ul>
+ * So when the apk is only shipped to Android 7.0+ , {@code VerifyProfile.parse("24")} skips the v1 entry digests
+ * which are the most expensive part of the verification.
+ * <p>
+ * A profile also records the count and cost of its verifications , it can be shared by all threads.
+ */
+public class VerifyProfile {
+    // 未指定的版本：最低版本使用apk的minSdkVersion，最高版本不限
+    public static final int UNSPECIFIED_VERSION = -1;
+    public static final String FULL = "full";
+    // Android 7.0，开始支持v2签名
+    public static final String V2_ONLY = "v2";
+    private static final int ANDROID_N = 24;
+
+    private final String name;
+    private final int minSdkVersion;
+    private final int maxSdkVersion;
+    private final AtomicLong verifyCount = new AtomicLong();
+    private final AtomicLong verifyCostNanos = new AtomicLong();
+
+    /**
+     * @param minSdkVersion the min platform version checked , {@link #UNSPECIFIED_VERSION} for the minSdkVersion of apk
+     * @param maxSdkVersion the max platform version checked , {@link #UNSPECIFIED_VERSION} for all versions
+     */
+    public VerifyProfile(int minSdkVersion, int maxSdkVersion) {
+        this(getName(minSdkVersion, maxSdkVersion), minSdkVersion, maxSdkVersion);
+    }
+
+    private VerifyProfile(String name, int minSdkVersion, int maxSdkVersion) {
+        if ((minSdkVersion < 1 && minSdkVersion != UNSPECIFIED_VERSION)
+                || (maxSdkVersion < 1 && maxSdkVersion != UNSPECIFIED_VERSION)
+                || (minSdkVersion != UNSPECIFIED_VERSION && maxSdkVersion != UNSPECIFIED_VERSION && minSdkVersion > maxSdkVersion)) {
+            throw new RuntimeException("VerifyProfile , param invalid, minSdkVersion = " + minSdkVersion + " , maxSdkVersion = " + maxSdkVersion);
+        }
+        this.name = name;
+        this.minSdkVersion = minSdkVersion;
+        this.maxSdkVersion = maxSdkVersion;
+    }
+
+    /**
+     * all schemes for all platform versions since the minSdkVersion of apk , the default of apksig
+     */
+    public static VerifyProfile full() {
+        return new VerifyProfile(FULL, UNSPECIFIED_VERSION, UNSPECIFIED_VERSION);
+    }
+
+    /**
+     * parse the profile
+     *
+     * @param profile "full" , "v2" (Android 7.0+) , "minSdk" or "minSdk-maxSdk" , such as "21" or "24-33"
+     * @return
+     */
+    public static VerifyProfile parse(String profile) {
+        if (profile == null || profile.trim().length() == 0) {
+            throw new RuntimeException("VerifyProfile parse , param invalid, profile = " + profile);
+        }
+        String value = profile.trim();
+        if (FULL.equalsIgnoreCase(value)) {
+            return full();
+        }
+        if (V2_ONLY.equalsIgnoreCase(value)) {
+            // 与"24"同名，校验缓存的key一致
+            return new VerifyProfile(ANDROID_N, UNSPECIFIED_VERSION);
+        }
+        try {
+            int index = value.indexOf('-');
+            if (index < 0) {
+                return new VerifyProfile(Integer.parseInt(value), UNSPECIFIED_VERSION);
+            }
+            return new VerifyProfile(Integer.parseInt(value.substring(0, index).trim()), Integer.parseInt(value.substring(index + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("VerifyProfile parse , param invalid, profile = " + profile, e);
+        }
+    }
+
+    private static String getName(int minSdkVersion, int maxSdkVersion) {
+        return (minSdkVersion == UNSPECIFIED_VERSION ? "apk" : String.valueOf(minSdkVersion))
+                + "-" + (maxSdkVersion == UNSPECIFIED_VERSION ? "any" : String.valueOf(maxSdkVersion));
+    }
+
+    /**
+     * set the checked platform versions of the builder
+     */
+    ApkVerifier.Builder apply(ApkVerifier.Builder builder) {
+        if (minSdkVersion != UNSPECIFIED_VERSION) {
+            builder.setMinCheckedPlatformVersion(minSdkVersion);
+        }
+        if (maxSdkVersion != UNSPECIFIED_VERSION) {
+            builder.setMaxCheckedPlatformVersion(maxSdkVersion);
+        }
+        return builder;
+    }
+
+    /**
+     * record the cost of a verification
+     */
+    void record(long costNanos) {
+        verifyCount.incrementAndGet();
+        verifyCostNanos.addAndGet(costNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMinSdkVersion() {
+        return minSdkVersion;
+    }
+
+    public int getMaxSdkVersion() {
+        return maxSdkVersion;
+    }
+
+    /**
+     * whether the v1 entry digests are skipped for the apk which has a v2/v3 signature
+     */
+    public boolean isV1Skipped() {
+        return minSdkVersion >= ANDROID_N;
+    }
+
+    public long getVerifyCount() {
+        return verifyCount.get();
+    }
+
+    public long getVerifyCostMillis() {
+        return verifyCostNanos.get() / 1000000;
+    }
+
+    /**
+     * the report of the verifications with the profile
+     */
+    public String getReport() {
+        long count = verifyCount.get();
+        long costMillis = getVerifyCostMillis();
+        return "VerifyProfile " + this + " , verified : " + count + " apks , cost : " + costMillis + " ms"
+                + (count > 0 ? " , average : " + (costMillis / count) + " ms" : "");
+    }
+
+    @Override
+    public String toString() {
+        String platform = getName(minSdkVersion, maxSdkVersion);
+        return (name.equals(platform) ? "platform " + platform : name + " (platform " + platform + ")")
+                + (isV1Skipped() ? " , v1 skipped if v2/v3 signed" : "");
+    }
+}
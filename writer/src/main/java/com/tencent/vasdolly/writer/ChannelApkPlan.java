@@ -0,0 +1,171 @@
+/*
+ * Tencent is pleased to support the open source community by making VasDolly available.
+ *
+ * Copyright (C) 2018 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License");you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS,WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.vasdolly.writer;
+
+import com.tencent.vasdolly.common.ApkSectionInfo;
+import com.tencent.vasdolly.common.ApkSigningBlockTemplate;
+import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layout of every channel apk in a batch of v2 channel apks , computed before any byte is written.
+ * <p>
+ * Only the APK Signing Block of a channel apk differs from the base apk , so the size and the offset of every
+ * section are known from the base apk and the length of the channel. The plan only describes the layout , it never
+ * creates or changes a file , so it can be used by other tools which need the size of the channel apks before they
+ * exist , such as upload tooling which starts multipart uploads early.
+ */
+public class ChannelApkPlan {
+    private final File baseApk;
+    private final int reservedLength;
+    private final List<Entry> entries;
+    private final long totalSize;
+
+    private ChannelApkPlan(File baseApk, int reservedLength, List<Entry> entries) {
+        long totalSize = 0;
+        for (Entry entry : entries) {
+            totalSize += entry.apkSize;
+        }
+        this.baseApk = baseApk;
+        this.reservedLength = reservedLength;
+        this.entries = Collections.unmodifiableList(entries);
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * create the plan of channel apks
+     *
+     * @param apkSectionInfo  apk section info of base apk
+     * @param channelDestMap  channel and its dest apk
+     * @param reservedLength  byte length of the reserved channel slot , 0 means no reserved slot ,
+     *                        see {@link ChannelWriter#addChannelByV2(ApkSectionInfo, File, String, int)}
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static ChannelApkPlan create(ApkSectionInfo apkSectionInfo, Map<String, File> channelDestMap, int reservedLength) throws IOException, SignatureNotFoundException {
+        if (apkSectionInfo == null || channelDestMap == null) {
+            throw new RuntimeException("ChannelApkPlan create , param invalid, apkSectionInfo = " + apkSectionInfo + " , channelDestMap = " + channelDestMap);
+        }
+        ApkSigningBlockTemplate template = apkSectionInfo.getChannelBlockTemplate();
+        long apkSigningBlockOffset = apkSectionInfo.apkSigningBlock.getSecond();
+        int baseApkSigningBlockSize = apkSectionInfo.apkSigningBlock.getFirst().remaining();
+        long centralDirSize = apkSectionInfo.centralDir.getFirst().remaining();
+
+        List<Entry> entries = new ArrayList<>(channelDestMap.size());
+        for (Map.Entry<String, File> channelDest : channelDestMap.entrySet()) {
+            String channel = channelDest.getKey();
+            int valueLength = ChannelWriter.getChannelValue(channel, reservedLength).length;
+            int apkSigningBlockSize = template.getBlockSize(valueLength);
+            long centralDirOffset = apkSigningBlockOffset + apkSigningBlockSize;
+            long eocdOffset = centralDirOffset + centralDirSize;
+            long apkSize = apkSectionInfo.apkSize + apkSigningBlockSize - baseApkSigningBlockSize;
+            entries.add(new Entry(channel, channelDest.getValue(), apkSize, apkSigningBlockOffset, apkSigningBlockSize, centralDirOffset, eocdOffset));
+        }
+        return new ChannelApkPlan(apkSectionInfo.baseApk, reservedLength, entries);
+    }
+
+    /**
+     * the base apk of the plan , null if it is unknown in the lowMemory mode
+     */
+    public File getBaseApk() {
+        return baseApk;
+    }
+
+    /**
+     * byte length of the reserved channel slot , the channel apks must be written with it to match the plan
+     */
+    public int getReservedLength() {
+        return reservedLength;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * get the entry of channel
+     *
+     * @param channel
+     * @return null if the channel is not in the plan
+     */
+    public Entry getEntry(String channel) {
+        for (Entry entry : entries) {
+            if (entry.channel.equals(channel)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * total size of all channel apks
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelApkPlan{" +
+                "entries=" + entries.size() +
+                ", totalSize=" + totalSize +
+                '}';
+    }
+
+    /**
+     * layout of one channel apk
+     */
+    public static class Entry {
+        public final String channel;
+        public final File destApk;
+        public final long apkSize;
+        public final long apkSigningBlockOffset;
+        public final int apkSigningBlockSize;
+        public final long centralDirOffset;
+        public final long eocdOffset;
+
+        Entry(String channel, File destApk, long apkSize, long apkSigningBlockOffset, int apkSigningBlockSize, long centralDirOffset, long eocdOffset) {
+            this.channel = channel;
+            this.destApk = destApk;
+            this.apkSize = apkSize;
+            this.apkSigningBlockOffset = apkSigningBlockOffset;
+            this.apkSigningBlockSize = apkSigningBlockSize;
+            this.centralDirOffset = centralDirOffset;
+            this.eocdOffset = eocdOffset;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "channel='" + channel + '\'' +
+                    ", destApk=" + destApk +
+                    ", apkSize=" + apkSize +
+                    ", apkSigningBlockOffset=" + apkSigningBlockOffset +
+                    ", apkSigningBlockSize=" + apkSigningBlockSize +
+                    ", centralDirOffset=" + centralDirOffset +
+                    ", eocdOffset=" + eocdOffset +
+                    '}';
+        }
+    }
+}
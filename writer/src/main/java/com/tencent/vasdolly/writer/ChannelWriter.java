@@ -19,15 +19,19 @@ package com.tencent.vasdolly.writer;
 
 import com.tencent.vasdolly.common.ApkSectionInfo;
 import com.tencent.vasdolly.common.ChannelConstants;
+import com.tencent.vasdolly.common.V1ChannelTemplate;
 import com.tencent.vasdolly.common.V1SchemeUtil;
 import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by leontli on 17/1/17.
@@ -45,27 +49,88 @@ public class ChannelWriter {
      * @throws SignatureNotFoundException
      */
     public static void addChannelByV2(ApkSectionInfo apkSectionInfo, File destApk, String channel) throws IOException, SignatureNotFoundException {
+        addChannelByV2(apkSectionInfo, destApk, channel, 0);
+    }
+
+    /**
+     * add channel to apk in the v2 signature mode , and reserve a fixed-size slot for the channel.
+     * the slot is filled with 0 after the channel (the reader trims it), so a later channel which is not longer than
+     * reservedLength can be written in place by {@link #rewriteChannelByV2(File, String)}
+     *
+     * @param apkSectionInfo
+     * @param destApk
+     * @param channel
+     * @param reservedLength byte length of the channel slot , 0 means no reserved slot
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static void addChannelByV2(ApkSectionInfo apkSectionInfo, File destApk, String channel, int reservedLength) throws IOException, SignatureNotFoundException {
         if (destApk == null || channel == null || channel.length() <= 0) {
             throw new RuntimeException("addChannelByV2 , param invalid, channel = " + channel + " , destApk = " + destApk);
         }
 
-        if (apkSectionInfo.lowMemory) {
+        if (apkSectionInfo.lowMemory && apkSectionInfo.baseApk == null) {
+            //不知道基础包时，只能要求渠道包已经是基础包的拷贝
             if (!destApk.exists() || !destApk.isFile() || destApk.length() <= 0) {
                 throw new RuntimeException("addChannelByV2 , destApk invalid in the lowMemory mode");
             }
         } else {
-            if (!destApk.getParentFile().exists()) {
-                destApk.getParentFile().mkdirs();
+            File parent = destApk.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
             }
         }
 
 
-        byte[] buffer = channel.getBytes(ChannelConstants.CONTENT_CHARSET);
+        byte[] buffer = getChannelValue(channel, reservedLength);
         ByteBuffer channelByteBuffer = ByteBuffer.wrap(buffer);
         //apk中所有字节都是小端模式
         channelByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
-        IdValueWriter.addIdValue(apkSectionInfo, destApk, ChannelConstants.CHANNEL_BLOCK_ID, channelByteBuffer);
+        //基础包的签名块模板只生成一次，每个渠道只写入渠道信息
+        IdValueWriter.addIdValue(apkSectionInfo, destApk, apkSectionInfo.getChannelBlockTemplate(), channelByteBuffer);
+    }
+
+    /**
+     * generate the sections of the channel apk in the v2 signature mode , without writing any byte.
+     * the result can be verified in memory , then written by {@link #commitChannelByV2(ApkSectionInfo, File)}
+     *
+     * @param apkSectionInfo apk section info of base apk
+     * @param channel
+     * @param reservedLength byte length of the channel slot , 0 means no reserved slot
+     * @return apk section info of the channel apk , its content entry and central dir are shared with base apk
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static ApkSectionInfo prepareChannelByV2(ApkSectionInfo apkSectionInfo, String channel, int reservedLength) throws IOException, SignatureNotFoundException {
+        if (apkSectionInfo == null || channel == null || channel.length() <= 0) {
+            throw new RuntimeException("prepareChannelByV2 , param invalid, channel = " + channel + " , apkSectionInfo = " + apkSectionInfo);
+        }
+        if (apkSectionInfo.lowMemory && apkSectionInfo.baseApk == null) {
+            throw new RuntimeException("prepareChannelByV2 , baseApk is unknown in the lowMemory mode");
+        }
+        ByteBuffer channelByteBuffer = ByteBuffer.wrap(getChannelValue(channel, reservedLength));
+        //apk中所有字节都是小端模式
+        channelByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        return IdValueWriter.generateIdValue(apkSectionInfo, apkSectionInfo.getChannelBlockTemplate(), channelByteBuffer);
+    }
+
+    /**
+     * write the channel apk generated by {@link #prepareChannelByV2(ApkSectionInfo, String, int)}
+     *
+     * @param channelApkSectionInfo
+     * @param destApk
+     * @throws IOException
+     */
+    public static void commitChannelByV2(ApkSectionInfo channelApkSectionInfo, File destApk) throws IOException {
+        if (channelApkSectionInfo == null || destApk == null) {
+            throw new RuntimeException("commitChannelByV2 , param invalid, channelApkSectionInfo = " + channelApkSectionInfo + " , destApk = " + destApk);
+        }
+        File parent = destApk.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        IdValueWriter.writeApkSectionInfo(channelApkSectionInfo, destApk);
     }
 
     /**
@@ -94,6 +159,49 @@ public class ChannelWriter {
         addChannelByV2(apkSectionInfo, destApk, channel);
     }
 
+    /**
+     * plan the layout of v2 channel apks before writing them
+     *
+     * @param apkSectionInfo
+     * @param channelDestMap channel and its dest apk
+     * @param reservedLength byte length of the channel slot , 0 means no reserved slot
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static ChannelApkPlan planChannelByV2(ApkSectionInfo apkSectionInfo, Map<String, File> channelDestMap, int reservedLength) throws IOException, SignatureNotFoundException {
+        return ChannelApkPlan.create(apkSectionInfo, channelDestMap, reservedLength);
+    }
+
+    /**
+     * the value bytes of channel in the APK Signing Block
+     */
+    static byte[] getChannelValue(String channel, int reservedLength) throws UnsupportedEncodingException {
+        byte[] buffer = channel.getBytes(ChannelConstants.CONTENT_CHARSET);
+        if (buffer.length < reservedLength) {
+            //预留渠道信息的长度，剩余部分补0
+            buffer = Arrays.copyOf(buffer, reservedLength);
+        }
+        return buffer;
+    }
+
+    /**
+     * rewrite the channel of apk in place in the v2 signature mode.
+     * the apk must have been written with a reserved channel slot which is not shorter than the new channel ,
+     * only the bytes of the slot are written and the rest of apk is not changed
+     *
+     * @param apkFile
+     * @param channel
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static void rewriteChannelByV2(File apkFile, String channel) throws IOException, SignatureNotFoundException {
+        if (apkFile == null || channel == null || channel.length() <= 0) {
+            throw new RuntimeException("rewriteChannelByV2 , param invalid, channel = " + channel + " , apkFile = " + apkFile);
+        }
+        IdValueWriter.replaceIdValueInPlace(apkFile, ChannelConstants.CHANNEL_BLOCK_ID, channel.getBytes(ChannelConstants.CONTENT_CHARSET));
+    }
+
     /**
      * add channel to apk in the v1 signature mode . if you use v1 signature , not necessary to again to signature after add channel info
      *
@@ -103,8 +211,19 @@ public class ChannelWriter {
      * @throws Exception
      */
     public static void addChannelByV1(File srcApk, File destApk, String channel) throws Exception {
-        V1SchemeUtil.copyFile(srcApk, destApk);
-        addChannelByV1(destApk, channel);
+        addChannelByV1(V1ChannelTemplate.create(srcApk), destApk, channel);
+    }
+
+    /**
+     * add channel to apk in the v1 signature mode , the base apk is copied and the channel is appended in one pass
+     *
+     * @param template the parsed base apk , it can be shared by all channels
+     * @param destApk
+     * @param channel
+     * @throws IOException
+     */
+    public static void addChannelByV1(V1ChannelTemplate template, File destApk, String channel) throws IOException {
+        template.writeChannel(destApk, channel);
     }
 
     /**
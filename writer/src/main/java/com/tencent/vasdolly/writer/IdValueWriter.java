@@ -17,15 +17,21 @@
 package com.tencent.vasdolly.writer;
 
 import com.tencent.vasdolly.common.ApkSectionInfo;
+import com.tencent.vasdolly.common.ApkSigningBlockTemplate;
+import com.tencent.vasdolly.common.FileCopyUtil;
+import com.tencent.vasdolly.common.Pair;
 import com.tencent.vasdolly.common.V2SchemeUtil;
+import com.tencent.vasdolly.common.apk.ChannelDataSource;
 import com.tencent.vasdolly.common.apk.SignatureNotFoundException;
 import com.tencent.vasdolly.common.apk.ZipUtils;
+import com.tencent.vasdolly.reader.IdValueReader;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +41,8 @@ import java.util.Map;
  */
 
 public class IdValueWriter {
+    // 每个线程复用的签名块Buffer
+    private static final ThreadLocal<ByteBuffer> SIGNING_BLOCK_BUFFER = new ThreadLocal<>();
 
     /**
      * add id-value to apk
@@ -71,47 +79,8 @@ public class IdValueWriter {
             ByteBuffer newApkSigningBlock = V2SchemeUtil.generateApkSigningBlock(existentIdValueMap);
             System.out.println("removeIdValue , oldApkSigningBlock size = " + apkSectionInfo.apkSigningBlock.getFirst().remaining() + " , newApkSigningBlock size = " + newApkSigningBlock.remaining());
 
-            ByteBuffer centralDir = apkSectionInfo.centralDir.getFirst();
-            ByteBuffer eocd = apkSectionInfo.eocd.getFirst();
-            long centralDirOffset = apkSectionInfo.centralDir.getSecond();
-            int apkChangeSize = newApkSigningBlock.remaining() - apkSectionInfo.apkSigningBlock.getFirst().remaining();
-            //update the offset of centralDir
-            ZipUtils.setZipEocdCentralDirectoryOffset(eocd, centralDirOffset + apkChangeSize);//修改了EOCD中保存的中央目录偏移量
-
-            long apkLength = apkSectionInfo.apkSize + apkChangeSize;
-            RandomAccessFile fIn = null;
-            try {
-                fIn = new RandomAccessFile(destApk, "rw");
-                if (apkSectionInfo.lowMemory) {
-                    long signBlockPos = apkSectionInfo.apkSigningBlock.getSecond();
-                    System.out.println("seek to apk signing block pos:" + signBlockPos);
-                    fIn.seek(signBlockPos);
-                } else {
-                    ByteBuffer contentEntry = apkSectionInfo.contentEntry.getFirst();
-                    fIn.seek(apkSectionInfo.contentEntry.getSecond());
-                    //1. write real content Entry block
-                    fIn.write(contentEntry.array(), contentEntry.arrayOffset() + contentEntry.position(), contentEntry.remaining());
-                }
-
-                //2. write new apk v2 scheme block
-                fIn.write(newApkSigningBlock.array(), newApkSigningBlock.arrayOffset() + newApkSigningBlock.position(), newApkSigningBlock.remaining());
-                //3. write central dir block
-                fIn.write(centralDir.array(), centralDir.arrayOffset() + centralDir.position(), centralDir.remaining());
-                //4. write eocd block
-                fIn.write(eocd.array(), eocd.arrayOffset() + eocd.position(), eocd.remaining());
-                //5. modify the length of apk file
-                if (fIn.getFilePointer() != apkLength) {
-                    throw new RuntimeException("after removeIdValue , file size wrong , FilePointer : " + fIn.getFilePointer() + ", apkLength : " + apkLength);
-                }
-                fIn.setLength(apkLength);
-                System.out.println("removeIdValue , after remove channel , apk is " + destApk.getAbsolutePath() + " , length = " + destApk.length());
-            } finally {
-                //恢复EOCD中保存的中央目录偏移量，满足基础包的APK结构
-                ZipUtils.setZipEocdCentralDirectoryOffset(eocd, centralDirOffset);
-                if (fIn != null) {
-                    fIn.close();
-                }
-            }
+            writeApkSections(apkSectionInfo, destApk, newApkSigningBlock, "removeIdValue");
+            System.out.println("removeIdValue , after remove channel , apk is " + destApk.getAbsolutePath() + " , length = " + destApk.length());
         }
     }
 
@@ -135,50 +104,102 @@ public class IdValueWriter {
         ByteBuffer newApkSigningBlock = V2SchemeUtil.generateApkSigningBlock(existentIdValueMap);
         System.out.println("addIdValueByteBufferMap , oldApkSigningBlock size = " + apkSectionInfo.apkSigningBlock.getFirst().remaining() + " , newApkSigningBlock size = " + newApkSigningBlock.remaining());
 
-        ByteBuffer centralDir = apkSectionInfo.centralDir.getFirst();
-        ByteBuffer eocd = apkSectionInfo.eocd.getFirst();
-        long centralDirOffset = apkSectionInfo.centralDir.getSecond();
-        int apkChangeSize = newApkSigningBlock.remaining() - apkSectionInfo.apkSigningBlock.getFirst().remaining();
-        //update the offset of centralDir
-        ZipUtils.setZipEocdCentralDirectoryOffset(eocd, centralDirOffset + apkChangeSize);//修改了EOCD中保存的中央目录偏移量
+        writeApkSections(apkSectionInfo, destApk, newApkSigningBlock, "addIdValueByteBufferMap");
+        System.out.println("addIdValueByteBufferMap , after add channel , new apk is " + destApk.getAbsolutePath() + " , length = " + destApk.length());
+    }
 
-        long apkLength = apkSectionInfo.apkSize + apkChangeSize;
-        RandomAccessFile fIn = null;
+
+    /**
+     * add id-value to apk by the APK Signing Block template of base apk.
+     * the new signing block is written into a buffer reused by the current thread, so no map or signing block
+     * is allocated per apk
+     *
+     * @param apkSectionInfo
+     * @param destApk
+     * @param template
+     * @param valueBuffer
+     * @throws IOException
+     */
+    public static void addIdValue(ApkSectionInfo apkSectionInfo, File destApk, ApkSigningBlockTemplate template, ByteBuffer valueBuffer) throws IOException {
+        ByteBuffer newApkSigningBlock = template.generate(valueBuffer, SIGNING_BLOCK_BUFFER.get());
+        SIGNING_BLOCK_BUFFER.set(newApkSigningBlock);
+        writeApkSections(apkSectionInfo, destApk, newApkSigningBlock, "addIdValue");
+        System.out.println("addIdValue , after add id " + template.getId() + " , new apk is " + destApk.getAbsolutePath() + " , length = " + destApk.length());
+    }
+
+    /**
+     * generate the sections of the apk which contains the id-value , without writing any byte.
+     * the APK Signing Block is generated into a new buffer , the content entry and the central dir are shared with
+     * base apk , so the result can be verified in memory and then written by {@link #writeApkSectionInfo(ApkSectionInfo, File)}
+     *
+     * @param apkSectionInfo
+     * @param template
+     * @param valueBuffer
+     * @return
+     */
+    public static ApkSectionInfo generateIdValue(ApkSectionInfo apkSectionInfo, ApkSigningBlockTemplate template, ByteBuffer valueBuffer) {
+        ByteBuffer newApkSigningBlock = template.generate(valueBuffer, null);
+        return generateApkSections(apkSectionInfo, newApkSigningBlock);
+    }
+
+    /**
+     * write the sections generated by {@link #generateIdValue(ApkSectionInfo, ApkSigningBlockTemplate, ByteBuffer)}
+     *
+     * @param newApkSectionInfo
+     * @param destApk
+     * @throws IOException
+     */
+    public static void writeApkSectionInfo(ApkSectionInfo newApkSectionInfo, File destApk) throws IOException {
+        writeApkSections(newApkSectionInfo, destApk, "writeApkSectionInfo");
+        System.out.println("writeApkSectionInfo , new apk is " + destApk.getAbsolutePath() + " , length = " + destApk.length());
+    }
+
+    /**
+     * overwrite the value of an existing id-value pair in place.
+     * the new value must not be longer than the existing value , the rest of the slot is filled with 0,
+     * so the size of APK Signing Block is not changed and central dir and eocd are never moved.
+     * it is used with the value which was written with a reserved length, such as
+     * {@link ChannelWriter#addChannelByV2(ApkSectionInfo, File, String, int)}
+     *
+     * @param apkFile
+     * @param id
+     * @param buffer
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static void replaceIdValueInPlace(File apkFile, int id, byte[] buffer) throws IOException, SignatureNotFoundException {
+        if (apkFile == null || !apkFile.exists() || !apkFile.isFile() || buffer == null) {
+            throw new RuntimeException("replaceIdValueInPlace , param invalid, apkFile = " + apkFile);
+        }
+        RandomAccessFile apk = null;
         try {
-            fIn = new RandomAccessFile(destApk, "rw");
-            if (apkSectionInfo.lowMemory) {
-                long signBlockPos = apkSectionInfo.apkSigningBlock.getSecond();
-                System.out.println("seek to apk signing block pos:" + signBlockPos + ",dest apk file len:" + fIn.length());
-                fIn.seek(signBlockPos);
-            } else {
-                ByteBuffer contentEntry = apkSectionInfo.contentEntry.getFirst();
-                fIn.seek(apkSectionInfo.contentEntry.getSecond());
-                //1. write real content Entry block
-                fIn.write(contentEntry.array(), contentEntry.arrayOffset() + contentEntry.position(), contentEntry.remaining());
+            apk = new RandomAccessFile(apkFile, "rw");
+            FileChannel channel = apk.getChannel();
+            //1.find the slot of id , only the EOCD , the footer of APK Signing Block and the id-value headers are read
+            Pair<Long, Integer> slot = IdValueReader.findIdValueSlot(new ChannelDataSource(channel), id);
+            if (slot == null) {
+                throw new SignatureNotFoundException("replaceIdValueInPlace , no id " + id + " in APK Signing Block of " + apkFile.getAbsolutePath());
             }
-
-            //2. write new apk v2 scheme block
-            fIn.write(newApkSigningBlock.array(), newApkSigningBlock.arrayOffset() + newApkSigningBlock.position(), newApkSigningBlock.remaining());
-            //3. write central dir block
-            fIn.write(centralDir.array(), centralDir.arrayOffset() + centralDir.position(), centralDir.remaining());
-            //4. write eocd block
-            fIn.write(eocd.array(), eocd.arrayOffset() + eocd.position(), eocd.remaining());
-            //5. modify the length of apk file
-            if (fIn.getFilePointer() != apkLength) {
-                throw new RuntimeException("after addIdValueByteBufferMap , file size wrong , FilePointer : " + fIn.getFilePointer() + ", apkLength : " + apkLength);
+            int capacity = slot.getSecond();
+            if (buffer.length > capacity) {
+                throw new RuntimeException("replaceIdValueInPlace , value length " + buffer.length + " exceeds reserved length " + capacity);
             }
-            fIn.setLength(apkLength);
-            System.out.println("addIdValueByteBufferMap , after add channel , new apk is " + destApk.getAbsolutePath() + " , length = " + destApk.length());
+            //2.write the value and clear the rest of slot in one positional write
+            ByteBuffer value = ByteBuffer.allocate(capacity);
+            value.put(buffer);
+            value.clear();
+            long valueOffset = slot.getFirst();
+            while (value.hasRemaining()) {
+                channel.write(value, valueOffset + value.position());
+            }
+            System.out.println("replaceIdValueInPlace , id = " + id + " , valueOffset = " + valueOffset + " , capacity = " + capacity);
         } finally {
-            //恢复EOCD中保存的中央目录偏移量，满足基础包的APK结构
-            ZipUtils.setZipEocdCentralDirectoryOffset(eocd, centralDirOffset);
-            if (fIn != null) {
-                fIn.close();
+            if (apk != null) {
+                apk.close();
             }
         }
     }
 
-
     /**
      * add id-value(byte[]) to apk
      *
@@ -251,10 +272,170 @@ public class IdValueWriter {
 
     }
 
+    /**
+     * write content entry, new apk signing block, central dir and eocd to dest apk.
+     * the sections of apkSectionInfo are only read through duplicates, so heap, direct and mapped buffers are all supported,
+     * and the eocd of base apk is never modified.
+     * the dest apk is sized to its final length first , then all sections are written by one gathering write.
+     *
+     * @param apkSectionInfo
+     * @param destApk
+     * @param newApkSigningBlock
+     * @param tag
+     * @throws IOException
+     */
+    private static void writeApkSections(ApkSectionInfo apkSectionInfo, File destApk, ByteBuffer newApkSigningBlock, String tag) throws IOException {
+        writeApkSections(generateApkSections(apkSectionInfo, newApkSigningBlock), destApk, tag);
+    }
+
+    /**
+     * the sections of the apk whose APK Signing Block is replaced by newApkSigningBlock.
+     * central dir and eocd are moved by the change of APK Signing Block size
+     *
+     * @param apkSectionInfo
+     * @param newApkSigningBlock
+     * @return
+     */
+    private static ApkSectionInfo generateApkSections(ApkSectionInfo apkSectionInfo, ByteBuffer newApkSigningBlock) {
+        long centralDirOffset = apkSectionInfo.centralDir.getSecond();
+        int apkChangeSize = newApkSigningBlock.remaining() - apkSectionInfo.apkSigningBlock.getFirst().remaining();
+        //update the offset of centralDir , 在EOCD的副本上修改中央目录偏移量，基础包的EOCD保持不变
+        ByteBuffer eocd = copyByteBuffer(apkSectionInfo.eocd.getFirst());
+        ZipUtils.setZipEocdCentralDirectoryOffset(eocd, centralDirOffset + apkChangeSize);
+
+        ApkSectionInfo newApkSectionInfo = new ApkSectionInfo();
+        newApkSectionInfo.lowMemory = apkSectionInfo.lowMemory;
+        newApkSectionInfo.mapped = apkSectionInfo.mapped;
+        newApkSectionInfo.baseApk = apkSectionInfo.baseApk;
+        newApkSectionInfo.apkSize = apkSectionInfo.apkSize + apkChangeSize;
+        newApkSectionInfo.contentEntry = apkSectionInfo.contentEntry;
+        newApkSectionInfo.apkSigningBlock = Pair.create(newApkSigningBlock, apkSectionInfo.apkSigningBlock.getSecond());
+        newApkSectionInfo.centralDir = Pair.create(apkSectionInfo.centralDir.getFirst(), centralDirOffset + apkChangeSize);
+        newApkSectionInfo.eocd = Pair.create(eocd, apkSectionInfo.eocd.getSecond() + apkChangeSize);
+        return newApkSectionInfo;
+    }
+
+    /**
+     * write the sections to dest apk , the content entry is transferred from base apk in the lowMemory mode
+     *
+     * @param apkSectionInfo
+     * @param destApk
+     * @param tag
+     * @throws IOException
+     */
+    private static void writeApkSections(ApkSectionInfo apkSectionInfo, File destApk, String tag) throws IOException {
+        boolean inPlace = isBaseApk(apkSectionInfo, destApk);
+        ByteBuffer centralDir = apkSectionInfo.centralDir.getFirst();
+        if (inPlace && apkSectionInfo.mapped) {
+            //原地修改内存映射的基础包时，中央目录所在的区域会被覆盖，需要先复制一份
+            centralDir = copyByteBuffer(centralDir);
+        }
+
+        long apkLength = apkSectionInfo.apkSize;
+        RandomAccessFile fIn = null;
+        try {
+            fIn = new RandomAccessFile(destApk, "rw");
+            //1. set the final length of apk file before writing
+            fIn.setLength(apkLength);
+            FileChannel destChannel = fIn.getChannel();
+            long position;
+            ByteBuffer[] sections;
+            if (apkSectionInfo.lowMemory || inPlace) {
+                position = apkSectionInfo.apkSigningBlock.getSecond();
+                System.out.println("seek to apk signing block pos:" + position + ",dest apk file len:" + apkLength);
+                //2. copy real content Entry block from base apk without loading it into memory
+                if (!inPlace) {
+                    transferContentEntry(apkSectionInfo, destApk);
+                }
+                sections = new ByteBuffer[]{apkSectionInfo.apkSigningBlock.getFirst().duplicate(), centralDir.duplicate(), apkSectionInfo.eocd.getFirst().duplicate()};
+            } else {
+                position = apkSectionInfo.contentEntry.getSecond();
+                sections = new ByteBuffer[]{apkSectionInfo.contentEntry.getFirst().duplicate(), apkSectionInfo.apkSigningBlock.getFirst().duplicate(), centralDir.duplicate(), apkSectionInfo.eocd.getFirst().duplicate()};
+            }
+            //3. write content entry , new apk signing block , central dir and eocd
+            destChannel.position(position);
+            long written = writeFully(destChannel, sections);
+            if (position + written != apkLength) {
+                throw new RuntimeException("after " + tag + " , file size wrong , FilePointer : " + (position + written) + ", apkLength : " + apkLength);
+            }
+        } finally {
+            if (fIn != null) {
+                fIn.close();
+            }
+        }
+    }
+
+    /**
+     * gathering write all buffers from the position of channel
+     *
+     * @return the count of bytes written
+     */
+    private static long writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        long written = 0;
+        int offset = 0;
+        while (written < total) {
+            written += channel.write(buffers, offset, buffers.length - offset);
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        return written;
+    }
+
+    private static boolean isBaseApk(ApkSectionInfo apkSectionInfo, File destApk) throws IOException {
+        return apkSectionInfo.baseApk != null && apkSectionInfo.baseApk.getCanonicalPath().equals(destApk.getCanonicalPath());
+    }
+
+    private static ByteBuffer copyByteBuffer(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(buffer.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * copy the content entry block of base apk to dest apk in the lowMemory mode , which is also the default mode of
+     * base apks larger than 64MB.
+     * the bytes are transferred by FileChannel, so they never pass through the java heap ,
+     * a large content entry is copied by several threads.
+     * if dest apk is base apk itself (or base apk is unknown), the content entry is already in place.
+     *
+     * @param apkSectionInfo
+     * @param destApk
+     * @throws IOException
+     */
+    private static void transferContentEntry(ApkSectionInfo apkSectionInfo, File destApk) throws IOException {
+        File baseApk = apkSectionInfo.baseApk;
+        if (baseApk == null || isBaseApk(apkSectionInfo, destApk)) {
+            return;
+        }
+        FileCopyUtil.copyRange(baseApk, destApk, apkSectionInfo.apkSigningBlock.getSecond());
+    }
+
     public static ApkSectionInfo getApkSectionInfo(File baseApk, boolean lowMemory) throws IOException, SignatureNotFoundException {
         if (baseApk == null || !baseApk.exists() || !baseApk.isFile()) {
             return null;
         }
         return V2SchemeUtil.getApkSectionInfo(baseApk, lowMemory);
     }
+
+    /**
+     * get the Apk Section info whose sections are read-only slices of one memory mapping of base apk
+     *
+     * @param baseApk
+     * @return
+     * @throws IOException
+     * @throws SignatureNotFoundException
+     */
+    public static ApkSectionInfo getMappedApkSectionInfo(File baseApk) throws IOException, SignatureNotFoundException {
+        if (baseApk == null || !baseApk.exists() || !baseApk.isFile()) {
+            return null;
+        }
+        return V2SchemeUtil.getMappedApkSectionInfo(baseApk);
+    }
 }